@@ -1,34 +1,79 @@
 package red2.f1.client;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import red2.f1.msg.Data;
+import red2.f1.msg.FileEntry;
+import red2.f1.msg.Hello;
 import red2.f1.msg.MsgType;
 import red2.f1.msg.Request;
 import red2.f1.msg.Response;
 import red2.f1.msg.Response.Codes;
+import red2.f1.proto.ChunkSizer;
+import red2.f1.proto.Compression;
+import red2.f1.proto.Frame;
+import red2.f1.proto.FrameMsgChannel;
+import red2.f1.proto.MsgChannel;
+import red2.f1.proto.MuxChannel;
+import red2.f1.proto.MuxStream;
+import red2.f1.proto.ObjectMsgChannel;
+import red2.f1.proto.UnexpectedMessageException;
+import red2.f1.util.Chunker;
+import red2.f1.util.Delta;
+import red2.f1.util.FileTree;
+import red2.f1.util.ReadAhead;
 import red2.f1.util.Util;
+import red2.f1.util.WriteBehind;
 
 /**
  * Class that implements the client side in the FileServer application.
  * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
  */
 public class FileClient {
-	private static enum StreamsDirection {IN, OUT}
+	/** Time to wait for the server's handshake before falling back to object streams. */
+	private static final int HANDSHAKE_TIMEOUT = 5000;
+	/** A session unused for the server's idle timeout minus this margin is not trusted anymore. */
+	private static final long IDLE_MARGIN = 1000;
+	/** Suffix of the files being received, kept when a transfer is interrupted. */
+	private static final String PART_SUFFIX = ".part";
+	/**
+	 * Suffix of the files being received by {@link #receiveParallel}, preallocated
+	 * and filled out of order, so never resumed, nor mixed up with a {@link #PART_SUFFIX}.
+	 */
+	private static final String PARALLEL_SUFFIX = ".pr-part";
+	/** Formatted size of a folder in the listings. */
+	private static final String DIR_SIZE = "<DIR>";
+	/** Smallest range worth a connection of its own in a parallel download. */
+	private static final long MIN_RANGE = 1024 * 1024;
+	/** Times a range is asked for while the server is busy. */
+	private static final int RANGE_ATTEMPTS = 5;
+	/** Files asked for at a time when listing the remote folder. */
+	private static final int LIST_PAGE = 1000;
 
 	private static String hostName;
 	private static int hostPort;
@@ -36,8 +81,34 @@ public class FileClient {
 	private static File localDir;
 	private static Socket conn = null;
 	private static BufferedReader consoleReader;
-	private static ObjectOutputStream oos = null;
-	private static ObjectInputStream ois = null;
+	private static MsgChannel channel = null;
+	/** Use the original object streams protocol instead of binary frames. */
+	private static boolean legacy = false;
+	/** Keep the connection open between commands, if the server agrees. */
+	private static boolean useSessions = true;
+	/** The server agreed to a session on the current connection. */
+	private static boolean session = false;
+	/** How long the server waits for the next request of a session. */
+	private static long sessionIdle = 0;
+	private static long lastUsed = 0;
+	/** The last exchange ended cleanly, the connection can carry another request. */
+	private static boolean reusable = false;
+	/** Run many exchanges at the same time on one connection, if the server agrees. */
+	private static boolean useMux = true;
+	/** The multiplexed connection, null if the server did not agree to it. */
+	private static MuxChannel mux = null;
+	/** Streams the server serves at the same time on one connection. */
+	private static int muxLimit = 1;
+	/** Connections used by a parallel transfer. */
+	private static int connections = 4;
+	/** Deflate level asked for the bodies, 0 to send them as they are. */
+	private static int compressLevel = 0;
+	/** Size of the socket buffers, 0 to leave them to the OS. */
+	private static int socketBuffer = 0;
+	/** The server takes the batch requests, see {@link Frame#OPT_BATCH}. */
+	private static boolean batches = false;
+	/** The server reports its counters, see {@link Frame#OPT_STATS}. */
+	private static boolean stats = false;
 	private static String opc;
 	private static boolean finished = false;
 	/** The filename to download|upload|delete */
@@ -54,8 +125,14 @@ public class FileClient {
 		while (!finished) {
 			readOption();
 			processOption();
-			closeStreamsAndConnection();
+			if (null != mux)
+				closeCommandStream();
+			if (session && reusable && ! finished)
+				lastUsed = System.currentTimeMillis();
+			else
+				closeStreamsAndConnection();
 		}
+		closeStreamsAndConnection();
 		closeConsoleInputStream();
 	}
 
@@ -67,12 +144,22 @@ public class FileClient {
 		cliBashln("");
 		cliBashln("Choose from one of the following options and push Enter:");
 		cliBashln("1. lc (list local folder)");
-		cliBashln("2. lr (list remote folder)");
+		cliBashln("2. lr [pattern] [name|size|-name|-size] (list remote folder)");
 		cliBashln("3. s <file_name> (send file to server)");
 		cliBashln("4. r <file_name> (receive file from server)");
 		cliBashln("5. dl <file_name> (delete local file)");
 		cliBashln("6. dr <file_name> (delete remote file)");
-		cliBashln("7. q (exit)");
+		cliBashln("7. mr <file_name> ... (receive many files at the same time)");
+		cliBashln("8. ms <file_name> ... (send many files at the same time)");
+		cliBashln("9. pr <file_name> (receive a file over several connections)");
+		cliBashln("10. ps <file_name> (send a file over several connections)");
+		cliBashln("11. ds <file_name> (update a file on server, sending only what changed)");
+		cliBashln("12. cs <file_name> (send file to server, skipping the chunks it already stores)");
+		cliBashln("13. br <file_name|folder|pattern> ... (receive many files or whole folders in one request)");
+		cliBashln("14. bs <file_name|folder|pattern> ... (send many files or whole folders in one request)");
+		cliBashln("15. bd <file_name|folder|pattern> ... (delete many remote files or whole folders in one request)");
+		cliBashln("16. st (show the server statistics)");
+		cliBashln("17. q (exit)");
 		cliBash("");
 		openConsoleInputStream();
 		try {
@@ -97,11 +184,28 @@ public class FileClient {
 	private static void cliBashln(String s) {
 		System.out.println("Cli# " + s);
 	}
+	/**
+	 * @param file a file with read access
+	 * @return its MD5 checksum or null in case of error, told on this console
+	 */
+	private static String checksumOf(File file) {
+		try {
+			return Util.md5Of(file, Util.MAX_DATA * Util.MAX_DATA);
+		} catch (FileNotFoundException e) {
+			cliBashln("Error opening file '" + file.getName() + "' for reading");
+			System.out.println("FileNotFoundException: " + e.getMessage());
+		} catch (IOException e) {
+			cliBashln("Error reading from file '" + file.getName() + "'");
+			System.out.println("IOException: " + e.getMessage());
+		}
+		return null;
+	}
 	/**
 	 * Prints the message type and the message, if not empty or null.
 	 * @param res
 	 */
 	private static void printUnexpectedResponse(Response res) {
+		reusable = false; //the exchange went off track
 		cliBash("Unexpected response from server (" +
 				res.getType().toString() + ")");
 		if (null != res.getMessage() && !res.getMessage().trim().isEmpty())
@@ -109,10 +213,23 @@ public class FileClient {
 		System.out.println();
 		cliBashln("Please try again.");
 	}
+	/**
+	 * Prints the message of an error {@link Response}, ignores anything else.
+	 * @param obj
+	 */
+	private static void printErrorResponse(Object obj) {
+		if (obj instanceof Response) {
+			Response r = (Response) obj;
+			if (null != r.getCode() && 0 == r.getCode().compareTo(Codes.ERR)) {
+				cliBashln("Error response from server:");
+				cliBashln(r.getMessage());
+			}
+		}
+	}
 	//----COMMANDS EXECUTION---------------------------------------------//
 	/**
 	 * Lists the files inside the local folder together with their sizes.
-	 * Any directories will not be included.
+	 * Folders are listed with a trailing '/', but not what they hold.
 	 */
 	private static void listLocalDir() {
 		int files = 0;
@@ -120,6 +237,9 @@ public class FileClient {
 			if (file.isFile()) {
 				cliBashln(file.getName() + "\t" + Util.calculateFileSize(file));
 				files++;
+			} else if (file.isDirectory()) {
+				cliBashln(file.getName() + FileTree.SEPARATOR + "\t" + DIR_SIZE);
+				files++;
 			}
 		}
 		cliBashln("----Successfully listed " + files +" local files from '" + localDir.getPath() + "'----");
@@ -137,11 +257,32 @@ public class FileClient {
 		}		
 	}
 	/**
-	 * Sends a {@link MsgType#LR} request to server. 
+	 * Sends {@link MsgType#LR} requests to server, a page of the listing at
+	 * a time, printing every page as it arrives.
+	 * @param args an optional pattern (<code>*</code> and <code>?</code> as
+	 * wildcards) and an optional sort order, in any order
 	 */
-	private static void listRemoteDir() {
-		Request r = new Request(MsgType.LR);
-		if (writeRequest(r)) {
+	private static void listRemoteDir(String[] args) {
+		String filter = null;
+		String sort = null;
+		for (String arg : args) {
+			if (arg.isEmpty())
+				continue;
+			if (arg.matches("-?(name|size)"))
+				sort = arg;
+			else
+				filter = arg;
+		}
+		String cursor = null;
+		int listed = 0;
+		do {
+			Request r = new Request(MsgType.LR);
+			r.setFilter(filter);
+			r.setSort(sort);
+			r.setPageSize(LIST_PAGE);
+			r.setCursor(cursor);
+			if (! writeRequest(r))
+				return;
 			Response res = readResponse();
 			if (null == res)
 				return; //error has been displayed by readResponse
@@ -149,18 +290,54 @@ public class FileClient {
 				printUnexpectedResponse(res);
 				return;
 			}
-			if (null != res.getFiles() && ! res.getFiles().isEmpty())
-				for (String file : res.getFiles().keySet()) {
-					cliBashln(file + "\t"+ res.getFiles().get(file));
-				}
-			else {
+			if (null != res.getEntries()) {
+				for (FileEntry e : res.getEntries())
+					cliBashln(e.getName() + "\t" + e.getReadableSize());
+				listed += res.getEntries().size();
+				cursor = res.getCursor();
+			} else {
+				//a server without pages sends the whole folder at once
+				if (null != res.getFiles())
+					for (String file : res.getFiles().keySet())
+						if (Util.matches(filter, file)) {
+							cliBashln(file + "\t"+ res.getFiles().get(file));
+							listed++;
+						}
+				cursor = null;
+			}
+			if (0 == listed && null == cursor) {
 				cliBash("--Empty file list from server--");
 				if (null != res.getMessage() && !res.getMessage().isEmpty())
 					System.out.println(": " + res.getMessage());
 				System.out.println();
 			}
-			cliBashln("----Successfully executed 'lr' command----");
+		} while (null != cursor);
+		cliBashln("----Successfully executed 'lr' command----");
+	}
+	/**
+	 * Asks the server for its counters with a {@link MsgType#STATS} request
+	 * and prints them. A legacy connection can not tell whether the server
+	 * knows the request, an older one answers with an error or closes.
+	 */
+	private static void showServerStats() {
+		if (! legacy && ! hasStats()) {
+			if (null != conn)
+				cliBashln("The server does not report statistics");
+			return;
+		}
+		if (! writeRequest(new Request(MsgType.STATS)))
+			return;
+		Response res = readResponse();
+		if (null == res)
+			return; //error has been displayed by readResponse
+		if (MsgType.STATS != res.getType()) {
+			printUnexpectedResponse(res);
+			return;
 		}
+		if (null != res.getMessage())
+			for (String line : res.getMessage().split("\n"))
+				cliBashln(line);
+		cliBashln("----Successfully executed 'st' command----");
 	}
 	/**
 	 * Delete a file from server.
@@ -185,187 +362,234 @@ public class FileClient {
 	 * Receives a file (if available) and stores it into the local folder. 
 	 */
 	private static void receiveFile() {
+		receiveFile(null, target);
+	}
+	/**
+	 * Receives a file, on the given stream or on the command's connection.
+	 * @param stream a stream of the multiplexed connection, null for the usual channel
+	 * @param name
+	 * @return true if the file has been received and saved
+	 */
+	private static boolean receiveFile(MuxStream stream, final String name) {
 		//check if the file already exists in the folder maintained by the client
 		if (isLocalDirOK()) {
 			FilenameFilter ff = new FilenameFilter() {
 				@Override
-				public boolean accept(File dir, String name) {
-					return name.contentEquals(target);
+				public boolean accept(File dir, String fileName) {
+					return fileName.contentEquals(name);
 				}
 			};
 			if (localDir.list(ff).length > 0) {
-				cliBashln("File '" + target + "' already exists in local dir");
-				return;
+				cliBashln("File '" + name + "' already exists in local dir");
+				return false;
 			}
 		} else
-			return;
+			return false;
+		//an interrupted download is resumed where it stopped
+		File part = new File(localDir.getAbsolutePath() + File.separator + name + PART_SUFFIX);
 		Request r = new Request(MsgType.R);
-		r.setMessage(target);
-		if (! writeRequest(r))
-			return;
-		Response res = readResponse();
-		if (null == res)
-			return; //error has been displayed by readResponse
+		r.setMessage(name);
+		if (part.length() > 0) {
+			r.setOffset(part.length());
+			cliBashln("Resuming '" + name + "' from byte " + r.getOffset());
+		}
+		MsgChannel ch = writeRequest(stream, r);
+		if (null == ch)
+			return false;
+		Response res = readResponse(ch);
+		if (null == res) {
+			if (r.getOffset() > 0)
+				cliBashln("Delete '" + part.getName() + "' to receive '" + name + "' from the start");
+			return false; //error has been displayed by readResponse
+		}
 		if(0 != res.getType().compareTo(MsgType.R)) {
 			printUnexpectedResponse(res);
-			return;
+			return false;
 		}
 		if (null != res.getMessage() && !res.getMessage().isEmpty())
 			cliBashln("Remote message: " + res.getMessage());
 		cliBashln("File size: " + res.getFileSize() + " bytes");
-		cliBashln("File checksum: " + res.getChecksum());
-		//start receiving file chunks
+		if (null != res.getChecksum())
+			cliBashln("File checksum: " + res.getChecksum());
+		//start receiving file chunks, servers ignoring the offset send everything
 		String finalChecksum = res.getChecksum();
 		long fileLength = res.getFileSize();
-		int recvBytes = 0;
-		File file = new File(localDir  + File.separator + target);
-		try {
-			file.createNewFile();
-		} catch (IOException e) {
-			cliBashln("Error creating new file '" + target + "' in local dir");
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
-			return;
-		}
-		if (fileLength == 0) {
-			cliBashln("----Successfully executed 's " + target +"' command----");
-			return;
-		}
-		FileOutputStream fos = null;
-		try {
-			fos = new FileOutputStream(file);
-		} catch (FileNotFoundException e) {
-			cliBashln("Error opening out stream on '" + target + "'");
-			System.out.println("FileNotFoundException: " + e.getMessage());
-			e.printStackTrace();
-			file.delete();
-			return;
-		}
+		long offset = res.getOffset();
+		long count = res.bodyLength(fileLength);
 		MessageDigest md = null;
 		try {
 			md = MessageDigest.getInstance("MD5");
 			md.reset();
 		} catch (NoSuchAlgorithmException e) {
+			reusable = false;
 			cliBashln("Error creating MessageDigest with MD5 algorithm");
 			System.out.println("NoSuchAlgorithmException: " + e.getMessage());
 			e.printStackTrace();
-			file.delete();
-			return;
+			return false;
+		}
+		RandomAccessFile raf = null;
+		try {
+			//read-write, the received bytes may be hashed back from the file
+			raf = new RandomAccessFile(part, "rw");
+		} catch (FileNotFoundException e) {
+			reusable = false;
+			cliBashln("Error opening out stream on '" + name + "'");
+			System.out.println("FileNotFoundException: " + e.getMessage());
+			e.printStackTrace();
+			return false;
 		}
-		int chunkSize = 0;
-		int written = 0;
+		long written = 0;
 		try {
-			do {
-				Data data = readData();
-				if (null == data)
-					break;
-				if (data.getLen() == 0)
-					break;
-				if (0 == chunkSize)
-					chunkSize = data.getLen();
-				md.update(data.getData(), 0, data.getLen());
-				fos.write(data.getData(), 0, data.getLen());
-				written += data.getLen();
-				recvBytes = data.getLen();
-			} while ((chunkSize > 0 && recvBytes == chunkSize) && written < fileLength);
+			raf.setLength(offset);
+			if (offset > 0)
+				Util.updateDigest(raf.getChannel(), 0, offset, md);
+			written = ch.receiveBody(raf.getChannel(), offset, count, md);
+		} catch (UnexpectedMessageException e) {
+			reusable = false;
+			printErrorResponse(e.getReceived());
+			keepPartial(part, name);
+			return false;
 		} catch (IOException e) {
-			cliBashln("I/O error while writing into file '" + target + "'");
+			reusable = false;
+			cliBashln("I/O error while writing into file '" + name + "'");
 			System.out.println("IOException: " + e.getMessage());
 			e.printStackTrace();
-			file.delete();
-			return;
+			keepPartial(part, name);
+			return false;
 		} finally {
 			try {
-				fos.close();
+				raf.close();
 			} catch (IOException e) {
-				cliBashln("Error closing stream on file '" + target + "'");
+				cliBashln("Error closing stream on file '" + name + "'");
 				System.out.println("IOException: " + e.getMessage());
 				e.printStackTrace();
-				file.delete();
-				return;
+				part.delete();
+				return false;
 			}
 		}
-		if (written != fileLength) {
+		if (written != count) {
+			reusable = false;
 			cliBashln("----Size failure: " + fileLength +
-					" (B on source) vs " + written + " (B downloaded)");
-			cliBashln("File '" + target +"' will not be saved.");
-			file.delete();
-			return;
+					" (B on source) vs " + (offset + written) + " (B downloaded)");
+			keepPartial(part, name);
+			return false;
+		}
+		if (null == finalChecksum) {
+			finalChecksum = readTrailer(ch, name);
+			if (null == finalChecksum) {
+				keepPartial(part, name);
+				return false;
+			}
 		}
 		String resultChecksum = Util.calcMD5(md.digest());
-		if (finalChecksum.contentEquals(resultChecksum)) {
-			cliBashln("----Checksums coincide----");
-			cliBashln("----Successfully executed 'r " + target +"' command----");
-		} else {
+		if (! finalChecksum.contentEquals(resultChecksum)) {
 			cliBashln("----Checksum failure: " + finalChecksum +
 					" (source) vs " + resultChecksum + " (downloaded)");
-			cliBashln("File '" + target +"' will not be saved.");
-			file.delete();
+			cliBashln("File '" + name +"' will not be saved.");
+			part.delete();
+		} else if (! part.renameTo(new File(localDir.getAbsolutePath() + File.separator + name))) {
+			cliBashln("Error renaming '" + part.getName() + "' to '" + name + "'");
+		} else {
+			cliBashln("----Checksums coincide----");
+			cliBashln("----Successfully executed 'r " + name +"' command----");
+			return true;
 		}
+		return false;
+	}
+	/**
+	 * Tells the user what is left of an interrupted download.
+	 * @param part
+	 * @param name
+	 */
+	private static void keepPartial(File part, String name) {
+		cliBashln("Kept " + part.length() + " bytes in '" + part.getName() +
+				"', receive '" + name + "' again to resume.");
 	}
 
 	/**
 	 * Sends a file to server.
 	 */
 	private static void sendFile() {
+		sendFile(null, target);
+	}
+	/**
+	 * Sends a file, on the given stream or on the command's connection.
+	 * @param stream a stream of the multiplexed connection, null for the usual channel
+	 * @param name
+	 * @return true if the server has the file, verified when it confirms uploads
+	 */
+	private static boolean sendFile(MuxStream stream, final String name) {
 		//check if the file really exists on the client's side
 		if (isLocalDirOK()) {
 			FilenameFilter ff = new FilenameFilter() {
 				@Override
-				public boolean accept(File dir, String name) {
-					return name.contentEquals(target);
+				public boolean accept(File dir, String fileName) {
+					return fileName.contentEquals(name);
 				}
 			};
 			if (localDir.list(ff).length == 0) {
-				cliBashln("File '" + target + "' not found in local dir");
-				return;
+				cliBashln("File '" + name + "' not found in local dir");
+				return false;
 			}
 		} else
-			return;
-		File file = new File(localDir.getAbsolutePath() + File.separator + target);
+			return false;
+		File file = new File(localDir.getAbsolutePath() + File.separator + name);
 		if (! file.exists() || ! file.canRead()) {
-			cliBashln("File '" + target + "' not found in local dir");
-			return;
+			cliBashln("File '" + name + "' not found in local dir");
+			return false;
 		}
 		Request req = new Request(MsgType.S);
 		req.setFileSize(file.length());
-		req.setChecksum(Util.calcMD5(file, Util.MAX_DATA * Util.MAX_DATA));
-		req.setMessage(target);
-		if (null == req.getChecksum() || req.getChecksum().isEmpty()) {
-			cliBashln("Error creating checksum for '" + target + "'");
-			return;
+		req.setMessage(name);
+		//the checksum is added by writeRequest, unless it can follow the body
+		MsgChannel ch = writeRequest(stream, req);
+		if (null == ch)
+			return false;
+		MessageDigest md = null;
+		if (null != req.getChecksum()) {
+			cliBashln("File checksum on this side: " + req.getChecksum());
+		} else {
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				reusable = false; //the server still waits for the body
+				cliBashln("Error creating MessageDigest with MD5 algorithm");
+				System.out.println("NoSuchAlgorithmException: " + e.getMessage());
+				e.printStackTrace();
+				return false;
+			}
 		}
-		cliBashln("File checksum on this side: " + req.getChecksum());
-		if (! writeRequest(req))
-			return;
-		Response resp = readResponse();
+		Response resp = readResponse(ch);
 		if (null == resp)
-			return; //error has been displayed by readResponse
+			return false; //error has been displayed by readResponse
 		if(0 != resp.getType().compareTo(MsgType.S)) {
 			printUnexpectedResponse(resp);
-			return;
+			return false;
 		}
 		if (null != resp.getMessage() && !resp.getMessage().isEmpty())
 			cliBashln("Remote message: " + resp.getMessage());
+		//servers keeping an interrupted upload only want the rest
+		long offset = resp.getOffset();
+		if (offset < 0 || offset > req.getFileSize()) {
+			reusable = false; //the server still waits for the body
+			cliBashln("Invalid offset " + offset + " asked by the server for '" + name + "'");
+			return false;
+		}
 		//can start sending Data
-		byte[] buf = null;
 		FileInputStream fis = null;
 		boolean error = true;
 		try {
 			fis = new FileInputStream(file);
-			cliBashln("Starting sending " + file.length() + " bytes of data to server");
-			int readBytes;
-			buf = new byte[Util.MAX_DATA];
+			cliBashln("Starting sending " + (req.getFileSize() - offset) + " bytes of data to server");
 			long start = System.currentTimeMillis();
-			do {
-				readBytes = fis.read(buf);
-				if (readBytes >= 0) {
-					Data dpak = new Data(readBytes);
-					dpak.writeData(buf);
-					sendData(dpak);
-					//Util.serBashln("Sent " + readBytes + " bytes");
-				}
-			} while (readBytes == Util.MAX_DATA);
+			if (null != md && offset > 0)
+				Util.updateDigest(fis.getChannel(), 0, offset, md);
+			ch.sendBody(fis.getChannel(), offset, req.getFileSize() - offset, md);
+			if (null != md) {
+				String checksum = Util.calcMD5(md.digest());
+				ch.writeTrailer(checksum);
+				cliBashln("File checksum on this side: " + checksum);
+			}
 			cliBashln("Transfer of '" + file.getName() + 
 					"' towards remote host completed in " +
 					(System.currentTimeMillis() - start) +
@@ -373,12 +597,14 @@ public class FileClient {
 			error = false;
 		} catch (FileNotFoundException e) { 
 			//file might have been deleted after calculating the checksum
-			cliBashln("Error opening file '" + target + "' for transfer");
+			reusable = false; //the server still waits for the body
+			cliBashln("Error opening file '" + name + "' for transfer");
 			System.out.println("FileNotFoundException: " + e.getMessage());
 			e.printStackTrace();
-			return;
+			return false;
 		} catch (IOException e) {
-			cliBashln("I/O error while transfering file '" + target + "'");
+			reusable = false;
+			cliBashln("I/O error while transfering file '" + name + "'");
 			System.out.println("IOException: " + e.getMessage());
 			e.printStackTrace();
 		} finally {
@@ -390,159 +616,1457 @@ public class FileClient {
 				e.printStackTrace();
 			}
 		}
-		if (! error)
-			cliBashln("----Successfully executed 's " + target +"' command----");
-		else //read any msg from server
-			readResponse();
-	}
-
-	//----INTERNAL PROCESSING--------------------------------------------//
-	/**
-	 * Checks the arguments list to assign values to the fields.
-	 * Terminates the program's execution in case of error.
-	 * @param args
-	 */
-	private static void processArguments(String[] args) {
-		if (args.length != 3){
-			cliBashln("Incorrect arguments.");
-			cliBashln("Usage: java FileClient hostname port localFolder");
-			System.exit(1);
+		if (! error && ! ch.isLegacy()) {
+			//frame servers confirm the upload once the checksum has been verified
+			Response ack = readResponse(ch);
+			if (null == ack)
+				return false; //error has been displayed by readResponse
+			if (null != ack.getMessage() && !ack.getMessage().isEmpty())
+				cliBashln("Remote message: " + ack.getMessage());
 		}
-		hostName = args[0];
-		try{
-			hostPort = Integer.parseInt(args[1]);
-		} catch (NumberFormatException e) {
-			cliBashln("Number format error for port number: " + args[1]);
-			System.exit(1);
+		if (! error) {
+			cliBashln("----Successfully executed 's " + name +"' command----");
+			return true;
 		}
-		localDir = new File(args[2]);
-		if (! localDir.isDirectory()) {
-			cliBashln("File " + args[2] + " is not a folder.");
-			System.exit(1);
-		} else
-			cliBashln("Incoming files will be stored into " + args[2]);
+		if (null == stream) //read any msg from server
+			readResponse(ch);
+		return false;
 	}
+
 	/**
-	 * Given the <strong>trimmed</strong> option chosen by the user,
-	 * analyzes the contents and takes the decisions of what should
-	 * be done next.
+	 * Updates a file the server already has, sending only what changed: the
+	 * server describes the blocks of its copy, this side answers with the
+	 * blocks to keep and the bytes that are new.
 	 */
-	private static void processOption() {
-		String[] cmd = opc.split(delimiter, 2);
-		opc = cmd[0].toLowerCase();
-		if (opc.contentEquals("q")) {
-			finished = true;
+	private static void sendDelta() {
+		if (! isLocalDirOK())
+			return;
+		File file = new File(localDir.getAbsolutePath() + File.separator + target);
+		if (! file.isFile() || ! file.canRead()) {
+			cliBashln("File '" + target + "' not found in local dir");
 			return;
 		}
-		if (opc.contentEquals("lc")) {
-			listLocalDir();
+		Request r = new Request(MsgType.DS);
+		r.setMessage(target);
+		r.setFileSize(file.length());
+		if (! writeRequest(r))
+			return;
+		Response res = readResponse();
+		if (null == res)
+			return; //error has been displayed by readResponse
+		if(0 != res.getType().compareTo(MsgType.DS)) {
+			printUnexpectedResponse(res);
 			return;
 		}
-		if (opc.contentEquals("lr")) {
-			listRemoteDir();
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		long sigLength = res.getBlockSize() > 0 ?
+				Delta.signaturesLength(res.getFileSize(), res.getBlockSize()) : -1;
+		if (sigLength != res.getLength()) {
+			printUnexpectedResponse(res);
 			return;
 		}
-		if (cmd.length == 2) {
-			target = cmd[1];
-			if (opc.contentEquals("s")) {
-				sendFile();
-				return;
+		File sig = null;
+		File delta = null;
+		long start = System.currentTimeMillis();
+		try {
+			//signatures of the server's copy
+			sig = File.createTempFile("red2-", ".sig");
+			RandomAccessFile raf = new RandomAccessFile(sig, "rw");
+			try {
+				if (channel.receiveBody(raf.getChannel(), 0, sigLength, null) != sigLength)
+					throw new EOFException("Connection closed while receiving the signatures");
+			} finally {
+				raf.close();
 			}
-			if (opc.contentEquals("r")) {
-				receiveFile();
-				return;
+			FileInputStream sigIn = new FileInputStream(sig);
+			Delta.Signatures signatures;
+			try {
+				signatures = Delta.readSignatures(sigIn, sigLength, res.getBlockSize());
+			} finally {
+				sigIn.close();
 			}
-			if (opc.contentEquals("dl")) {
-				deleteLocalFile();
-				return;
+			//the delta, hashing the new version on the way
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			delta = File.createTempFile("red2-", ".delta");
+			FileInputStream in = new FileInputStream(file);
+			FileOutputStream out = new FileOutputStream(delta);
+			long literals;
+			try {
+				literals = Delta.writeDelta(in, signatures, out, md);
+			} finally {
+				in.close();
+				out.close();
 			}
-			if (opc.contentEquals("dr")) {
-				deleteRemoteFile();
-				return;
+			Request update = new Request(MsgType.DS);
+			update.setMessage(target);
+			update.setFileSize(file.length());
+			update.setChecksum(Util.calcMD5(md.digest()));
+			update.setLength(delta.length());
+			cliBashln("File checksum on this side: " + update.getChecksum());
+			cliBashln("Sending a delta of " + delta.length() + " bytes (" + literals +
+					" new) instead of " + update.getFileSize() + " bytes");
+			channel.writeRequest(update);
+			FileInputStream deltaIn = new FileInputStream(delta);
+			try {
+				channel.sendBody(deltaIn.getChannel(), 0, update.getLength(), null);
+			} finally {
+				deltaIn.close();
 			}
+		} catch (UnexpectedMessageException e) {
+			reusable = false;
+			printErrorResponse(e.getReceived());
+			return;
+		} catch (NoSuchAlgorithmException e) {
+			reusable = false;
+			cliBashln("Error creating MessageDigest with MD5 algorithm");
+			System.out.println("NoSuchAlgorithmException: " + e.getMessage());
+			e.printStackTrace();
+			return;
+		} catch (IOException e) {
+			reusable = false;
+			cliBashln("I/O error while updating file '" + target + "'");
+			System.out.println("IOException: " + e.getMessage());
+			e.printStackTrace();
+			return;
+		} finally {
+			if (null != sig) sig.delete();
+			if (null != delta) delta.delete();
 		}
-		cliBashln("Unknown command. Try again.");
-		return;
+		Response ack = readResponse();
+		if (null == ack)
+			return; //error has been displayed by readResponse
+		if (null != ack.getMessage() && !ack.getMessage().isEmpty())
+			cliBashln("Remote message: " + ack.getMessage());
+		cliBashln("Update of '" + target + "' completed in " +
+				(System.currentTimeMillis() - start) + " miliseconds.");
+		cliBashln("----Successfully executed 'ds " + target +"' command----");
 	}
+
 	/**
-	 * Checks if there's any error regarding the local folder.
-	 * @return true if local folder has read/write access, false in any other cases
+	 * Sends a file to a server storing content defined chunks: the file is
+	 * announced as the list of its chunks and only those the server does not
+	 * store yet are sent, one after the other.
 	 */
-	private static boolean isLocalDirOK() {
-		if (null == localDir || ! localDir.exists() || ! localDir.isDirectory()) {
-			cliBashln("Have lost access to local dir " + localDir.getAbsolutePath());
-			return false;
-		}
-		if (! localDir.canRead() || ! localDir.canWrite()) {
-			cliBashln("Can't read/write in local dir"+ localDir.getAbsolutePath());
-			return false;
+	private static void sendChunks() {
+		if (! isLocalDirOK())
+			return;
+		File file = new File(localDir.getAbsolutePath() + File.separator + target);
+		if (! file.isFile() || ! file.canRead()) {
+			cliBashln("File '" + target + "' not found in local dir");
+			return;
 		}
-		return true;
-	}
-	//----STREAMS---------------------------------------------------------//
-	/**
-	 * Instantiate the {@link BufferedReader} which will be used 
-	 * to read from console stream {@link System#in}.
-	 */
-	private static void openConsoleInputStream() {
-		InputStreamReader isr = new InputStreamReader(System.in, Util.SHARED_CHARSET);
-		consoleReader = new BufferedReader(isr);
-	}
-	/**
-	 * Closes the reader.
-	 */
-	private static void closeConsoleInputStream() {
+		//cut the file, keeping where each chunk starts to send it later
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		List<Long> offsets = new ArrayList<Long>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		Request r = new Request(MsgType.CS);
 		try {
-			if (null != consoleReader) consoleReader.close();
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			MessageDigest sha = MessageDigest.getInstance(Chunker.HASH);
+			byte[] chunk = new byte[Chunker.MAX_CHUNK];
+			long offset = 0;
+			FileInputStream in = new FileInputStream(file);
+			try {
+				Chunker chunker = new Chunker(in);
+				int len;
+				while ((len = chunker.next(chunk)) >= 0) {
+					md.update(chunk, 0, len);
+					sha.update(chunk, 0, len);
+					entries.write(sha.digest());
+					entries.write(new byte[] {(byte) (len >>> 24), (byte) (len >>> 16),
+							(byte) (len >>> 8), (byte) len});
+					offsets.add(offset);
+					lengths.add(len);
+					offset += len;
+				}
+			} finally {
+				in.close();
+			}
+			r.setFileSize(offset);
+			r.setChecksum(Util.calcMD5(md.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			cliBashln("Error creating MessageDigest: " + e.getMessage());
+			return;
 		} catch (IOException e) {
-			cliBashln("Error closing console stream.");
+			cliBashln("Error reading file '" + target + "'");
 			System.out.println("IOException: " + e.getMessage());
+			e.printStackTrace();
+			return;
 		}
-	}
-	/**
-	 * Opens the streams on the opened socket connection.
-	 */
-	private static void openConnectionStreams(StreamsDirection inOut) {
-		if (null == conn) {
-			cliBashln("Error opening "+ inOut.toString() + " connection stream:\n" + 
-					"Connection to server has not been initiated or has been lost, socket is null.");
-			cliBashln("You may want to restart client.");
+		r.setMessage(target);
+		r.setChunks(entries.toByteArray());
+		cliBashln("File checksum on this side: " + r.getChecksum());
+		if (! writeRequest(r))
+			return;
+		Response res = readResponse();
+		if (null == res)
+			return; //error has been displayed by readResponse
+		if(0 != res.getType().compareTo(MsgType.CS) || null == res.getChunks()
+				|| res.getChunks().length != (offsets.size() + 7) / 8) {
+			printUnexpectedResponse(res);
 			return;
 		}
-		if (0 == inOut.compareTo(StreamsDirection.IN))
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		byte[] wanted = res.getChunks();
+		long start = System.currentTimeMillis();
+		int sent = 0;
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			FileChannel fc = fis.getChannel();
+			for (int i = 0; i < offsets.size(); i++) {
+				if (0 == (wanted[i / 8] & (1 << (i % 8))))
+					continue;
+				if (channel.sendBody(fc, offsets.get(i), lengths.get(i), null) != lengths.get(i))
+					throw new EOFException("File '" + target + "' shrank while sending it");
+				sent++;
+			}
+		} catch (IOException e) {
+			reusable = false;
+			cliBashln("I/O error while transfering file '" + target + "'");
+			System.out.println("IOException: " + e.getMessage());
+			e.printStackTrace();
+			return;
+		} finally {
+			try {
+				if (null != fis) fis.close();
+			} catch (IOException e) {
+				cliBashln("Unable to close input stream on file " + file.getName());
+			}
+		}
+		Response ack = readResponse();
+		if (null == ack)
+			return; //error has been displayed by readResponse
+		if (null != ack.getMessage() && !ack.getMessage().isEmpty())
+			cliBashln("Remote message: " + ack.getMessage());
+		cliBashln("Sent " + sent + " of " + offsets.size() + " chunk(s), " + res.getLength() +
+				" of " + r.getFileSize() + " bytes, in " + (System.currentTimeMillis() - start) +
+				" miliseconds.");
+		cliBashln("----Successfully executed 'cs " + target +"' command----");
+	}
+
+	/**
+	 * Transfers the given files at the same time over one multiplexed
+	 * connection, as many at once as the server serves. Without
+	 * multiplexing the files are transferred one after the other.
+	 * @param names
+	 * @param upload true to send the files, false to receive them
+	 */
+	private static void transferAll(String[] names, final boolean upload) {
+		if (! openMux()) {
+			for (String name : names) {
+				if (upload)
+					sendFile(null, name);
+				else
+					receiveFile(null, name);
+				closeStreamsAndConnection();
+			}
+			return;
+		}
+		final Queue<String> pending = new ConcurrentLinkedQueue<String>(Arrays.asList(names));
+		final AtomicInteger transferred = new AtomicInteger();
+		Thread[] workers = new Thread[Math.min(muxLimit, names.length)];
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					String name;
+					while (null != (name = pending.poll())) {
+						MuxStream stream;
+						try {
+							stream = mux.openStream();
+						} catch (IOException e) {
+							cliBashln("Connection lost before transferring '" + name + "'");
+							return;
+						}
+						try {
+							if (upload ? sendFile(stream, name) : receiveFile(stream, name))
+								transferred.incrementAndGet();
+						} finally {
+							try {
+								stream.close();
+							} catch (IOException e) {
+								//only the stream, nothing to do
+							}
+						}
+					}
+				}
+			}, "transfer-" + i);
+			workers[i].start();
+		}
+		for (Thread t : workers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				cliBashln("Interrupted while waiting for the transfers");
+			}
+		}
+		cliBashln("----Transferred " + transferred.get() + " of " + names.length + " file(s) over " +
+				workers.length + " stream(s) in " + (System.currentTimeMillis() - start) + " miliseconds----");
+	}
+
+	//----BATCHES-------------------------------------------------------------//
+	/**
+	 * @return true if the server takes the batch requests; the first command
+	 * connects to find out
+	 */
+	private static boolean hasBatches() {
+		return isNegotiated() && batches;
+	}
+	/**
+	 * Connects ahead of the request, like {@link #hasBatches()}.
+	 * @return true if the server reports its counters
+	 */
+	private static boolean hasStats() {
+		return isNegotiated() && stats;
+	}
+	/**
+	 * Connects unless done already, so that the options the server agreed
+	 * on are known before the request is sent.
+	 * @return false in legacy mode or if the connection failed
+	 */
+	private static boolean isNegotiated() {
+		if (null == conn && ! legacy) {
+			connectToServer();
+			try {
+				openChannel();
+				reusable = true;
+				lastUsed = System.currentTimeMillis();
+			} catch (IOException e) {
+				cliBashln("Error opening connection to server.");
+				System.out.println("IOException: " + e.getMessage());
+				closeStreamsAndConnection();
+				return false;
+			}
+		}
+		return ! legacy;
+	}
+	/**
+	 * @param args
+	 * @return true for a single name with wildcards
+	 */
+	private static boolean isPattern(String[] args) {
+		return 1 == args.length && (args[0].indexOf('*') >= 0 || args[0].indexOf('?') >= 0);
+	}
+	/**
+	 * A batch request for the given names, or the given pattern.
+	 * @param type
+	 * @param args
+	 * @return
+	 */
+	private static Request batchRequest(MsgType type, String[] args) {
+		Request r = new Request(type);
+		if (isPattern(args)) {
+			r.setFilter(args[0]);
+			return r;
+		}
+		List<FileEntry> entries = new ArrayList<FileEntry>(args.length);
+		for (String name : args)
+			entries.add(new FileEntry(name, -1, null));
+		r.setEntries(entries);
+		return r;
+	}
+	/**
+	 * Receives many files in one {@link MsgType#BR} exchange: the server lists
+	 * them, a folder standing for the files of its whole tree, then sends them
+	 * one after the other, each behind a header with its size and checksum.
+	 * Writer threads move the files in place, creating their folders, while
+	 * the next ones arrive. Falls back to {@link #transferAll} on servers
+	 * without batches.
+	 * @param args the names, or a single pattern
+	 */
+	private static void receiveBatch(String[] args) {
+		if (! isLocalDirOK())
+			return;
+		if (! hasBatches()) {
+			if (isPattern(args))
+				cliBashln("The server does not take batches, name the files instead of '" + args[0] + "'");
+			else
+				transferAll(args, false);
+			return;
+		}
+		if (! writeRequest(batchRequest(MsgType.BR, args)))
+			return;
+		Response res = readResponse();
+		if (null == res)
+			return; //error has been displayed by readResponse
+		if (MsgType.BR != res.getType() || null == res.getEntries()) {
+			printUnexpectedResponse(res);
+			return;
+		}
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		List<FileEntry> files = res.getEntries();
+		long start = System.currentTimeMillis();
+		AtomicInteger received = new AtomicInteger();
+		WriteBehind writer = new WriteBehind();
+		try {
+			for (FileEntry e : files) {
+				String problem = receiveBatchFile(e.getName(), writer, received);
+				if (! reusable)
+					return; //the batch can not go on, the error has been displayed
+				if (null != problem)
+					cliBashln(e.getName() + "\t" + problem);
+			}
+		} finally {
+			writer.finish();
+		}
+		res = readResponse();
+		if (null == res)
+			return;
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		cliBashln("----Received " + received.get() + " of " + files.size() + " file(s) in " +
+				(System.currentTimeMillis() - start) + " miliseconds----");
+	}
+	/**
+	 * Receives a file of a batch, behind its header, and leaves it to the
+	 * writer threads to move in place. Files already here are received all
+	 * the same, and thrown away.
+	 * @param name
+	 * @param writer
+	 * @param received counts the files saved
+	 * @return null once handed to the writers, else why it was not received;
+	 * the connection is marked as not reusable if the batch can not go on
+	 */
+	private static String receiveBatchFile(final String name, WriteBehind writer,
+			final AtomicInteger received) {
+		Object obj = null;
+		try {
+			obj = channel.readMessage();
+		} catch (IOException e) {
+			System.out.println("IOException: " + e.getMessage());
+		} catch (ClassNotFoundException e) {
+			System.out.println("ClassNotFoundException: " + e.getMessage());
+		}
+		if (! (obj instanceof Response) || MsgType.BR != ((Response) obj).getType()) {
+			reusable = false;
+			if (obj instanceof Response)
+				printErrorResponse(obj); //the server gave up on the batch
+			else
+				cliBashln("Error reading the header of '" + name + "' from server.");
+			return null;
+		}
+		Response h = (Response) obj;
+		if (Codes.ERR == h.getCode())
+			return h.getMessage();
+		if (! name.equals(h.getMessage()) || h.getFileSize() < 0) {
+			reusable = false;
+			cliBashln("Unexpected header for '" + name + "' from server.");
+			return null;
+		}
+		File tmp;
+		RandomAccessFile raf;
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+			tmp = File.createTempFile("batch-", PART_SUFFIX, localDir);
+			raf = new RandomAccessFile(tmp, "rw");
+		} catch (NoSuchAlgorithmException e) {
+			reusable = false; //the body is on its way
+			cliBashln("Error creating MessageDigest with MD5 algorithm");
+			return null;
+		} catch (IOException e) {
+			reusable = false;
+			cliBashln("Error opening out stream on '" + name + "'");
+			System.out.println("IOException: " + e.getMessage());
+			return null;
+		}
+		long written = 0;
+		try {
+			written = channel.receiveBody(raf.getChannel(), 0, h.getFileSize(), md);
+		} catch (UnexpectedMessageException e) {
+			reusable = false;
+			printErrorResponse(e.getReceived());
+		} catch (IOException e) {
+			reusable = false;
+			cliBashln("I/O error while writing into file '" + name + "'");
+			System.out.println("IOException: " + e.getMessage());
+		} finally {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				System.out.println("IOException: " + e.getMessage());
+			}
+		}
+		String checksum = h.getChecksum();
+		if (reusable && written != h.getFileSize()) {
+			reusable = false;
+			cliBashln("----Size failure: " + h.getFileSize() +
+					" (B on source) vs " + written + " (B downloaded)");
+		}
+		if (reusable && null == checksum) {
+			try {
+				checksum = channel.readTrailer();
+			} catch (UnexpectedMessageException e) {
+				reusable = false;
+				printErrorResponse(e.getReceived());
+			} catch (IOException e) {
+				reusable = false;
+				cliBashln("Error reading the checksum of '" + name + "'");
+				System.out.println("IOException: " + e.getMessage());
+			}
+		}
+		if (! reusable) {
+			tmp.delete();
+			return null;
+		}
+		String resultChecksum = Util.calcMD5(md.digest());
+		if (! checksum.contentEquals(resultChecksum)) {
+			tmp.delete();
+			return "Checksum failure: " + checksum + " (source) vs " + resultChecksum + " (downloaded)";
+		}
+		final File file = FileTree.resolve(localDir, name);
+		if (null == file) {
+			tmp.delete();
+			return "Invalid file name '" + name + "'";
+		}
+		final File downloaded = tmp;
+		writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				String problem = saveBatchFile(downloaded, file, name);
+				if (null == problem)
+					received.incrementAndGet();
+				cliBashln(name + "\t" + (null == problem ? "OK" : problem));
+			}
+		});
+		return null;
+	}
+	/**
+	 * Moves a received file of a batch in place, creating its folders.
+	 * Runs on the writer threads.
+	 * @param tmp
+	 * @param file
+	 * @param name
+	 * @return null once saved, else why it was not
+	 */
+	private static String saveBatchFile(File tmp, File file, String name) {
+		if (file.exists()) {
+			tmp.delete();
+			return "File '" + name + "' already exists in local dir";
+		}
+		File parent = file.getParentFile();
+		if (! (parent.mkdirs() || parent.isDirectory()) || ! tmp.renameTo(file)) {
+			tmp.delete();
+			return "Error renaming '" + tmp.getName() + "' to '" + name + "'";
+		}
+		return null;
+	}
+	/**
+	 * Sends many files in one {@link MsgType#BS} exchange: the server answers
+	 * with the ones it takes, which then follow one after the other, each
+	 * behind a header with its size and checksum. A folder stands for the
+	 * files of its whole tree, sent with their paths. Falls back to
+	 * {@link #transferAll} on servers without batches.
+	 * @param args the names, or a single pattern of local files
+	 */
+	private static void sendBatch(String[] args) {
+		if (! isLocalDirOK())
+			return;
+		String[] names = args;
+		if (isPattern(args)) {
+			List<String> matching = new ArrayList<String>();
+			for (File f : localDir.listFiles())
+				if ((f.isFile() || f.isDirectory()) && Util.matches(args[0], f.getName()))
+					matching.add(f.getName());
+			names = matching.toArray(new String[matching.size()]);
+			Arrays.sort(names);
+		}
+		List<FileEntry> entries = new ArrayList<FileEntry>(names.length);
+		for (String name : names) {
+			while (name.length() > 1 && FileTree.SEPARATOR == name.charAt(name.length() - 1))
+				name = name.substring(0, name.length() - 1);
+			File file = FileTree.resolve(localDir, name);
+			if (null != file && file.isDirectory()) {
+				for (String inside : FileTree.walk(localDir, name, null))
+					entries.add(new FileEntry(inside, FileTree.resolve(localDir, inside).length(), null));
+			} else if (null != file && file.isFile() && file.canRead())
+				entries.add(new FileEntry(name, file.length(), null));
+			else
+				cliBashln(name + "\tFile '" + name + "' not found in local dir");
+		}
+		if (entries.isEmpty()) {
+			cliBashln("----No files to send----");
+			return;
+		}
+		if (! hasBatches()) {
+			String[] found = new String[entries.size()];
+			for (int i = 0; i < found.length; i++)
+				found[i] = entries.get(i).getName();
+			transferAll(found, true);
+			return;
+		}
+		Request r = new Request(MsgType.BS);
+		r.setEntries(entries);
+		if (! writeRequest(r))
+			return;
+		Response res = readResponse();
+		if (null == res)
+			return; //error has been displayed by readResponse
+		if (MsgType.BS != res.getType() || null == res.getEntries()) {
+			printUnexpectedResponse(res);
+			return;
+		}
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		long start = System.currentTimeMillis();
+		long bytes = 0;
+		List<FileEntry> accepted = res.getEntries();
+		List<File> paths = new ArrayList<File>(accepted.size());
+		for (FileEntry e : accepted)
+			paths.add(FileTree.resolve(localDir, e.getName()));
+		ReadAhead readAhead = new ReadAhead(paths);
+		readAhead.start();
+		try {
+			for (int i = 0; i < accepted.size(); i++) {
+				readAhead.reached(i);
+				long sent = sendBatchFile(accepted.get(i).getName());
+				if (! reusable)
+					return; //the batch can not go on, the error has been displayed
+				if (sent > 0)
+					bytes += sent;
+			}
+		} finally {
+			readAhead.stop();
+		}
+		res = readResponse();
+		if (null == res)
+			return;
+		for (FileEntry e : entries)
+			if (null != res.getFiles() && res.getFiles().containsKey(e.getName()))
+				cliBashln(e.getName() + "\t" + res.getFiles().get(e.getName()));
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		cliBashln("----Sent " + bytes + " bytes in " +
+				(System.currentTimeMillis() - start) + " miliseconds----");
+	}
+	/**
+	 * Sends a file of a batch, behind its header; a file that can not be
+	 * read is announced with no size.
+	 * @param name
+	 * @return the bytes sent, -1 if the file was not; the connection is
+	 * marked as not reusable if the batch can not go on
+	 */
+	private static long sendBatchFile(String name) {
+		File file = FileTree.resolve(localDir, name);
+		Request h = new Request(MsgType.BS);
+		h.setMessage(name);
+		h.setFileSize(-1);
+		FileInputStream fis = null;
+		MessageDigest md = null;
+		try {
+			try {
+				if (null == file)
+					throw new FileNotFoundException(name);
+				fis = new FileInputStream(file);
+				h.setFileSize(fis.getChannel().size());
+				if (channel.hasTrailers())
+					md = MessageDigest.getInstance("MD5");
+				else
+					h.setChecksum(checksumOf(file));
+			} catch (FileNotFoundException e) {
+				cliBashln("File '" + name + "' not found in local dir");
+			} catch (NoSuchAlgorithmException e) {
+				cliBashln("Error creating MessageDigest with MD5 algorithm");
+				h.setFileSize(-1);
+			}
+			if (null == md && null == h.getChecksum())
+				h.setFileSize(-1);
+			channel.writeRequest(h);
+			if (h.getFileSize() < 0)
+				return -1;
+			channel.sendBody(fis.getChannel(), 0, h.getFileSize(), md);
+			if (null != md)
+				channel.writeTrailer(Util.calcMD5(md.digest()));
+			return h.getFileSize();
+		} catch (IOException e) {
+			reusable = false;
+			cliBashln("I/O error while sending file '" + name + "'");
+			System.out.println("IOException: " + e.getMessage());
+			return -1;
+		} finally {
+			try {
+				if (null != fis) fis.close();
+			} catch (IOException e) {
+				System.out.println("IOException: " + e.getMessage());
+			}
+		}
+	}
+	/**
+	 * Deletes many remote files in one {@link MsgType#BD} exchange. Falls
+	 * back to one request per file on servers without batches.
+	 * @param args the names, or a single pattern
+	 */
+	private static void deleteBatch(String[] args) {
+		if (! hasBatches()) {
+			if (isPattern(args)) {
+				cliBashln("The server does not take batches, name the files instead of '" + args[0] + "'");
+				return;
+			}
+			for (String name : args) {
+				target = name;
+				deleteRemoteFile();
+				closeStreamsAndConnection();
+			}
+			return;
+		}
+		if (! writeRequest(batchRequest(MsgType.BD, args)))
+			return;
+		Response res = readResponse();
+		if (null == res)
+			return; //error has been displayed by readResponse
+		if (MsgType.BD != res.getType()) {
+			printUnexpectedResponse(res);
+			return;
+		}
+		if (null != res.getFiles())
+			for (String name : new TreeMap<String, String>(res.getFiles()).keySet())
+				cliBashln(name + "\t" + res.getFiles().get(name));
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		cliBashln("----Successfully executed 'bd' command----");
+	}
+
+	/**
+	 * Receives a file over several connections at the same time, each one
+	 * carrying a range of it written at its place in a preallocated file.
+	 * The whole file is checked against its checksum once all the ranges
+	 * have arrived.
+	 * @param name
+	 */
+	private static void receiveParallel(final String name) {
+		if (! isLocalDirOK())
+			return;
+		File file = new File(localDir.getAbsolutePath() + File.separator + name);
+		if (file.exists()) {
+			cliBashln("File '" + name + "' already exists in local dir");
+			return;
+		}
+		//the first byte tells the size and the checksum of the whole file
+		Request r = new Request(MsgType.R);
+		r.setMessage(name);
+		r.setLength(1);
+		if (! writeRequest(r))
+			return;
+		Response res = readResponse();
+		if (null == res)
+			return; //error has been displayed by readResponse
+		if(0 != res.getType().compareTo(MsgType.R)) {
+			printUnexpectedResponse(res);
+			return;
+		}
+		if (null != res.getMessage() && !res.getMessage().isEmpty())
+			cliBashln("Remote message: " + res.getMessage());
+		long fileLength = res.getFileSize();
+		String finalChecksum = res.getChecksum();
+		cliBashln("File size: " + fileLength + " bytes");
+		if (null != finalChecksum)
+			cliBashln("File checksum: " + finalChecksum);
+		//the .part of an interrupted 'r' is left alone, it may still be resumed
+		File part = new File(localDir.getAbsolutePath() + File.separator + name + PARALLEL_SUFFIX);
+		RandomAccessFile raf = null;
+		boolean received = false;
+		int used = 1;
+		long start = System.currentTimeMillis();
+		try {
+			raf = new RandomAccessFile(part, "rw");
+			raf.setLength(fileLength);
+			//servers ignoring ranges send the whole file right away
+			long offset = res.getOffset();
+			long count = res.bodyLength(fileLength);
+			if (offset < 0 || count < 0 || offset + count > fileLength)
+				throw new IOException("Invalid range " + offset + "+" + count + " of " + fileLength + " bytes");
+			if (channel.receiveBody(raf.getChannel(), offset, count, null) != count)
+				throw new IOException("Connection closed during the transfer");
+			if (null == finalChecksum)
+				finalChecksum = readTrailer(channel, name);
+			if (null != finalChecksum) {
+				used = fetchRanges(name, raf.getChannel(), fileLength, finalChecksum, offset + count);
+				received = used > 0;
+			}
+		} catch (UnexpectedMessageException e) {
+			reusable = false;
+			printErrorResponse(e.getReceived());
+		} catch (IOException e) {
+			reusable = false;
+			cliBashln("I/O error while receiving file '" + name + "'");
+			System.out.println("IOException: " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			try {
+				if (null != raf) raf.close();
+			} catch (IOException e) {
+				cliBashln("Error closing stream on file '" + name + "'");
+				System.out.println("IOException: " + e.getMessage());
+				received = false;
+			}
+		}
+		if (! received) {
+			cliBashln("File '" + name +"' will not be saved.");
+			part.delete();
+			return;
+		}
+		//a digest can not be put together from the ranges, the file is hashed once more
+		String resultChecksum = checksumOf(part);
+		if (! finalChecksum.contentEquals(resultChecksum)) {
+			cliBashln("----Checksum failure: " + finalChecksum +
+					" (source) vs " + resultChecksum + " (downloaded)");
+			cliBashln("File '" + name +"' will not be saved.");
+			part.delete();
+		} else if (! part.renameTo(file)) {
+			cliBashln("Error renaming '" + part.getName() + "' to '" + name + "'");
+		} else {
+			cliBashln("----Checksums coincide----");
+			cliBashln("----Received " + fileLength + " bytes over " + used + " connection(s) in " +
+					(System.currentTimeMillis() - start) + " miliseconds----");
+			cliBashln("----Successfully executed 'pr " + name +"' command----");
+		}
+	}
+	/**
+	 * Sends a file over several connections at the same time, each one
+	 * carrying a range of it, which the server writes at its place. The
+	 * server verifies the whole file once the last range has arrived.
+	 * @param name
+	 */
+	private static void sendParallel(final String name) {
+		if (! isLocalDirOK())
+			return;
+		final File file = new File(localDir.getAbsolutePath() + File.separator + name);
+		if (! file.isFile() || ! file.canRead()) {
+			cliBashln("File '" + name + "' not found in local dir");
+			return;
+		}
+		final long size = file.length();
+		if (legacy || 0 == size) {
+			//object streams servers do not confirm the parts
+			sendFile(null, name);
+			return;
+		}
+		//the ranges can not be hashed apart, the server checks the whole file
+		final String checksum = checksumOf(file);
+		if (null == checksum || checksum.isEmpty()) {
+			cliBashln("Error creating checksum for '" + name + "'");
+			return;
+		}
+		cliBashln("File checksum on this side: " + checksum);
+		long start = System.currentTimeMillis();
+		int used = transferRanges(0, size, new RangeTransfer() {
+			@Override
+			public String transfer(long offset, long length) {
+				return sendRange(file, name, size, checksum, offset, length);
+			}
+		});
+		if (0 == used) {
+			cliBashln("File '" + name + "' was not sent.");
+			return;
+		}
+		cliBashln("----Sent " + size + " bytes over " + used + " connection(s) in " +
+				(System.currentTimeMillis() - start) + " miliseconds----");
+		cliBashln("----Successfully executed 'ps " + name +"' command----");
+	}
+	/**
+	 * Sends one range of a file on a connection of its own, waiting and
+	 * asking again while the server is busy.
+	 * @param file
+	 * @param name
+	 * @param size
+	 * @param checksum of the whole file
+	 * @param offset
+	 * @param length
+	 * @return null once the server confirmed the range, the reason of the failure otherwise
+	 */
+	private static String sendRange(File file, String name, long size, String checksum,
+			long offset, long length) {
+		Request r = new Request(MsgType.S);
+		r.setMessage(name);
+		r.setFileSize(size);
+		r.setChecksum(checksum);
+		r.setOffset(offset);
+		r.setLength(length);
+		String range = "bytes " + offset + "-" + (offset + length - 1) + " of '" + name + "'";
+		for (int attempt = 1; ; attempt++) {
+			MsgChannel ch = null;
+			FileInputStream fis = null;
+			try {
+				ch = openTransferChannel();
+				ch.writeRequest(r);
+				Object obj = ch.readMessage();
+				if (! (obj instanceof Response))
+					return "Unexpected answer from server for " + range;
+				Response res = (Response) obj;
+				if (null != res.getCode() && 0 == res.getCode().compareTo(Codes.ERR)) {
+					if (res.getRetryAfter() > 0 && attempt < RANGE_ATTEMPTS) {
+						Thread.sleep(res.getRetryAfter());
+						continue;
+					}
+					return "Error response from server for " + range + ": " + res.getMessage();
+				}
+				//servers not knowing about parts would wait for the whole file
+				if (MsgType.S != res.getType() || res.getOffset() != offset || res.getLength() != length)
+					return "Server can not receive parts of '" + name + "', send it with 's'";
+				fis = new FileInputStream(file);
+				ch.sendBody(fis.getChannel(), offset, length, null);
+				obj = ch.readMessage();
+				if (obj instanceof Response && null != ((Response) obj).getCode() &&
+						0 == ((Response) obj).getCode().compareTo(Codes.ERR))
+					return "Error response from server for " + range + ": " + ((Response) obj).getMessage();
+				if (! (obj instanceof Response))
+					return "Unexpected answer from server for " + range;
+				return null;
+			} catch (IOException e) {
+				return "I/O error while sending " + range + ": " + e.getMessage();
+			} catch (ClassNotFoundException e) {
+				return "Error understanding response from server for " + range;
+			} catch (InterruptedException e) {
+				return "Interrupted while waiting for " + range;
+			} finally {
+				try {
+					if (null != fis) fis.close();
+					if (null != ch) ch.close();
+				} catch (IOException e) {
+					//the range is already sent or given up
+				}
+			}
+		}
+	}
+	/**
+	 * Fetches the bytes of a file from the given position to its end, split
+	 * in ranges fetched at the same time over their own connections.
+	 * @param name
+	 * @param dst the local file, already of the final size
+	 * @param size
+	 * @param checksum of the whole file, a range of another version is refused
+	 * @param from
+	 * @return the number of connections used, counting the command's one;
+	 * 0 if a range could not be fetched, the error has been displayed
+	 */
+	private static int fetchRanges(final String name, final FileChannel dst, final long size,
+			final String checksum, long from) {
+		if (from >= size)
+			return 1;
+		int used = transferRanges(from, size, new RangeTransfer() {
+			@Override
+			public String transfer(long offset, long length) {
+				return fetchRange(name, dst, size, checksum, offset, length);
+			}
+		});
+		return used > 0 ? used + 1 : 0;
+	}
+	/**
+	 * One range of a file moved over a connection of its own.
+	 */
+	private static interface RangeTransfer {
+		/**
+		 * @param offset
+		 * @param length
+		 * @return null once the range has been moved, the reason of the failure otherwise
+		 */
+		String transfer(long offset, long length);
+	}
+	/**
+	 * Splits the bytes of a file from the given position to its end in
+	 * ranges, moved at the same time by their own threads.
+	 * @param from
+	 * @param size
+	 * @param t
+	 * @return the number of ranges, 0 if one of them failed, the error has been displayed
+	 */
+	private static int transferRanges(long from, long size, final RangeTransfer t) {
+		long left = size - from;
+		int n = (int) Math.max(1, Math.min(connections, (left + MIN_RANGE - 1) / MIN_RANGE));
+		long per = (left + n - 1) / n;
+		n = (int) ((left + per - 1) / per);
+		cliBashln("Starting transferring " + left + " bytes over " + n + " connection(s)");
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] workers = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			final long offset = from + i * per;
+			final long length = Math.min(per, size - offset);
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					String error = t.transfer(offset, length);
+					if (null != error)
+						failure.compareAndSet(null, error);
+				}
+			}, "range-" + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				failure.compareAndSet(null, "Interrupted while waiting for the ranges");
+			}
+		}
+		if (null != failure.get()) {
+			cliBashln(failure.get());
+			return 0;
+		}
+		return n;
+	}
+	/**
+	 * Fetches one range of a file on a connection of its own, waiting and
+	 * asking again while the server is busy.
+	 * @param name
+	 * @param dst
+	 * @param size expected size of the whole file
+	 * @param checksum expected checksum of the whole file
+	 * @param offset
+	 * @param length
+	 * @return null once the range has been written, the reason of the failure otherwise
+	 */
+	private static String fetchRange(String name, FileChannel dst, long size, String checksum,
+			long offset, long length) {
+		Request r = new Request(MsgType.R);
+		r.setMessage(name);
+		r.setOffset(offset);
+		r.setLength(length);
+		String range = "bytes " + offset + "-" + (offset + length - 1) + " of '" + name + "'";
+		for (int attempt = 1; ; attempt++) {
+			MsgChannel ch = null;
+			try {
+				ch = openTransferChannel();
+				ch.writeRequest(r);
+				Object obj = ch.readMessage();
+				if (! (obj instanceof Response))
+					return "Unexpected answer from server for " + range;
+				Response res = (Response) obj;
+				if (null != res.getCode() && 0 == res.getCode().compareTo(Codes.ERR)) {
+					if (res.getRetryAfter() > 0 && attempt < RANGE_ATTEMPTS) {
+						Thread.sleep(res.getRetryAfter());
+						continue;
+					}
+					return "Error response from server for " + range + ": " + res.getMessage();
+				}
+				if (MsgType.R != res.getType() || res.getFileSize() != size || res.getOffset() != offset ||
+						res.bodyLength(size) != length || ! checksum.equals(res.getChecksum()))
+					return "File '" + name + "' changed on the server during the transfer";
+				if (ch.receiveBody(dst, offset, length, null) != length)
+					return "Connection closed while receiving " + range;
+				return null;
+			} catch (UnexpectedMessageException e) {
+				Object received = e.getReceived();
+				return "Error response from server for " + range +
+						(received instanceof Response ? ": " + ((Response) received).getMessage() : "");
+			} catch (IOException e) {
+				return "I/O error while receiving " + range + ": " + e.getMessage();
+			} catch (ClassNotFoundException e) {
+				return "Error understanding response from server for " + range;
+			} catch (InterruptedException e) {
+				return "Interrupted while waiting for " + range;
+			} finally {
+				try {
+					if (null != ch) ch.close();
+				} catch (IOException e) {
+					//the range is already written or given up
+				}
+			}
+		}
+	}
+
+	//----INTERNAL PROCESSING--------------------------------------------//
+	/**
+	 * Checks the arguments list to assign values to the fields.
+	 * Terminates the program's execution in case of error.
+	 * @param args
+	 */
+	private static void processArguments(String[] args) {
+		if (args.length < 3){
+			cliBashln("Incorrect arguments.");
+			cliBashln("Usage: java FileClient hostname port localFolder [-legacy] [-nosession] [-nomux] [-connections=N] [-compress=1-9] [-socketBuffer=bytes]");
+			System.exit(1);
+		}
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].contentEquals("-legacy"))
+				legacy = true;
+			else if (args[i].contentEquals("-nosession"))
+				useSessions = false;
+			else if (args[i].contentEquals("-nomux"))
+				useMux = false;
+			else if (args[i].startsWith("-connections=")) {
+				try {
+					connections = Integer.parseInt(args[i].substring("-connections=".length()));
+				} catch (NumberFormatException e) {
+					connections = 0;
+				}
+				if (connections < 1) {
+					cliBashln("Invalid number of connections: " + args[i]);
+					System.exit(1);
+				}
+			}
+			else if (args[i].startsWith("-compress=")) {
+				try {
+					compressLevel = Integer.parseInt(args[i].substring("-compress=".length()));
+				} catch (NumberFormatException e) {
+					compressLevel = -1;
+				}
+				if (compressLevel < 1 || compressLevel > 9) {
+					cliBashln("Invalid compression level: " + args[i]);
+					System.exit(1);
+				}
+			}
+			else if (args[i].startsWith("-socketBuffer=")) {
+				try {
+					socketBuffer = Integer.parseInt(args[i].substring("-socketBuffer=".length()));
+				} catch (NumberFormatException e) {
+					socketBuffer = -1;
+				}
+				if (socketBuffer < 0) {
+					cliBashln("Invalid socket buffer size: " + args[i]);
+					System.exit(1);
+				}
+			}
+			else {
+				cliBashln("Unknown option: " + args[i]);
+				System.exit(1);
+			}
+		}
+		hostName = args[0];
+		try{
+			hostPort = Integer.parseInt(args[1]);
+		} catch (NumberFormatException e) {
+			cliBashln("Number format error for port number: " + args[1]);
+			System.exit(1);
+		}
+		localDir = new File(args[2]);
+		if (! localDir.isDirectory()) {
+			cliBashln("File " + args[2] + " is not a folder.");
+			System.exit(1);
+		} else
+			cliBashln("Incoming files will be stored into " + args[2]);
+	}
+	/**
+	 * Given the <strong>trimmed</strong> option chosen by the user,
+	 * analyzes the contents and takes the decisions of what should
+	 * be done next.
+	 */
+	private static void processOption() {
+		String[] cmd = opc.split(delimiter, 2);
+		opc = cmd[0].toLowerCase();
+		if (opc.contentEquals("q")) {
+			finished = true;
+			return;
+		}
+		if (opc.contentEquals("lc")) {
+			listLocalDir();
+			return;
+		}
+		if (opc.contentEquals("lr")) {
+			listRemoteDir(cmd.length == 2 ? cmd[1].trim().split(" +") : new String[0]);
+			return;
+		}
+		if (opc.contentEquals("st")) {
+			showServerStats();
+			return;
+		}
+		if (cmd.length == 2) {
+			target = cmd[1];
+			if (opc.contentEquals("s")) {
+				sendFile();
+				return;
+			}
+			if (opc.contentEquals("r")) {
+				receiveFile();
+				return;
+			}
+			if (opc.contentEquals("dl")) {
+				deleteLocalFile();
+				return;
+			}
+			if (opc.contentEquals("dr")) {
+				deleteRemoteFile();
+				return;
+			}
+			if (opc.contentEquals("mr")) {
+				transferAll(target.trim().split(" +"), false);
+				return;
+			}
+			if (opc.contentEquals("ms")) {
+				transferAll(target.trim().split(" +"), true);
+				return;
+			}
+			if (opc.contentEquals("pr")) {
+				receiveParallel(target);
+				return;
+			}
+			if (opc.contentEquals("ps")) {
+				sendParallel(target);
+				return;
+			}
+			if (opc.contentEquals("ds")) {
+				sendDelta();
+				return;
+			}
+			if (opc.contentEquals("cs")) {
+				sendChunks();
+				return;
+			}
+			if (opc.contentEquals("br")) {
+				receiveBatch(target.trim().split(" +"));
+				return;
+			}
+			if (opc.contentEquals("bs")) {
+				sendBatch(target.trim().split(" +"));
+				return;
+			}
+			if (opc.contentEquals("bd")) {
+				deleteBatch(target.trim().split(" +"));
+				return;
+			}
+		}
+		cliBashln("Unknown command. Try again.");
+		return;
+	}
+	/**
+	 * Checks if there's any error regarding the local folder.
+	 * @return true if local folder has read/write access, false in any other cases
+	 */
+	private static boolean isLocalDirOK() {
+		if (null == localDir || ! localDir.exists() || ! localDir.isDirectory()) {
+			cliBashln("Have lost access to local dir " + localDir.getAbsolutePath());
+			return false;
+		}
+		if (! localDir.canRead() || ! localDir.canWrite()) {
+			cliBashln("Can't read/write in local dir"+ localDir.getAbsolutePath());
+			return false;
+		}
+		return true;
+	}
+	//----STREAMS---------------------------------------------------------//
+	/**
+	 * Instantiate the {@link BufferedReader} which will be used 
+	 * to read from console stream {@link System#in}.
+	 */
+	private static void openConsoleInputStream() {
+		InputStreamReader isr = new InputStreamReader(System.in, Util.SHARED_CHARSET);
+		consoleReader = new BufferedReader(isr);
+	}
+	/**
+	 * Closes the reader.
+	 */
+	private static void closeConsoleInputStream() {
+		try {
+			if (null != consoleReader) consoleReader.close();
+		} catch (IOException e) {
+			cliBashln("Error closing console stream.");
+			System.out.println("IOException: " + e.getMessage());
+		}
+	}
+	/**
+	 * Opens the message channel on the opened socket connection.
+	 * Unless told otherwise, tries the binary frame protocol first and
+	 * falls back to object streams if the server does not answer the handshake.
+	 * @throws IOException 
+	 */
+	private static void openChannel() throws IOException {
+		if (null == conn) {
+			throw new IOException("Connection to server has not been initiated or has been lost, socket is null.");
+		}
+		if (! legacy) {
 			try {
-				ois = new ObjectInputStream(conn.getInputStream());
+				FrameMsgChannel frames = MsgChannel.connect(conn);
+				if (negotiate(frames)) {
+					mux = frames.multiplex(true, 0);
+					return;
+				}
+				channel = frames;
+				return;
 			} catch (IOException e) {
-				cliBashln("Error opening input stream to server.");
-				System.out.println("IOException: " + e.getMessage());
-				e.printStackTrace();
+				cliBashln("Server does not speak the binary frame protocol (" + e.getMessage() + ")," +
+						" falling back to object streams.");
+				legacy = true;
+				closeStreamsAndConnection();
+				connectToServer();
+			}
+		}
+		channel = new ObjectMsgChannel(conn, conn.getInputStream());
+	}
+	/**
+	 * Offers our options to the server and stores the ones it accepted.
+	 * @param frames
+	 * @return true if the connection is to be multiplexed
+	 * @throws IOException
+	 */
+	private static boolean negotiate(FrameMsgChannel frames) throws IOException {
+		Hello offer = bodyOptions();
+		if (useSessions)
+			offer.setOption(Frame.OPT_SESSION, null);
+		if (useMux)
+			offer.setOption(Frame.OPT_MUX, null);
+		offer.setOption(Frame.OPT_TRAILER, null);
+		offer.setOption(Frame.OPT_BATCH, null);
+		offer.setOption(Frame.OPT_STATS, null);
+		conn.setSoTimeout(HANDSHAKE_TIMEOUT);
+		long asked = System.nanoTime();
+		frames.writeHello(offer);
+		Hello accepted = frames.readHello();
+		long rtt = System.nanoTime() - asked;
+		conn.setSoTimeout(0);
+		frames.setRawBodies(accepted.hasOption(Frame.OPT_RAW_UPLOAD),
+				accepted.hasOption(Frame.OPT_RAW_DOWNLOAD));
+		frames.setTrailers(accepted.hasOption(Frame.OPT_TRAILER));
+		frames.setCompression(Compression.levelOf(accepted));
+		frames.setChunking(ChunkSizer.maxOf(accepted), rtt);
+		frames.setNegotiated(accepted);
+		batches = accepted.hasOption(Frame.OPT_BATCH);
+		stats = accepted.hasOption(Frame.OPT_STATS);
+		session = accepted.hasOption(Frame.OPT_SESSION);
+		if (session) {
+			try {
+				sessionIdle = Long.parseLong(accepted.getOption(Frame.OPT_SESSION));
+			} catch (NumberFormatException e) {
+				sessionIdle = 0; //no hint, only trust the session right away
+			}
+		}
+		if (accepted.hasOption(Frame.OPT_MUX)) {
+			try {
+				muxLimit = Math.max(1, Integer.parseInt(accepted.getOption(Frame.OPT_MUX)));
+			} catch (NumberFormatException e) {
+				muxLimit = 1;
 			}
-		else
+			return true;
+		}
+		return false;
+	}
+	/**
+	 * Opens a connection of its own for a single transfer, next to the
+	 * command's one. Only the body options are offered, and object streams
+	 * are used if the server does not answer the handshake.
+	 * @return
+	 * @throws IOException
+	 */
+	private static MsgChannel openTransferChannel() throws IOException {
+		InetSocketAddress address = new InetSocketAddress(hostName, hostPort);
+		if (address.isUnresolved())
+			throw new UnknownHostException(hostName);
+		Socket s = openSocket(address);
+		if (! legacy) {
 			try {
-				oos = new ObjectOutputStream(conn.getOutputStream());
+				return openTransferFrames(s);
 			} catch (IOException e) {
-				cliBashln("Error opening output stream to server.");
-				System.out.println("IOException: " + e.getMessage());
-				e.printStackTrace();
+				s.close();
+				legacy = true;
+				s = openSocket(address);
 			}
+		}
+		return new ObjectMsgChannel(s, s.getInputStream());
 	}
 	/**
-	 * Closes the streams and the socket.
+	 * Handshake of {@link #openTransferChannel()}.
+	 * @param s
+	 * @return
+	 * @throws IOException
 	 */
-	private static void closeStreamsAndConnection() {
-		if (null != oos)
+	private static FrameMsgChannel openTransferFrames(Socket s) throws IOException {
+		FrameMsgChannel frames = MsgChannel.connect(s);
+		Hello offer = bodyOptions();
+		s.setSoTimeout(HANDSHAKE_TIMEOUT);
+		long asked = System.nanoTime();
+		frames.writeHello(offer);
+		Hello accepted = frames.readHello();
+		long rtt = System.nanoTime() - asked;
+		s.setSoTimeout(0);
+		frames.setRawBodies(accepted.hasOption(Frame.OPT_RAW_UPLOAD),
+				accepted.hasOption(Frame.OPT_RAW_DOWNLOAD));
+		frames.setCompression(Compression.levelOf(accepted));
+		frames.setChunking(ChunkSizer.maxOf(accepted), rtt);
+		frames.setNegotiated(accepted);
+		return frames;
+	}
+	/**
+	 * Connects through a channel, so uploads can use transferTo, with the
+	 * buffers sized before connecting, see {@link ChunkSizer#tune}.
+	 * @param address
+	 * @return
+	 * @throws IOException
+	 */
+	private static Socket openSocket(InetSocketAddress address) throws IOException {
+		SocketChannel sc = SocketChannel.open();
+		try {
+			ChunkSizer.tune(sc.socket(), socketBuffer);
+			sc.connect(address);
+		} catch (IOException e) {
+			sc.close();
+			throw e;
+		}
+		return sc.socket();
+	}
+	/**
+	 * @return an offer of the options on how to send file bodies: compressed
+	 * if asked for, raw otherwise, and in frames up to the size we offer
+	 */
+	private static Hello bodyOptions() {
+		Hello offer = new Hello(Frame.VERSION);
+		offer.setOption(Frame.OPT_CHUNK, String.valueOf(ChunkSizer.offer(socketBuffer)));
+		if (compressLevel > 0) {
+			offer.setOption(Frame.OPT_COMPRESS, String.valueOf(compressLevel));
+			return offer;
+		}
+		offer.setOption(Frame.OPT_RAW_DOWNLOAD, null);
+		offer.setOption(Frame.OPT_RAW_UPLOAD, null);
+		return offer;
+	}
+	/**
+	 * Makes sure a multiplexed connection is open, reusing the current one.
+	 * @return false if the server, or this client's options, do not allow it
+	 */
+	private static boolean openMux() {
+		if (null != mux && ! mux.isClosed() &&
+				System.currentTimeMillis() - lastUsed < sessionIdle - IDLE_MARGIN)
+			return true;
+		closeStreamsAndConnection();
+		if (legacy || ! useMux)
+			return false;
+		try {
+			connectToServer();
+			openChannel();
+		} catch (IOException e) {
+			cliBashln("Error opening connection to server.");
+			System.out.println("IOException: " + e.getMessage());
+			return false;
+		}
+		reusable = true;
+		return null != mux;
+	}
+	/**
+	 * On a multiplexed connection, closes the stream of the last command
+	 * but keeps the connection.
+	 */
+	private static void closeCommandStream() {
+		if (null != channel)
 			try {
-				oos.close();
+				channel.close();
 			} catch (IOException e) {
-				cliBashln("Error closing output stream to server.");
-				System.out.println("IOException: " + e.getMessage());
-			} 
-		if (null != ois)
+				//only the stream, nothing to do
+			} finally {
+				channel = null;
+			}
+		if (mux.isClosed())
+			reusable = false;
+	}
+	/**
+	 * Closes the streams and the socket.
+	 */
+	private static void closeStreamsAndConnection() {
+		session = false;
+		reusable = false;
+		if (null != mux) {
+			mux.close();
+			mux = null;
+		}
+		if (null != channel)
 			try {
-				ois.close();
+				channel.close();
 			} catch (IOException e) {
-				cliBashln("Error closing input stream to server.");
+				cliBashln("Error closing streams to server.");
 				System.out.println("IOException: " + e.getMessage());
+			} finally {
+				channel = null;
 			}
 		if (null != conn)
 			try {
@@ -567,7 +2091,10 @@ public class FileClient {
 			cliBash("Trying to establish connection to " + hostName + ":" + hostPort + " ... ");
 		}
 		try {
-			conn = new Socket(hostName, hostPort);
+			InetSocketAddress address = new InetSocketAddress(hostName, hostPort);
+			if (address.isUnresolved())
+				throw new UnknownHostException(hostName);
+			conn = openSocket(address);
 		} catch (UnknownHostException e) {
 			if (establishing)
 				System.out.println("ERROR");
@@ -590,17 +2117,36 @@ public class FileClient {
 		}
 	}
 	/**
-	 * Writes a {@link Request} to the socket's output stream.
+	 * Writes a {@link Request} to the socket's output stream. Reuses the session
+	 * left open by the previous command when there is one, and starts over on
+	 * a new connection if the server already closed it.
 	 * @param r the object to be written
 	 * @return true if the sending finished without error.
 	 */
 	private static boolean writeRequest(Request r) {
+		if (null != channel || null != mux) {
+			if (System.currentTimeMillis() - lastUsed < sessionIdle - IDLE_MARGIN) {
+				try {
+					if (null != mux)
+						channel = mux.openStream();
+					addChecksum(channel, r);
+					channel.writeRequest(r);
+					reusable = true;
+					return true;
+				} catch (IOException e) {
+					//closed by the server meanwhile
+				}
+			}
+			closeStreamsAndConnection();
+		}
 		try {
 			connectToServer();
-			openConnectionStreams(StreamsDirection.OUT);
-			oos.flush();
-			oos.writeObject(r);
-			oos.flush();
+			openChannel();
+			if (null != mux)
+				channel = mux.openStream();
+			addChecksum(channel, r);
+			channel.writeRequest(r);
+			reusable = true;
 			return true;
 		} catch (IOException e) {
 			cliBashln("Error sending request to server, might be the connection has been lost.");
@@ -610,73 +2156,100 @@ public class FileClient {
 		}
 	}
 	/**
-	 * Reads a {@link Response} from the socket input stream.
-	 * @return the object read from server, null if not a Response or if 
-	 * the response included an error code. 
+	 * Writes a {@link Request} on the given stream, or on the command's connection.
+	 * @param stream a stream of the multiplexed connection, null for the usual channel
+	 * @param r
+	 * @return the channel the request went on, null if it could not be sent
 	 */
-	private static Response readResponse() {
-		Object obj = null;
+	private static MsgChannel writeRequest(MuxStream stream, Request r) {
+		if (null == stream)
+			return writeRequest(r) ? channel : null;
 		try {
-			openConnectionStreams(StreamsDirection.IN);
-			obj = ois.readObject();
+			addChecksum(stream, r);
+			stream.writeRequest(r);
+			return stream;
 		} catch (IOException e) {
-			cliBashln("Error reading response from server.");
+			cliBashln("Error sending request to server, might be the connection has been lost.");
 			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			cliBashln("Error understanding response from server.");
-			System.out.println("ClassNotFoundException: " + e.getMessage());
-			e.printStackTrace();
+			return null;
 		}
-		if (null != obj && obj instanceof Response) {
-			Response r = (Response)obj;
-			if (null != r.getCode() && 0 == r.getCode().compareTo(Codes.ERR)) {
-				cliBashln("Error response from server:");
-				cliBashln(r.getMessage());
-			} else return r; 
+	}
+	/**
+	 * Computes the checksum of an upload before its request leaves, unless
+	 * the channel sends it as a trailer once the body has been read anyway.
+	 * @param ch
+	 * @param r
+	 * @throws IOException if the file could not be hashed
+	 */
+	private static void addChecksum(MsgChannel ch, Request r) throws IOException {
+		if (MsgType.S != r.getType() || null != r.getChecksum() || ch.hasTrailers())
+			return;
+		File file = new File(localDir.getAbsolutePath() + File.separator + r.getMessage());
+		r.setChecksum(checksumOf(file));
+		if (null == r.getChecksum() || r.getChecksum().isEmpty()) {
+			r.setChecksum(null);
+			throw new IOException("Error creating checksum for '" + r.getMessage() + "'");
+		}
+	}
+	/**
+	 * Reads the checksum following a body announced without one.
+	 * @param ch
+	 * @param name
+	 * @return null if it could not be read, the error has been displayed
+	 */
+	private static String readTrailer(MsgChannel ch, String name) {
+		try {
+			String checksum = ch.readTrailer();
+			cliBashln("File checksum: " + checksum);
+			return checksum;
+		} catch (UnexpectedMessageException e) {
+			reusable = false;
+			printErrorResponse(e.getReceived());
+		} catch (IOException e) {
+			reusable = false;
+			cliBashln("Error reading the checksum of '" + name + "'");
+			System.out.println("IOException: " + e.getMessage());
+			e.printStackTrace();
 		}
 		return null;
 	}
 	/**
-	 * Reads a Data object from the opened stream.
-	 * It assumes the stream has been opened.
+	 * Reads a {@link Response} from the socket input stream.
+	 * @return the object read from server, null if not a Response or if 
+	 * the response included an error code. 
+	 */
+	private static Response readResponse() {
+		return readResponse(channel);
+	}
+	/**
+	 * Same as {@link #readResponse()}, on the given channel.
+	 * @param ch
 	 * @return
 	 */
-	private static Data readData() {
+	private static Response readResponse(MsgChannel ch) {
 		Object obj = null;
 		try {
-			obj = ois.readObject();
+			obj = ch.readMessage();
 		} catch (IOException e) {
-			cliBashln("Error reading data from server.");
+			reusable = false;
+			cliBashln("Error reading response from server.");
 			System.out.println("IOException: " + e.getMessage());
 			e.printStackTrace();
 		} catch (ClassNotFoundException e) {
-			cliBashln("Error understanding data sent from server.");
+			reusable = false;
+			cliBashln("Error understanding response from server.");
 			System.out.println("ClassNotFoundException: " + e.getMessage());
 			e.printStackTrace();
 		}
-		if (null != obj)
-			if(obj instanceof Data) {
-				return (Data)obj;
-			} else {
-				if (obj instanceof Response) {
-					Response r = (Response) obj;
-					if (null != r.getCode() && 0 == r.getCode().compareTo(Codes.ERR)) {
-						cliBashln("Error response from server:");
-						cliBashln(r.getMessage());
-					}
-				}
-			}
+		if (null != obj && obj instanceof Response) {
+			Response r = (Response)obj;
+			if (null != r.getCode() && 0 == r.getCode().compareTo(Codes.ERR)) {
+				if (r.getRetryAfter() > 0)
+					reusable = false; //turned away, the server closes the connection
+				printErrorResponse(r);
+			} else return r; 
+		} else
+			reusable = false;
 		return null;
 	}
-	/**
-	 * Writes data object to output stream //and flushes the stream.
-	 * @param data
-	 * @throws IOException 
-	 */
-	private static void sendData(Data data) throws IOException {
-		oos.writeObject(data);
-		oos.flush();
-		oos.reset();
-	}
 }
@@ -27,6 +27,19 @@ public class Data implements Serializable {
 		this.data = Arrays.copyOf(src, this.len);
 	}
 	
+	/**
+	 * Like {@link #writeData(byte[])} but keeps <code>src</code> itself when
+	 * it holds exactly the packet, for a sender that serializes the same
+	 * buffer again and again.
+	 * @param src
+	 */
+	public void wrapData(byte[] src) {
+		if (null == src) {
+			return;
+		}
+		this.data = src.length == this.len ? src : Arrays.copyOf(src, this.len);
+	}
+	
 	public byte[] getData() {
 		return this.data;
 	}
@@ -0,0 +1,33 @@
+package red2.f1.msg;
+
+import java.io.Serializable;
+
+/**
+ * A file of a remote listing: its name and its size, both in bytes and
+ * in a readable form.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class FileEntry implements Serializable {
+	/**
+	 * Generated serial ID.
+	 */
+	private static final long serialVersionUID = -2385101377329650214L;
+	private final String name;
+	private final long size;
+	private final String readableSize;
+
+	public FileEntry(String name, long size, String readableSize) {
+		this.name = name;
+		this.size = size;
+		this.readableSize = readableSize;
+	}
+	public String getName() {
+		return name;
+	}
+	public long getSize() {
+		return size;
+	}
+	public String getReadableSize() {
+		return readableSize;
+	}
+}
@@ -0,0 +1,37 @@
+package red2.f1.msg;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Handshake message exchanged at the start of a binary frame connection.
+ * The client offers a set of options, the server answers with the subset
+ * (and the values) it accepted.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Hello {
+	private int version;
+	private Map<String, String> options = new LinkedHashMap<String, String>();
+
+	public Hello(int version) {
+		this.version = version;
+	}
+	public int getVersion() {
+		return version;
+	}
+	public void setVersion(int version) {
+		this.version = version;
+	}
+	public Map<String, String> getOptions() {
+		return options;
+	}
+	public boolean hasOption(String key) {
+		return options.containsKey(key);
+	}
+	public String getOption(String key) {
+		return options.get(key);
+	}
+	public void setOption(String key, String value) {
+		options.put(key, null == value ? "" : value);
+	}
+}
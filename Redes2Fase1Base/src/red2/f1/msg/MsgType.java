@@ -2,9 +2,25 @@ package red2.f1.msg;
 
 import java.io.Serializable;
 /**
- * Message types.
+ * Message types. New types are only appended, frame messages carry the ordinal.
+ * <p>
+ * DS updates a file the server already has by sending only what changed:
+ * the server answers with the signatures of its blocks, the client follows
+ * with a second DS request and the delta rebuilding the new version.
+ * <p>
+ * CS uploads a file as content defined chunks: the request lists their
+ * hashes, the server answers with the ones it does not store yet, and only
+ * those follow, one after the other.
+ * <p>
+ * BR, BS and BD receive, send and delete many files in a single exchange.
+ * The files of BR and BS follow one another, each behind a header message
+ * carrying its name, size and checksum; the last response tells how every
+ * file went.
+ * <p>
+ * STATS asks for the counters of the server, which answers with them as
+ * text in its message.
  * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
  */
 public enum MsgType implements Serializable {
-	LR, DR, S, R, ERR
+	LR, DR, S, R, ERR, DS, CS, BR, BS, BD, STATS
 }
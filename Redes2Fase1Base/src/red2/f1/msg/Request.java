@@ -1,6 +1,7 @@
 package red2.f1.msg;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * Container for the requests that are sent from the client towards the server.
@@ -15,6 +16,25 @@ public class Request implements Serializable {
 	private String message;
 	private long fileSize = 0;
 	private String checksum = null;
+	/** First byte of the file the request is about. */
+	private long offset = 0;
+	/**
+	 * Number of bytes from <code>offset</code>, 0 for up to the end of the file.
+	 * For the second DS request, the length of the delta that follows.
+	 */
+	private long length = 0;
+	/** For CS, the hash and length of every chunk of the file, see {@link red2.f1.util.Chunker#ENTRY_LEN}. */
+	private byte[] chunks = null;
+	/** For BR, BS and BD, the files; BS also gives their sizes. */
+	private List<FileEntry> entries = null;
+	/** For LR, BR and BD, only the names matching this pattern, <code>*</code> and <code>?</code> as wildcards. */
+	private String filter = null;
+	/** For LR, <code>name</code> or <code>size</code>, prefixed with <code>-</code> for the descending order. */
+	private String sort = null;
+	/** For LR, the most entries per answer, 0 for the whole listing at once as {@link Response#getFiles()}. */
+	private int pageSize = 0;
+	/** For LR, where the previous page ended, see {@link Response#getCursor()}. */
+	private String cursor = null;
 	
 	public Request(MsgType type) {
 		this.type = type;
@@ -43,4 +63,58 @@ public class Request implements Serializable {
 	public void setChecksum(String checksum) {
 		this.checksum = checksum;
 	}
+	public long getOffset() {
+		return offset;
+	}
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+	public byte[] getChunks() {
+		return chunks;
+	}
+	public void setChunks(byte[] chunks) {
+		this.chunks = chunks;
+	}
+	public List<FileEntry> getEntries() {
+		return entries;
+	}
+	public void setEntries(List<FileEntry> entries) {
+		this.entries = entries;
+	}
+	public String getFilter() {
+		return filter;
+	}
+	public void setFilter(String filter) {
+		this.filter = filter;
+	}
+	public String getSort() {
+		return sort;
+	}
+	public void setSort(String sort) {
+		this.sort = sort;
+	}
+	public int getPageSize() {
+		return pageSize;
+	}
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+	public String getCursor() {
+		return cursor;
+	}
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+	public long getLength() {
+		return length;
+	}
+	public void setLength(long length) {
+		this.length = length;
+	}
+	/**
+	 * @return true if the request is about a part of the file only
+	 */
+	public boolean isRanged() {
+		return 0 != offset || length > 0;
+	}
 }
@@ -1,6 +1,7 @@
 package red2.f1.msg;
 
 import java.io.Serializable;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -18,10 +19,25 @@ public class Response implements Serializable {
 	}
 	private Codes code = Codes.OK;
 	private String message = null;
+	/** For LR, the size of every file; for BS and BD, what happened to every file. */
 	private Map<String, String> files = null;
 	private MsgType type = null;
 	private long fileSize = 0;
 	private String checksum = null;
+	/** For busy errors, the delay after which the client may try again (ms). */
+	private long retryAfter = 0;
+	/** For R and S, first byte of the file carried by the body. */
+	private long offset = 0;
+	/** For R and S, number of bytes of the body, 0 for up to the end of the file. */
+	private long length = 0;
+	/** For DS, size of the blocks the signatures of the body describe. */
+	private int blockSize = 0;
+	/** For CS, one bit per chunk of the request, set for those the server needs. */
+	private byte[] chunks = null;
+	/** For a paged LR, the files of this page; for BR and BS, the files to transfer. */
+	private List<FileEntry> entries = null;
+	/** For a paged LR, to ask for the next page with, null after the last one. */
+	private String cursor = null;
 	
 	public Response(MsgType type) {
 		this.type = type;
@@ -62,5 +78,54 @@ public class Response implements Serializable {
 	public void setChecksum(String checksum) {
 		this.checksum = checksum;
 	}
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	public void setRetryAfter(long retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+	public long getOffset() {
+		return offset;
+	}
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+	public long getLength() {
+		return length;
+	}
+	public void setLength(long length) {
+		this.length = length;
+	}
+	public byte[] getChunks() {
+		return chunks;
+	}
+	public void setChunks(byte[] chunks) {
+		this.chunks = chunks;
+	}
+	public List<FileEntry> getEntries() {
+		return entries;
+	}
+	public void setEntries(List<FileEntry> entries) {
+		this.entries = entries;
+	}
+	public String getCursor() {
+		return cursor;
+	}
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+	public int getBlockSize() {
+		return blockSize;
+	}
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+	/**
+	 * @param fileSize size of the whole file
+	 * @return the number of bytes carried by the body
+	 */
+	public long bodyLength(long fileSize) {
+		return length > 0 ? length : fileSize - offset;
+	}
 
 }
@@ -0,0 +1,153 @@
+package red2.f1.proto;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import red2.f1.msg.Hello;
+import red2.f1.util.Util;
+
+/**
+ * Picks the size of the DATA frames a connection sends, up to the largest
+ * one agreed on with {@link Frame#OPT_CHUNK}. A frame costs its header, a
+ * loop turn and a write call on each side, so small frames bound a transfer
+ * long before the network does.
+ * <p>
+ * The size starts at {@link #START} and is reconsidered every few frames,
+ * at least one round trip and {@link #MIN_ROUND} apart: it doubles while the
+ * larger frames move the bytes faster, and halves when the rate falls below
+ * half of the best one seen lately, a path that got slow or lossy. The first
+ * round of a body only fills the socket buffer and is not measured.
+ * <p>
+ * Only the client measures the round trip, during the handshake; the server
+ * does not know it and relies on {@link #MIN_ROUND} alone, so on a long path
+ * its rounds may still end before the socket buffer has drained.
+ * <p>
+ * Not thread safe: every connection has its own.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ChunkSizer {
+	public static final int MIN = 16 * 1024;
+	public static final int START = 64 * 1024;
+	public static final int MAX = 4 * 1024 * 1024;
+	/** Frames sent before the size is reconsidered. */
+	private static final int ROUND = 4;
+	/**
+	 * Shortest round in nanoseconds, below it the rate mostly tells how fast
+	 * the socket buffer fills.
+	 */
+	public static final long MIN_ROUND = 20 * 1000 * 1000;
+	/** Speed up a larger size has to bring to keep growing. */
+	private static final double GAIN = 1.1;
+	/** How much of the best rate is remembered from one round to the next. */
+	private static final double DECAY = 0.75;
+
+	private final int max;
+	/** Shortest round, the round trip measured during the handshake or {@link #MIN_ROUND}. */
+	private final long rtt;
+	private int size;
+	//the current round
+	private int frames = 0;
+	private long bytes = 0;
+	private long roundStart = 0;
+	private boolean warmingUp = true;
+	/** Best rate seen lately, bytes per nanosecond; 0 before the first round. */
+	private double best = 0;
+
+	/**
+	 * @param max largest payload agreed on
+	 * @param rtt round trip time in nanoseconds, 0 if unknown
+	 */
+	public ChunkSizer(int max, long rtt) {
+		this.max = max;
+		this.rtt = Math.max(rtt, MIN_ROUND);
+		this.size = Math.min(max, START);
+	}
+
+	/**
+	 * @param h the accepted options
+	 * @return the largest DATA payload agreed on, {@link Util#MAX_DATA} if
+	 * the peer did not negotiate it
+	 */
+	public static int maxOf(Hello h) {
+		if (null == h || ! h.hasOption(Frame.OPT_CHUNK))
+			return Util.MAX_DATA;
+		try {
+			return Math.max(Util.MAX_DATA, Math.min(MAX, Integer.parseInt(h.getOption(Frame.OPT_CHUNK))));
+		} catch (NumberFormatException e) {
+			return Util.MAX_DATA;
+		}
+	}
+
+	/**
+	 * Sizes the socket buffers, before connecting (or before binding a server
+	 * socket) so that the TCP window can scale to them. Left alone when size
+	 * is 0: Linux grows the buffers of every connection as it needs them, a
+	 * fixed size turns that off and is capped by <code>net.core.rmem_max</code>
+	 * and <code>wmem_max</code>.
+	 * @param s
+	 * @param size bytes, 0 to let the OS decide
+	 * @throws SocketException
+	 */
+	public static void tune(Socket s, int size) throws SocketException {
+		if (size <= 0)
+			return;
+		s.setReceiveBufferSize(size);
+		s.setSendBufferSize(size);
+	}
+
+	/**
+	 * @param socketBuffer the size set with {@link #tune}, 0 if none
+	 * @return the largest payload worth offering: half the socket buffer when
+	 * it is fixed, so two frames fit in it
+	 */
+	public static int offer(int socketBuffer) {
+		if (socketBuffer <= 0)
+			return MAX;
+		return Math.max(Util.MAX_DATA, Math.min(MAX, socketBuffer / 2));
+	}
+
+	/**
+	 * @return the size of the next frame
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * A new body starts, the time since the last one is not measured.
+	 */
+	public void startBody() {
+		frames = 0;
+		bytes = 0;
+		roundStart = System.nanoTime();
+		warmingUp = true;
+	}
+
+	/**
+	 * Accounts for a frame written.
+	 * @param n its payload
+	 */
+	public void sent(int n) {
+		frames++;
+		bytes += n;
+		long elapsed = System.nanoTime() - roundStart;
+		if (frames < ROUND || elapsed < rtt)
+			return;
+		if (warmingUp) {
+			warmingUp = false;
+		} else {
+			double rate = bytes / (double) Math.max(1, elapsed);
+			if (best > 0 && rate < best / 2) {
+				size = Math.max(Math.min(MIN, max), size / 2);
+				best = rate;
+			} else if (rate >= best * GAIN) {
+				size = Math.min(max, size * 2);
+				best = rate;
+			} else
+				best = Math.max(rate, best * DECAY);
+		}
+		frames = 0;
+		bytes = 0;
+		roundStart = System.nanoTime();
+	}
+}
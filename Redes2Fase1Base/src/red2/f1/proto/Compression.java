@@ -0,0 +1,164 @@
+package red2.f1.proto;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import red2.f1.msg.Hello;
+
+/**
+ * Deflate compression of file bodies, once both sides agreed on
+ * {@link Frame#OPT_COMPRESS}. Bodies are compressed block by block, each
+ * block on its own, so a block is a whole {@link Frame#DEFLATED} frame: the
+ * 4 bytes length of the original block followed by the block deflated.
+ * <p>
+ * Archives, media and other compressed files do not shrink, and deflating
+ * them only costs CPU. Every block that saves less than a tenth of its size
+ * is sent as a plain {@link Frame#DATA} frame, and the next ones are sent
+ * plain without trying, twice as many after each poor block, up to
+ * {@link #MAX_SKIP}. A compressed file is thus only probed once in a while,
+ * and a file that becomes compressible again is noticed.
+ * <p>
+ * Not thread safe: every connection or stream has its own.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Compression {
+	/** Original bytes per block on a connection of its own. */
+	static final int BLOCK = 64 * 1024;
+	/** A block saving less than 1/MIN_SAVING of its size is sent as it is. */
+	private static final int MIN_SAVING = 10;
+	/** Blocks sent as they are, at most, before probing again. */
+	private static final int MAX_SKIP = 64;
+
+	private final int level;
+	private Deflater deflater = null;
+	private Inflater inflater = null;
+	/** The last deflated block, after its length. */
+	private byte[] packed = new byte[4 + BLOCK];
+	/** Blocks still to send as they are. */
+	private int skip = 0;
+	/** Blocks to skip after the next poor one. */
+	private int backoff = 1;
+
+	/**
+	 * @param level deflate level, 1 (fastest) to 9 (smallest)
+	 */
+	public Compression(int level) {
+		this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+	}
+
+	/**
+	 * @param h the accepted options
+	 * @return the agreed deflate level, 0 if the bodies are not compressed
+	 */
+	public static int levelOf(Hello h) {
+		if (null == h || ! h.hasOption(Frame.OPT_COMPRESS))
+			return 0;
+		try {
+			return Math.max(0, Math.min(Deflater.BEST_COMPRESSION,
+					Integer.parseInt(h.getOption(Frame.OPT_COMPRESS))));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Forgets what the previous body looked like, the next one is probed
+	 * from its first block.
+	 */
+	void startBody() {
+		skip = 0;
+		backoff = 1;
+	}
+
+	/**
+	 * Deflates a block, unless it is not worth it.
+	 * @param b
+	 * @param off
+	 * @param len at most {@link #BLOCK}
+	 * @return the length of the DEFLATED payload, see {@link #packed()},
+	 * or -1 if the block is to be sent as it is
+	 */
+	int compress(byte[] b, int off, int len) {
+		if (skip > 0) {
+			skip--;
+			return -1;
+		}
+		if (null == deflater)
+			deflater = new Deflater(level);
+		deflater.reset();
+		deflater.setInput(b, off, len);
+		deflater.finish();
+		int limit = 4 + len - len / MIN_SAVING;
+		if (packed.length < limit)
+			packed = new byte[limit];
+		int n = 4;
+		while (! deflater.finished() && n < limit)
+			n += deflater.deflate(packed, n, limit - n);
+		if (! deflater.finished()) {
+			skip = backoff;
+			backoff = Math.min(MAX_SKIP, backoff * 2);
+			return -1;
+		}
+		backoff = 1;
+		ByteBuffer.wrap(packed).putInt(len);
+		return n;
+	}
+
+	/**
+	 * @return the payload built by the last {@link #compress}
+	 */
+	byte[] packed() {
+		return packed;
+	}
+
+	/**
+	 * Inflates a DEFLATED payload.
+	 * @param payload
+	 * @param off
+	 * @param len
+	 * @param dst
+	 * @param max the most bytes the block may hold, the rest of the announced body
+	 * @return the length of the original block, in <code>dst</code>
+	 * @throws ProtocolException if the payload is malformed or too large
+	 */
+	int inflate(byte[] payload, int off, int len, byte[] dst, long max) throws ProtocolException {
+		if (len < 4)
+			throw new ProtocolException("DEFLATED frame of " + len + " bytes");
+		int size = ByteBuffer.wrap(payload, off, 4).getInt();
+		if (size < 0 || size > dst.length || size > max)
+			throw new ProtocolException("DEFLATED frame of " + size + " bytes exceeds the announced size");
+		if (null == inflater)
+			inflater = new Inflater();
+		inflater.reset();
+		inflater.setInput(payload, off + 4, len - 4);
+		int n = 0;
+		try {
+			while (n < size && ! inflater.finished()) {
+				int m = inflater.inflate(dst, n, size - n);
+				if (0 == m && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += m;
+			}
+		} catch (DataFormatException e) {
+			throw new ProtocolException("Malformed DEFLATED frame: " + e.getMessage());
+		}
+		if (n != size)
+			throw new ProtocolException("DEFLATED frame holds " + n + " of " + size + " bytes");
+		return size;
+	}
+
+	/**
+	 * Frees the native memory of the codecs.
+	 */
+	void end() {
+		if (null != deflater)
+			deflater.end();
+		if (null != inflater)
+			inflater.end();
+		deflater = null;
+		inflater = null;
+	}
+}
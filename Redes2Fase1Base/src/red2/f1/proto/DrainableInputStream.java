@@ -0,0 +1,126 @@
+package red2.f1.proto;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffered input stream that tells how many bytes it already holds,
+ * so a reader can consume them before switching to the socket's channel.
+ * <p>
+ * Not thread safe and deliberately free of <code>synchronized</code>: a
+ * {@link java.io.BufferedInputStream} subclass blocks inside a monitor
+ * while reading the socket, which pins the carrier of a virtual thread.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class DrainableInputStream extends InputStream {
+	private static final int DEFAULT_SIZE = 8192;
+
+	private final InputStream in;
+	private byte[] buf;
+	private int pos = 0;
+	private int count = 0;
+
+	public DrainableInputStream(InputStream in) {
+		this(in, DEFAULT_SIZE);
+	}
+
+	public DrainableInputStream(InputStream in, int size) {
+		this.in = in;
+		this.buf = new byte[size];
+	}
+
+	/**
+	 * @param in
+	 * @param prefix bytes already read from <code>in</code> by someone else,
+	 * they are returned first
+	 */
+	public DrainableInputStream(InputStream in, byte[] prefix) {
+		this(in, Math.max(DEFAULT_SIZE, prefix.length));
+		System.arraycopy(prefix, 0, buf, 0, prefix.length);
+		count = prefix.length;
+	}
+
+	/**
+	 * @return the number of bytes that can be read without touching the underlying stream
+	 */
+	public int buffered() {
+		return count - pos;
+	}
+
+	/**
+	 * Reads from the underlying stream until at least <code>n</code> bytes are buffered.
+	 * @param n at most the buffer size
+	 * @return the number of buffered bytes, less than <code>n</code> only at end of stream
+	 * @throws IOException
+	 */
+	public int ensure(int n) throws IOException {
+		if (buf.length - pos < n) {
+			System.arraycopy(buf, pos, buf, 0, count - pos);
+			count -= pos;
+			pos = 0;
+		}
+		while (count - pos < n) {
+			int r = in.read(buf, count, buf.length - count);
+			if (r < 0)
+				break;
+			count += r;
+		}
+		return count - pos;
+	}
+
+	/**
+	 * @param i offset from the current position, below {@link #buffered()}
+	 * @return the buffered byte, without consuming it
+	 */
+	public byte peek(int i) {
+		return buf[pos + i];
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos == count && ensure(1) == 0)
+			return -1;
+		return buf[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos == count) {
+			if (len >= buf.length) //large reads skip the buffer
+				return in.read(b, off, len);
+			pos = count = 0;
+			int r = in.read(buf, 0, buf.length);
+			if (r < 0)
+				return -1;
+			count = r;
+		}
+		int n = Math.min(len, count - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		if (pos < count) {
+			int s = (int) Math.min(n, count - pos);
+			pos += s;
+			return s;
+		}
+		return in.skip(n);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (count - pos) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
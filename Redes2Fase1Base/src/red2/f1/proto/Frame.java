@@ -0,0 +1,107 @@
+package red2.f1.proto;
+
+/**
+ * Constants of the binary frame protocol.
+ * <p>
+ * A connection starts with the {@link #MAGIC} bytes followed by a {@link #HELLO}
+ * frame from the client. Every frame is a type byte, a 4 bytes big-endian
+ * payload length and the payload itself.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public enum Frame {
+	/** Only instance of this class. */
+	INSTANCE;
+
+	/** Preamble sent by frame clients, never a valid object stream header (0xACED). */
+	public static final byte[] MAGIC = {'R', '2', 'F', 'P'};
+	/** Highest protocol version spoken by this code. */
+	public static final int VERSION = 1;
+
+	public static final byte HELLO = 1;
+	public static final byte REQUEST = 2;
+	public static final byte RESPONSE = 3;
+	public static final byte DATA = 4;
+	/** Multiplexed only: the 4 bytes payload extends the sender's window of the stream. */
+	public static final byte WINDOW = 5;
+	/** Multiplexed only: the stream is closed, anything still in flight is dropped. */
+	public static final byte RESET = 6;
+	/** The checksum of the body just sent, when it was announced without one. */
+	public static final byte TRAILER = 7;
+	/** File contents compressed, see {@link Compression}. */
+	public static final byte DEFLATED = 8;
+
+	/**
+	 * Option: file contents sent by the server follow the {@link red2.f1.msg.Response}
+	 * as raw bytes instead of DATA frames, so they can be pushed with
+	 * {@link java.nio.channels.FileChannel#transferTo}.
+	 */
+	public static final String OPT_RAW_DOWNLOAD = "raw-download";
+	/**
+	 * Option: file contents sent by the client follow the {@link red2.f1.msg.Response}
+	 * to its S request as raw bytes, the server pulls them from the socket channel
+	 * with large direct buffers.
+	 */
+	public static final String OPT_RAW_UPLOAD = "raw-upload";
+	/**
+	 * Option: the connection carries many requests, one after the other, instead
+	 * of being closed after the first. The server's answer holds its idle timeout
+	 * in milliseconds, after which it closes a session left waiting.
+	 */
+	public static final String OPT_SESSION = "session";
+	/**
+	 * Option: after the handshake every frame carries a stream id and many
+	 * exchanges run at the same time, see {@link MuxChannel}. The server's answer
+	 * holds the number of streams it serves at the same time on a connection.
+	 */
+	public static final String OPT_MUX = "mux";
+	/**
+	 * Option: a file body may be announced without its checksum, which the
+	 * sender computes while streaming and sends in a {@link #TRAILER} frame
+	 * right after the body. The file is then read only once.
+	 */
+	public static final String OPT_TRAILER = "trailer";
+	/**
+	 * Option: file bodies are sent as deflated blocks, see {@link Compression}.
+	 * The client offers the deflate level it wants, the server answers with
+	 * the level it agrees on. Raw bodies are then not used, the blocks need
+	 * their frames.
+	 */
+	public static final String OPT_COMPRESS = "compress";
+	/**
+	 * Option: the server takes the BR, BS and BD requests, which transfer or
+	 * delete many files in a single exchange.
+	 */
+	public static final String OPT_BATCH = "batch";
+	/**
+	 * Option: the server answers the STATS requests with its counters.
+	 */
+	public static final String OPT_STATS = "stats";
+	/**
+	 * Option: the largest DATA payload accepted, in bytes. The client offers
+	 * its own, the server answers with the smaller of both; without it the
+	 * frames stay at {@link red2.f1.util.Util#MAX_DATA} bytes. Each sender
+	 * adapts its frames up to it, see {@link ChunkSizer}.
+	 */
+	public static final String OPT_CHUNK = "chunk";
+
+	/** Size of the frame header: type and length. */
+	public static final int HEADER_LEN = 5;
+	/** Size of a multiplexed frame header: type, stream id and length. */
+	public static final int MUX_HEADER_LEN = 9;
+	/** Upper bound for the payload of any non data frame. */
+	public static final int MAX_CONTROL_LEN = 64 * 1024 * 1024;
+
+	/**
+	 * Checks if the first bytes of a connection are the frame protocol preamble.
+	 * @param head at least {@link #MAGIC}.length bytes
+	 * @return
+	 */
+	public static boolean isMagic(byte[] head) {
+		if (null == head || head.length < MAGIC.length)
+			return false;
+		for (int i = 0; i < MAGIC.length; i++)
+			if (head[i] != MAGIC[i])
+				return false;
+		return true;
+	}
+}
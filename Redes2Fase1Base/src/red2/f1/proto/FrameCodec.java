@@ -0,0 +1,236 @@
+package red2.f1.proto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import red2.f1.msg.FileEntry;
+import red2.f1.msg.Hello;
+import red2.f1.msg.MsgType;
+import red2.f1.msg.Request;
+import red2.f1.msg.Response;
+import red2.f1.msg.Response.Codes;
+
+/**
+ * Encodes and decodes the messages carried by the binary frame protocol.
+ * Fields added in later versions are appended at the end of a payload,
+ * so a decoder only reads them when there are bytes left.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public enum FrameCodec {
+	/** Only instance of this class. */
+	INSTANCE;
+
+	public static byte[] encode(Request r) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bos);
+		writeType(out, r.getType());
+		writeString(out, r.getMessage());
+		out.writeLong(r.getFileSize());
+		writeString(out, r.getChecksum());
+		out.writeLong(r.getOffset());
+		out.writeLong(r.getLength());
+		writeBytes(out, r.getChunks());
+		writeString(out, r.getFilter());
+		writeString(out, r.getSort());
+		out.writeInt(r.getPageSize());
+		writeString(out, r.getCursor());
+		writeEntries(out, r.getEntries());
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	public static Request decodeRequest(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		Request r = new Request(readType(in));
+		r.setMessage(readString(in));
+		r.setFileSize(in.readLong());
+		r.setChecksum(readString(in));
+		if (in.available() > 0) {
+			r.setOffset(in.readLong());
+			r.setLength(in.readLong());
+		}
+		if (in.available() > 0)
+			r.setChunks(readBytes(in));
+		if (in.available() > 0) {
+			r.setFilter(readString(in));
+			r.setSort(readString(in));
+			r.setPageSize(in.readInt());
+			r.setCursor(readString(in));
+		}
+		if (in.available() > 0)
+			r.setEntries(readEntries(in));
+		return r;
+	}
+
+	public static byte[] encode(Response r) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bos);
+		writeType(out, r.getType());
+		out.writeByte(null == r.getCode() ? -1 : r.getCode().ordinal());
+		writeString(out, r.getMessage());
+		out.writeLong(r.getFileSize());
+		writeString(out, r.getChecksum());
+		Map<String, String> files = r.getFiles();
+		if (null == files) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(files.size());
+			for (Map.Entry<String, String> e : files.entrySet()) {
+				out.writeUTF(e.getKey());
+				writeString(out, e.getValue());
+			}
+		}
+		out.writeLong(r.getRetryAfter());
+		out.writeLong(r.getOffset());
+		out.writeLong(r.getLength());
+		out.writeInt(r.getBlockSize());
+		writeBytes(out, r.getChunks());
+		writeEntries(out, r.getEntries());
+		writeString(out, r.getCursor());
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	public static Response decodeResponse(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		Response r = new Response(readType(in));
+		int code = in.readByte();
+		if (code < 0)
+			r.setCode(null);
+		else if (code < Codes.values().length)
+			r.setCode(Codes.values()[code]);
+		else
+			throw new ProtocolException("Unknown response code " + code);
+		r.setMessage(readString(in));
+		r.setFileSize(in.readLong());
+		r.setChecksum(readString(in));
+		int count = in.readInt();
+		if (count >= 0) {
+			Map<String, String> files = new HashMap<String, String>(count * 2);
+			for (int i = 0; i < count; i++)
+				files.put(in.readUTF(), readString(in));
+			r.setFiles(files);
+		}
+		if (in.available() > 0)
+			r.setRetryAfter(in.readLong());
+		if (in.available() > 0) {
+			r.setOffset(in.readLong());
+			r.setLength(in.readLong());
+		}
+		if (in.available() > 0)
+			r.setBlockSize(in.readInt());
+		if (in.available() > 0)
+			r.setChunks(readBytes(in));
+		if (in.available() > 0) {
+			r.setEntries(readEntries(in));
+			r.setCursor(readString(in));
+		}
+		return r;
+	}
+
+	public static byte[] encode(Hello h) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeShort(h.getVersion());
+		out.writeShort(h.getOptions().size());
+		for (Map.Entry<String, String> e : h.getOptions().entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue());
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	public static Hello decodeHello(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		Hello h = new Hello(in.readUnsignedShort());
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++)
+			h.setOption(in.readUTF(), in.readUTF());
+		return h;
+	}
+
+	public static byte[] encodeTrailer(String checksum) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeUTF(checksum);
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	public static String decodeTrailer(byte[] payload) throws IOException {
+		return new DataInputStream(new ByteArrayInputStream(payload)).readUTF();
+	}
+
+	//----PRIMITIVES----------------------------------------------//
+	private static void writeType(DataOutputStream out, MsgType type) throws IOException {
+		out.writeByte(null == type ? -1 : type.ordinal());
+	}
+
+	private static MsgType readType(DataInputStream in) throws IOException {
+		int t = in.readByte();
+		if (t < 0)
+			return null;
+		if (t >= MsgType.values().length)
+			throw new ProtocolException("Unknown message type " + t);
+		return MsgType.values()[t];
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		out.writeInt(null == b ? -1 : b.length);
+		if (null != b)
+			out.write(b);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0)
+			return null;
+		if (len > in.available())
+			throw new ProtocolException("Invalid byte array length " + len);
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return b;
+	}
+
+	private static void writeEntries(DataOutputStream out, List<FileEntry> entries) throws IOException {
+		if (null == entries) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(entries.size());
+		for (FileEntry e : entries) {
+			out.writeUTF(e.getName());
+			out.writeLong(e.getSize());
+			writeString(out, e.getReadableSize());
+		}
+	}
+
+	private static List<FileEntry> readEntries(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			return null;
+		List<FileEntry> entries = new ArrayList<FileEntry>(Math.min(count, 1024));
+		for (int i = 0; i < count; i++)
+			entries.add(new FileEntry(in.readUTF(), in.readLong(), readString(in)));
+		return entries;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(null != s);
+		if (null != s)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
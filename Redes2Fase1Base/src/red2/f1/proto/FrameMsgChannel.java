@@ -0,0 +1,521 @@
+package red2.f1.proto;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+
+import red2.f1.msg.Data;
+import red2.f1.msg.Hello;
+import red2.f1.msg.Request;
+import red2.f1.msg.Response;
+import red2.f1.util.BufferPool;
+import red2.f1.util.HashTap;
+import red2.f1.util.Util;
+
+/**
+ * Binary frame protocol: a type byte, the payload length and the payload.
+ * File contents are sent as {@link Frame#DATA} frames through a buffered
+ * stream which is only flushed at the end of a message or a transfer. The
+ * frames are {@link Util#MAX_DATA} bytes unless a larger size was agreed on
+ * with {@link Frame#OPT_CHUNK}, a {@link ChunkSizer} then picks their size.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class FrameMsgChannel extends MsgChannel {
+	private static final int STREAM_BUFFER = 64 * 1024;
+	/** Size of the direct buffer used to pull raw bodies from the socket channel. */
+	private static final int RAW_BUFFER = 1024 * 1024;
+
+	private final DrainableInputStream input;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	/**
+	 * Copies the bodies through user space, grown up to {@link #chunkLimit}
+	 * with buffers from the {@link BufferPool}.
+	 */
+	private byte[] buf = new byte[Util.MAX_DATA];
+	/** Largest DATA payload agreed on. */
+	private int chunkLimit = Util.MAX_DATA;
+	/** Sizes the DATA frames we send, null while they stay at {@link Util#MAX_DATA}. */
+	private ChunkSizer sizer = null;
+	/** Pulls raw bodies from the socket channel, taken from the pool on the first one. */
+	private ByteBuffer rawBuffer = null;
+	private Hello negotiated = null;
+	/** Bodies we send are written raw, without DATA frames. */
+	private boolean rawSend = false;
+	/** Bodies we receive arrive raw, without DATA frames. */
+	private boolean rawReceive = false;
+	/** Both sides agreed on {@link Frame#OPT_TRAILER}. */
+	private boolean trailers = false;
+	/** The connection now belongs to a {@link MuxChannel}. */
+	private boolean multiplexed = false;
+	/** Deflate level of the bodies, 0 if they are not compressed. */
+	private int compressLevel = 0;
+	private Compression compression = null;
+	/** Original bytes of a compressed block, allocated with the compression. */
+	private byte[] block = null;
+
+	public FrameMsgChannel(Socket conn, DrainableInputStream in) throws IOException {
+		super(conn);
+		this.input = in;
+		this.in = new DataInputStream(in);
+		this.out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream(), STREAM_BUFFER));
+	}
+
+	@Override
+	public boolean isLegacy() {
+		return false;
+	}
+
+	/**
+	 * @return the options accepted during the handshake, null before it
+	 */
+	public Hello getNegotiated() {
+		return negotiated;
+	}
+
+	public void setNegotiated(Hello negotiated) {
+		this.negotiated = negotiated;
+	}
+
+	/**
+	 * Selects raw bodies (no DATA frames) for each direction. The sizes are
+	 * always announced beforehand, so the receiver knows where a body ends;
+	 * a sender that can not complete a raw body has to close the connection.
+	 * @param send
+	 * @param receive
+	 */
+	public void setRawBodies(boolean send, boolean receive) {
+		this.rawSend = send;
+		this.rawReceive = receive;
+	}
+
+	public void setTrailers(boolean trailers) {
+		this.trailers = trailers;
+	}
+
+	/**
+	 * Sets the largest DATA payload, once agreed on with {@link Frame#OPT_CHUNK}.
+	 * @param max see {@link ChunkSizer#maxOf}
+	 * @param rtt round trip time in nanoseconds, 0 if unknown
+	 */
+	public void setChunking(int max, long rtt) {
+		this.chunkLimit = max;
+		this.sizer = max > Util.MAX_DATA ? new ChunkSizer(max, rtt) : null;
+	}
+
+	/**
+	 * Compresses the bodies we send, once both sides agreed on {@link Frame#OPT_COMPRESS}.
+	 * Compressed bodies are received whatever the setting.
+	 * @param level deflate level, 0 to send the bodies as they are
+	 */
+	public void setCompression(int level) {
+		this.compressLevel = level;
+		if (null != compression)
+			compression.end();
+		compression = level > 0 ? new Compression(level) : null;
+	}
+
+	//----HANDSHAKE-------------------------------------------------------//
+	void writeMagic() throws IOException {
+		out.write(Frame.MAGIC);
+	}
+
+	public void writeHello(Hello h) throws IOException {
+		writeFrame(Frame.HELLO, FrameCodec.encode(h));
+		out.flush();
+	}
+
+	public Hello readHello() throws IOException {
+		byte type = in.readByte();
+		if (Frame.HELLO != type)
+			throw new ProtocolException("Expected HELLO frame, got " + type);
+		return FrameCodec.decodeHello(readPayload(in.readInt()));
+	}
+
+	/**
+	 * Hands the connection to a {@link MuxChannel}, once both sides agreed on
+	 * {@link Frame#OPT_MUX}. This channel must not be used afterwards.
+	 * @param client true on the side opening the streams
+	 * @param idleTimeout time after which a connection without streams is closed, 0 for never
+	 * @return the started channel
+	 * @throws IOException
+	 */
+	public MuxChannel multiplex(boolean client, int idleTimeout) throws IOException {
+		out.flush();
+		multiplexed = true;
+		MuxChannel mux = new MuxChannel(conn, in, out, client, idleTimeout, trailers, compressLevel);
+		mux.start();
+		return mux;
+	}
+
+	//----MESSAGES--------------------------------------------------------//
+	@Override
+	public Object readMessage() throws IOException {
+		byte type = in.readByte();
+		int len = in.readInt();
+		switch (type) {
+		case Frame.REQUEST:
+			return FrameCodec.decodeRequest(readPayload(len));
+		case Frame.RESPONSE:
+			return FrameCodec.decodeResponse(readPayload(len));
+		case Frame.HELLO:
+			return FrameCodec.decodeHello(readPayload(len));
+		case Frame.DATA:
+			Data data = new Data(len);
+			data.writeData(readPayload(len));
+			return data;
+		default:
+			throw new ProtocolException("Unknown frame type " + type);
+		}
+	}
+
+	@Override
+	public void writeRequest(Request r) throws IOException {
+		writeFrame(Frame.REQUEST, FrameCodec.encode(r));
+		out.flush();
+	}
+
+	@Override
+	public void writeResponse(Response r) throws IOException {
+		writeFrame(Frame.RESPONSE, FrameCodec.encode(r));
+		out.flush();
+	}
+
+	//----FILE CONTENTS---------------------------------------------------//
+	@Override
+	public long sendBody(FileChannel src, long position, long count,
+			MessageDigest md) throws IOException {
+		if (rawSend)
+			return sendRawBody(src, position, count, md);
+		if (null != compression)
+			return sendCompressedBody(src, position, count, md);
+		if (null != sizer)
+			sizer.startBody();
+		long sent = 0;
+		while (sent < count) {
+			int len = (int) Math.min(null == sizer ? Util.MAX_DATA : sizer.size(), count - sent);
+			ByteBuffer bb = ByteBuffer.wrap(buffer(len), 0, len);
+			while (bb.hasRemaining()) {
+				if (src.read(bb, position + sent + bb.position()) < 0)
+					throw new EOFException("File ended after " + (sent + bb.position()) + " of " + count + " bytes");
+			}
+			if (null != md)
+				md.update(buf, 0, len);
+			writeFrame(Frame.DATA, buf, 0, len);
+			if (null != sizer)
+				sizer.sent(len);
+			sent += len;
+		}
+		out.flush();
+		return sent;
+	}
+
+	@Override
+	public long receiveBody(FileChannel dst, long position, long count,
+			MessageDigest md) throws IOException {
+		if (rawReceive)
+			return receiveRawBody(dst, position, count, md);
+		long written = 0;
+		while (written < count) {
+			byte type = in.readByte();
+			int len = in.readInt();
+			if (Frame.RESPONSE == type)
+				throw new UnexpectedMessageException(FrameCodec.decodeResponse(readPayload(len)));
+			if (Frame.DEFLATED == type) {
+				written += receiveBlock(dst, position + written, count - written, md, len);
+				continue;
+			}
+			if (Frame.DATA != type)
+				throw new ProtocolException("Expected DATA frame, got " + type);
+			if (len < 0 || len > count - written)
+				throw new ProtocolException("DATA frame of " + len + " bytes exceeds the announced size");
+			//a frame may be larger than the local buffer, copy it in pieces
+			byte[] buf = buffer(Math.min(len, chunkLimit));
+			while (len > 0) {
+				int n = Math.min(len, buf.length);
+				in.readFully(buf, 0, n);
+				if (null != md)
+					md.update(buf, 0, n);
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+				while (bb.hasRemaining())
+					dst.write(bb, position + written + bb.position());
+				written += n;
+				len -= n;
+			}
+		}
+		return written;
+	}
+
+	@Override
+	public boolean canAbortBody() {
+		return ! rawSend;
+	}
+
+	@Override
+	public boolean hasTrailers() {
+		return trailers;
+	}
+
+	@Override
+	public void writeTrailer(String checksum) throws IOException {
+		writeFrame(Frame.TRAILER, FrameCodec.encodeTrailer(checksum));
+		out.flush();
+	}
+
+	@Override
+	public String readTrailer() throws IOException {
+		byte type = in.readByte();
+		int len = in.readInt();
+		if (Frame.RESPONSE == type)
+			throw new UnexpectedMessageException(FrameCodec.decodeResponse(readPayload(len)));
+		if (Frame.TRAILER != type)
+			throw new ProtocolException("Expected TRAILER frame, got " + type);
+		return FrameCodec.decodeTrailer(readPayload(len));
+	}
+
+	/**
+	 * Sends the body in blocks, deflated when they shrink enough.
+	 */
+	private long sendCompressedBody(FileChannel src, long position, long count,
+			MessageDigest md) throws IOException {
+		if (null == block)
+			block = new byte[Compression.BLOCK];
+		compression.startBody();
+		ByteBuffer bb = ByteBuffer.wrap(block);
+		long sent = 0;
+		while (sent < count) {
+			bb.clear();
+			bb.limit((int) Math.min(block.length, count - sent));
+			while (bb.hasRemaining()) {
+				if (src.read(bb, position + sent + bb.position()) < 0)
+					throw new EOFException("File ended after " + (sent + bb.position()) + " of " + count + " bytes");
+			}
+			int n = bb.position();
+			if (null != md)
+				md.update(block, 0, n);
+			int packed = compression.compress(block, 0, n);
+			if (packed < 0)
+				writeFrame(Frame.DATA, block, 0, n);
+			else
+				writeFrame(Frame.DEFLATED, compression.packed(), 0, packed);
+			sent += n;
+		}
+		out.flush();
+		return sent;
+	}
+
+	/**
+	 * Inflates a DEFLATED frame, its header already read, into the file.
+	 * @param max bytes of the body still expected
+	 * @return the number of bytes written
+	 */
+	private int receiveBlock(FileChannel dst, long position, long max,
+			MessageDigest md, int len) throws IOException {
+		if (len > 4 + Compression.BLOCK)
+			throw new ProtocolException("Invalid frame length " + len);
+		if (null == compression)
+			compression = new Compression(Deflater.BEST_SPEED); //only inflates
+		if (null == block)
+			block = new byte[Compression.BLOCK];
+		byte[] packed = buffer(len);
+		in.readFully(packed, 0, len);
+		int n = compression.inflate(packed, 0, len, block, max);
+		if (null != md)
+			md.update(block, 0, n);
+		ByteBuffer bb = ByteBuffer.wrap(block, 0, n);
+		while (bb.hasRemaining())
+			dst.write(bb, position + bb.position());
+		return n;
+	}
+
+	/**
+	 * Pushes the file straight to the socket with {@link FileChannel#transferTo},
+	 * which the kernel can serve without copying the data through user space.
+	 * The bytes are then hashed by a {@link HashTap} following the transfer,
+	 * they are still in the OS cache; a body of at most {@link #RAW_BUFFER}
+	 * bytes is hashed once sent, a thread is not worth it. Falls back to a
+	 * plain copy when the socket has no channel.
+	 */
+	private long sendRawBody(FileChannel src, long position, long count,
+			MessageDigest md) throws IOException {
+		out.flush();
+		SocketChannel sc = conn.getChannel();
+		long sent = 0;
+		if (null != sc) {
+			HashTap tap = null;
+			if (null != md && count > RAW_BUFFER) {
+				tap = new HashTap(src, position, md);
+				tap.start();
+			}
+			try {
+				while (sent < count) {
+					//in slices when hashing, so the tap works during the transfer
+					long slice = null == tap ? count - sent : Math.min(RAW_BUFFER, count - sent);
+					long n = src.transferTo(position + sent, slice, sc);
+					if (n <= 0 && position + sent >= src.size())
+						throw new EOFException("File ended after " + sent + " of " + count + " bytes");
+					sent += n;
+					if (null != tap)
+						tap.advance(position + sent);
+				}
+			} catch (IOException e) {
+				if (null != tap)
+					tap.cancel();
+				throw e;
+			}
+			if (null != tap)
+				tap.finish();
+			else if (null != md)
+				Util.updateDigest(src, position, sent, md);
+			return sent;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(buffer((int) Math.min(chunkLimit, count)));
+		while (sent < count) {
+			bb.clear();
+			bb.limit((int) Math.min(buf.length, count - sent));
+			int n = src.read(bb, position + sent);
+			if (n < 0)
+				throw new EOFException("File ended after " + sent + " of " + count + " bytes");
+			if (null != md)
+				md.update(buf, 0, n);
+			out.write(buf, 0, n);
+			sent += n;
+		}
+		out.flush();
+		return sent;
+	}
+
+	/**
+	 * Reads exactly <code>count</code> raw bytes, or less if the peer closes the connection.
+	 * Once the bytes already buffered by the stream are consumed, the rest is pulled
+	 * from the socket channel in a large direct buffer, written with one call per
+	 * buffer and hashed by a {@link HashTap} following the writes, or once
+	 * written if they fit in the buffer.
+	 * @param dst must be readable as well when <code>md</code> is not null
+	 */
+	private long receiveRawBody(FileChannel dst, long position, long count,
+			MessageDigest md) throws IOException {
+		SocketChannel sc = conn.getChannel();
+		if (null == sc)
+			return receiveRawStream(dst, position, count, md, count);
+		long written = receiveRawStream(dst, position, count, md, input.buffered());
+		if (written == count)
+			return written;
+		long streamed = written;
+		HashTap tap = null;
+		if (null != md && count - written > RAW_BUFFER) {
+			tap = new HashTap(dst, position + written, md);
+			tap.start();
+		}
+		if (null == rawBuffer)
+			rawBuffer = BufferPool.direct(RAW_BUFFER);
+		ByteBuffer bb = rawBuffer;
+		try {
+			boolean eof = false;
+			while (written < count && ! eof) {
+				bb.clear();
+				bb.limit((int) Math.min(bb.capacity(), count - written));
+				while (bb.hasRemaining()) {
+					if (sc.read(bb) < 0) {
+						eof = true;
+						break;
+					}
+				}
+				bb.flip();
+				while (bb.hasRemaining())
+					dst.write(bb, position + written + bb.position());
+				written += bb.limit();
+				if (null != tap)
+					tap.advance(position + written);
+			}
+		} catch (IOException e) {
+			if (null != tap)
+				tap.cancel();
+			throw e;
+		}
+		if (null != tap)
+			tap.finish();
+		else if (null != md)
+			Util.updateDigest(dst, position + streamed, written - streamed, md);
+		return written;
+	}
+
+	/**
+	 * Copies raw bytes through the input stream.
+	 * @param limit maximum number of bytes to take from the stream
+	 */
+	private long receiveRawStream(FileChannel dst, long position, long count,
+			MessageDigest md, long limit) throws IOException {
+		long written = 0;
+		limit = Math.min(limit, count);
+		byte[] buf = buffer((int) Math.min(chunkLimit, limit));
+		while (written < limit) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, limit - written));
+			if (n < 0)
+				break;
+			if (null != md)
+				md.update(buf, 0, n);
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+			while (bb.hasRemaining())
+				dst.write(bb, position + written + bb.position());
+			written += n;
+		}
+		return written;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (! multiplexed)
+				out.flush();
+		} finally {
+			if (null != compression)
+				compression.end();
+			BufferPool.release(rawBuffer);
+			rawBuffer = null;
+			BufferPool.release(buf);
+			buf = new byte[0];
+			super.close();
+		}
+	}
+
+	/**
+	 * @param len at most {@link #chunkLimit}, or a compressed block
+	 * @return the copy buffer, grown to at least <code>len</code> bytes
+	 */
+	private byte[] buffer(int len) {
+		if (buf.length < len) {
+			BufferPool.release(buf);
+			buf = BufferPool.heap(len);
+		}
+		return buf;
+	}
+
+	//----FRAMES----------------------------------------------------------//
+	private void writeFrame(byte type, byte[] payload) throws IOException {
+		writeFrame(type, payload, 0, payload.length);
+	}
+
+	private void writeFrame(byte type, byte[] payload, int off, int len) throws IOException {
+		out.writeByte(type);
+		out.writeInt(len);
+		out.write(payload, off, len);
+	}
+
+	private byte[] readPayload(int len) throws IOException {
+		if (len < 0 || len > Frame.MAX_CONTROL_LEN)
+			throw new ProtocolException("Invalid frame length " + len);
+		byte[] payload = new byte[len];
+		in.readFully(payload);
+		return payload;
+	}
+}
@@ -0,0 +1,161 @@
+package red2.f1.proto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import red2.f1.msg.Request;
+import red2.f1.msg.Response;
+
+/**
+ * A message oriented view of a socket connection. The wire format is chosen
+ * when the connection starts: {@link ObjectMsgChannel} keeps the original
+ * Java serialization protocol, {@link FrameMsgChannel} speaks binary frames.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public abstract class MsgChannel {
+	protected final Socket conn;
+
+	protected MsgChannel(Socket conn) {
+		this.conn = conn;
+	}
+
+	public Socket getSocket() {
+		return conn;
+	}
+
+	/**
+	 * @return true if this connection uses the original object streams protocol
+	 */
+	public abstract boolean isLegacy();
+
+	/**
+	 * Reads the next message from the connection.
+	 * @return a {@link Request}, a {@link Response} or a {@link red2.f1.msg.Data}
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public abstract Object readMessage() throws IOException, ClassNotFoundException;
+
+	public abstract void writeRequest(Request r) throws IOException;
+
+	public abstract void writeResponse(Response r) throws IOException;
+
+	/**
+	 * Sends <code>count</code> bytes of the source file, starting at <code>position</code>.
+	 * @param md if not null, updated with every sent byte
+	 * @return the number of bytes sent
+	 * @throws IOException
+	 */
+	public abstract long sendBody(FileChannel src, long position, long count,
+			MessageDigest md) throws IOException;
+
+	/**
+	 * Receives at most <code>count</code> bytes and writes them into the destination
+	 * file starting at <code>position</code>.
+	 * @param md if not null, updated with every received byte
+	 * @return the number of bytes received
+	 * @throws UnexpectedMessageException if the peer sent something else than data
+	 * @throws IOException
+	 */
+	public abstract long receiveBody(FileChannel dst, long position, long count,
+			MessageDigest md) throws IOException;
+
+	/**
+	 * @return true if an error {@link Response} can still be sent after
+	 * {@link #sendBody(FileChannel, long, long, MessageDigest)} failed half way, false
+	 * if the only way to abort the body is closing the connection
+	 */
+	public boolean canAbortBody() {
+		return true;
+	}
+
+	/**
+	 * @return true if a body announced without a checksum is followed by
+	 * a trailer carrying it, see {@link Frame#OPT_TRAILER}
+	 */
+	public boolean hasTrailers() {
+		return false;
+	}
+
+	/**
+	 * Sends the checksum of the body just sent.
+	 * @param checksum
+	 * @throws IOException
+	 */
+	public void writeTrailer(String checksum) throws IOException {
+		throw new ProtocolException("Trailers not agreed on");
+	}
+
+	/**
+	 * Reads the checksum sent after a body announced without one.
+	 * @return
+	 * @throws UnexpectedMessageException if the peer aborted the transfer instead
+	 * @throws IOException
+	 */
+	public String readTrailer() throws IOException {
+		throw new ProtocolException("Trailers not agreed on");
+	}
+
+	/**
+	 * Closes the streams and the socket.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		conn.close();
+	}
+
+	//----CONNECTION SETUP------------------------------------------------//
+	/**
+	 * Server side: looks at the first bytes sent by the client and
+	 * picks the matching protocol. The frame preamble is consumed,
+	 * the object stream header is left for the {@link java.io.ObjectInputStream}.
+	 * @param s an accepted connection
+	 * @return
+	 * @throws IOException
+	 */
+	public static MsgChannel accept(Socket s) throws IOException {
+		return accept(s, new DrainableInputStream(s.getInputStream()));
+	}
+
+	/**
+	 * Same as {@link #accept(Socket)} for a connection whose first bytes have
+	 * already been read by someone else.
+	 * @param s an accepted connection
+	 * @param prefix the bytes read so far
+	 * @return
+	 * @throws IOException
+	 */
+	public static MsgChannel accept(Socket s, byte[] prefix) throws IOException {
+		return accept(s, new DrainableInputStream(s.getInputStream(), prefix));
+	}
+
+	private static MsgChannel accept(Socket s, DrainableInputStream in) throws IOException {
+		byte[] head = new byte[Frame.MAGIC.length];
+		if (in.ensure(head.length) < head.length)
+			throw new EOFException("Connection closed before any request");
+		for (int i = 0; i < head.length; i++)
+			head[i] = in.peek(i);
+		if (Frame.isMagic(head)) {
+			in.skip(head.length);
+			return new FrameMsgChannel(s, in);
+		}
+		return new ObjectMsgChannel(s, in);
+	}
+
+	/**
+	 * Client side: sends the frame preamble. The caller still has to
+	 * exchange the {@link red2.f1.msg.Hello} messages.
+	 * @param s a connected socket
+	 * @return
+	 * @throws IOException
+	 */
+	public static FrameMsgChannel connect(Socket s) throws IOException {
+		FrameMsgChannel channel = new FrameMsgChannel(s, new DrainableInputStream(s.getInputStream()));
+		channel.writeMagic();
+		return channel;
+	}
+}
@@ -0,0 +1,440 @@
+package red2.f1.proto;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import red2.f1.msg.Request;
+import red2.f1.msg.Response;
+import red2.f1.util.BufferPool;
+
+/**
+ * Carries many exchanges at the same time over one frame connection, once
+ * {@link Frame#OPT_MUX} has been agreed on. Every frame is then tagged with
+ * the id of its {@link MuxStream}: type byte, 4 bytes stream id, 4 bytes
+ * length and the payload. Clients open the streams with a request, the ids
+ * are odd and never reused.
+ * <p>
+ * A reader thread hands the incoming frames to their streams. A writer thread
+ * sends the queued frames taking one frame of each stream in turn, so a large
+ * download only delays the response of a small request by one DATA frame.
+ * The DATA a stream may have in flight is bounded by a window, which the
+ * receiver extends with {@link Frame#WINDOW} frames as it consumes the data;
+ * the reader thread therefore never waits for a slow stream.
+ * <p>
+ * DATA and DEFLATED frames travel whole, header included, in arrays from the
+ * {@link BufferPool}: the writer hands them back once written, and the
+ * streams those they receive once consumed.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class MuxChannel {
+	/** Payload of a DATA frame, small so the streams interleave finely. */
+	static final int CHUNK = 16 * 1024;
+	/** Bytes of DATA a stream may send before the receiver grants more. */
+	static final int WINDOW = 256 * 1024;
+	/** Ids below the highest accepted one still awaited, those beyond are forgotten. */
+	private static final int MAX_GAPS = 1024;
+
+	private final Socket conn;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final boolean client;
+	private final int idleTimeout;
+	private final boolean trailers;
+	/** Deflate level of the bodies, 0 if they are not compressed. */
+	private final int compressLevel;
+	private final Map<Integer, MuxStream> streams = new ConcurrentHashMap<Integer, MuxStream>();
+	private final ReentrantLock lock = new ReentrantLock();
+	/** Signalled when there are frames to write or the channel closes. */
+	private final Condition work = lock.newCondition();
+	/** Signalled when a stream is opened by the peer or the channel closes. */
+	private final Condition incoming = lock.newCondition();
+	/** Streams with queued frames, in their writing turn. */
+	private final ArrayDeque<MuxStream> ring = new ArrayDeque<MuxStream>();
+	/** Frames written before any stream's turn (window updates). */
+	private final ArrayDeque<byte[]> urgent = new ArrayDeque<byte[]>();
+	private final LinkedList<MuxStream> accepted = new LinkedList<MuxStream>();
+	private int nextId = 1;
+	private boolean closed = false;
+	//----server side, used by the reader thread only
+	/** Highest stream id the client opened so far. */
+	private int lastAccepted = -1;
+	/**
+	 * Ids below {@link #lastAccepted} not seen yet: the client numbers its
+	 * streams when it opens them, but their first frames may be written in
+	 * another order.
+	 */
+	private final TreeSet<Integer> gaps = new TreeSet<Integer>();
+
+	/**
+	 * @param conn
+	 * @param in positioned right after the handshake
+	 * @param out
+	 * @param client true on the side opening the streams
+	 * @param idleTimeout time after which a connection without streams is closed, 0 for never
+	 * @param trailers both sides agreed on {@link Frame#OPT_TRAILER}
+	 * @param compressLevel deflate level agreed on with {@link Frame#OPT_COMPRESS}, 0 for none
+	 */
+	MuxChannel(Socket conn, DataInputStream in, DataOutputStream out, boolean client,
+			int idleTimeout, boolean trailers, int compressLevel) {
+		this.conn = conn;
+		this.in = in;
+		this.out = out;
+		this.client = client;
+		this.idleTimeout = idleTimeout;
+		this.trailers = trailers;
+		this.compressLevel = compressLevel;
+	}
+
+	void start() throws IOException {
+		conn.setSoTimeout(idleTimeout);
+		//the writer batches the frames itself, window updates must not wait for more
+		conn.setTcpNoDelay(true);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		}, "mux-reader");
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "mux-writer");
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	public Socket getSocket() {
+		return conn;
+	}
+
+	/**
+	 * Client side: starts a new exchange.
+	 * @return
+	 * @throws IOException if the connection is closed
+	 */
+	public MuxStream openStream() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				throw new EOFException("Multiplexed connection closed");
+			MuxStream s = new MuxStream(this, nextId);
+			nextId += 2;
+			streams.put(s.getId(), s);
+			return s;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Server side: waits for the client to start an exchange.
+	 * @return the new stream, its request ready to be read, or null once the connection is closed
+	 * @throws InterruptedException
+	 */
+	public MuxStream acceptStream() throws InterruptedException {
+		lock.lock();
+		try {
+			while (accepted.isEmpty() && ! closed)
+				incoming.await();
+			return accepted.poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of streams open on this connection
+	 */
+	public int activeStreams() {
+		return streams.size();
+	}
+
+	public boolean hasTrailers() {
+		return trailers;
+	}
+
+	int getCompressLevel() {
+		return compressLevel;
+	}
+
+	public boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the connection, failing the streams still open.
+	 */
+	public void close() {
+		fail(new EOFException("Multiplexed connection closed"));
+	}
+
+	//----STREAMS SIDE----------------------------------------------------//
+	static byte[] frame(byte type, int id, byte[] payload) {
+		byte[] frame = new byte[Frame.MUX_HEADER_LEN + payload.length];
+		header(frame, type, id, payload.length);
+		System.arraycopy(payload, 0, frame, Frame.MUX_HEADER_LEN, payload.length);
+		return frame;
+	}
+
+	/**
+	 * @param len
+	 * @return a pooled array holding a frame of <code>len</code> bytes of
+	 * payload, possibly longer than the frame
+	 */
+	static byte[] pooledFrame(byte type, int id, int len) {
+		byte[] frame = BufferPool.heap(Frame.MUX_HEADER_LEN + len);
+		header(frame, type, id, len);
+		return frame;
+	}
+
+	private static void header(byte[] frame, byte type, int id, int len) {
+		frame[0] = type;
+		putInt(frame, 1, id);
+		putInt(frame, 5, len);
+	}
+
+	static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	/**
+	 * @param frame as queued or delivered, its array may be longer
+	 * @return the length of its payload
+	 */
+	static int payloadLength(byte[] frame) {
+		return ((frame[5] & 0xff) << 24) | ((frame[6] & 0xff) << 16)
+				| ((frame[7] & 0xff) << 8) | (frame[8] & 0xff);
+	}
+
+	/**
+	 * Queues a frame of the stream, it is written in the stream's next turn.
+	 * @throws IOException if the connection is closed
+	 */
+	void enqueue(MuxStream s, byte[] frame) throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				throw new EOFException("Multiplexed connection closed");
+			s.outq.add(frame);
+			if (! s.scheduled) {
+				s.scheduled = true;
+				ring.add(s);
+			}
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void enqueueUrgent(byte[] frame) {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			urgent.add(frame);
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void remove(MuxStream s) {
+		streams.remove(s.getId());
+	}
+
+	//----THREADS---------------------------------------------------------//
+	private void write() {
+		List<byte[]> batch = new ArrayList<byte[]>();
+		try {
+			while (true) {
+				boolean more;
+				lock.lock();
+				try {
+					while (urgent.isEmpty() && ring.isEmpty() && ! closed)
+						work.await();
+					if (closed)
+						return;
+					batch.addAll(urgent);
+					urgent.clear();
+					//one frame of each stream per turn
+					for (int turns = ring.size(); turns > 0; turns--) {
+						MuxStream s = ring.removeFirst();
+						batch.add(s.outq.removeFirst());
+						if (s.outq.isEmpty())
+							s.scheduled = false;
+						else
+							ring.addLast(s);
+					}
+					more = ! ring.isEmpty() || ! urgent.isEmpty();
+				} finally {
+					lock.unlock();
+				}
+				for (byte[] frame : batch) {
+					out.write(frame, 0, Frame.MUX_HEADER_LEN + payloadLength(frame));
+					BufferPool.release(frame);
+				}
+				batch.clear();
+				if (! more)
+					out.flush();
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			fail(new IOException("Writer interrupted"));
+		}
+	}
+
+	private void read() {
+		try {
+			while (true) {
+				int type;
+				try {
+					type = in.read();
+				} catch (SocketTimeoutException e) {
+					if (streams.isEmpty()) {
+						close(); //idle
+						return;
+					}
+					continue;
+				}
+				if (type < 0)
+					throw new EOFException("Connection closed by peer");
+				int id = in.readInt();
+				int len = in.readInt();
+				if (len < 0 || len > (Frame.DATA == type || Frame.DEFLATED == type ? WINDOW : Frame.MAX_CONTROL_LEN))
+					throw new ProtocolException("Invalid frame length " + len);
+				if (Frame.DATA == type || Frame.DEFLATED == type) {
+					//kept whole, the stream finds the type and length in front of the payload
+					byte[] frame = pooledFrame((byte) type, id, len);
+					in.readFully(frame, Frame.MUX_HEADER_LEN, len);
+					MuxStream s = streams.get(id);
+					if (null != s)
+						s.deliver(frame);
+					else
+						BufferPool.release(frame);
+					continue;
+				}
+				byte[] payload = new byte[len];
+				in.readFully(payload);
+				dispatch((byte) type, id, payload);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void dispatch(byte type, int id, byte[] payload) throws IOException {
+		MuxStream s = streams.get(id);
+		switch (type) {
+		case Frame.REQUEST:
+			Request req = FrameCodec.decodeRequest(payload);
+			if (null == s) {
+				if (client || ! isNewStream(id))
+					return; //late frame of a closed stream
+				s = new MuxStream(this, id);
+				streams.put(id, s);
+				s.deliver(req);
+				lock.lock();
+				try {
+					accepted.add(s);
+					incoming.signal();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+			s.deliver(req);
+			return;
+		case Frame.RESPONSE:
+			Response resp = FrameCodec.decodeResponse(payload);
+			if (null != s)
+				s.deliver(resp);
+			return;
+		case Frame.TRAILER:
+			if (null != s)
+				s.deliver(FrameCodec.decodeTrailer(payload));
+			return;
+		case Frame.WINDOW:
+			if (null != s)
+				s.credit(ByteBuffer.wrap(payload).getInt());
+			return;
+		case Frame.RESET:
+			if (null != s)
+				s.resetByPeer();
+			else if (! client)
+				gaps.remove(id); //opened and given up before its request
+			return;
+		default:
+			throw new ProtocolException("Unknown frame type " + type);
+		}
+	}
+
+	/**
+	 * Server side: tells a stream the client opens from a late frame of a
+	 * stream closed or reset meanwhile, which must not start a new exchange.
+	 * @param id of a request for no open stream
+	 * @return true if it opens a new stream
+	 * @throws ProtocolException if the id is not one the client may use
+	 */
+	private boolean isNewStream(int id) throws ProtocolException {
+		if (id <= 0 || 0 == (id & 1))
+			throw new ProtocolException("Invalid client stream id " + id);
+		if (id <= lastAccepted)
+			return gaps.remove(id);
+		//only the closest ids may still come, a client opens few streams at the same time
+		for (int skipped = Math.max(lastAccepted + 2, Math.max(1, id - 2 * MAX_GAPS)); skipped < id; skipped += 2) {
+			gaps.add(skipped);
+			if (gaps.size() > MAX_GAPS)
+				gaps.pollFirst();
+		}
+		lastAccepted = id;
+		return true;
+	}
+
+	private void fail(IOException e) {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			work.signalAll();
+			incoming.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (MuxStream s : streams.values())
+			s.fail(e);
+		try {
+			conn.close();
+		} catch (IOException e1) {
+			//nothing else to do
+		}
+	}
+}
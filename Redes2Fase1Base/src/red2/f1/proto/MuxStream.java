@@ -0,0 +1,340 @@
+package red2.f1.proto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+import red2.f1.msg.Data;
+import red2.f1.msg.Request;
+import red2.f1.msg.Response;
+import red2.f1.util.BufferPool;
+
+/**
+ * One exchange of a {@link MuxChannel}: a request, its response and the
+ * file body, with the same methods as a whole connection. Closing a stream
+ * sends a {@link Frame#RESET}, which also stops a peer still sending a body.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class MuxStream extends MsgChannel {
+	/** Queued after the frames received before the peer's reset. */
+	private static final Object RESET_MARK = new Object();
+
+	private final MuxChannel mux;
+	private final int id;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	/**
+	 * Received messages, DATA and DEFLATED frames (pooled arrays, header
+	 * included) and trailers (as strings), in arrival order.
+	 */
+	private final ArrayDeque<Object> inbox = new ArrayDeque<Object>();
+	private IOException failure = null;
+	private boolean reset = false;
+	/** DATA bytes we may still send. */
+	private int sendWindow = MuxChannel.WINDOW;
+	/** DATA bytes consumed and not granted back to the peer yet. */
+	private int consumed = 0;
+	private boolean closed = false;
+	/** Created on the first body sent or received compressed. */
+	private Compression compression = null;
+	/** Original bytes of a compressed chunk. */
+	private byte[] block = null;
+
+	//frames waiting for the writer, guarded by the channel's lock
+	final ArrayDeque<byte[]> outq = new ArrayDeque<byte[]>();
+	boolean scheduled = false;
+
+	MuxStream(MuxChannel mux, int id) {
+		super(mux.getSocket());
+		this.mux = mux;
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public boolean isLegacy() {
+		return false;
+	}
+
+	//----MESSAGES--------------------------------------------------------//
+	@Override
+	public Object readMessage() throws IOException {
+		Object o = take();
+		if (o instanceof byte[]) {
+			byte[] frame = (byte[]) o;
+			int len = MuxChannel.payloadLength(frame);
+			if (Frame.DATA != frame[0])
+				throw new ProtocolException("Unexpected DEFLATED frame");
+			granted(len);
+			Data data = new Data(len);
+			data.writeData(Arrays.copyOfRange(frame, Frame.MUX_HEADER_LEN, Frame.MUX_HEADER_LEN + len));
+			BufferPool.release(frame);
+			return data;
+		}
+		return o;
+	}
+
+	@Override
+	public void writeRequest(Request r) throws IOException {
+		mux.enqueue(this, MuxChannel.frame(Frame.REQUEST, id, FrameCodec.encode(r)));
+	}
+
+	@Override
+	public void writeResponse(Response r) throws IOException {
+		mux.enqueue(this, MuxChannel.frame(Frame.RESPONSE, id, FrameCodec.encode(r)));
+	}
+
+	//----FILE CONTENTS---------------------------------------------------//
+	@Override
+	public long sendBody(FileChannel src, long position, long count,
+			MessageDigest md) throws IOException {
+		if (mux.getCompressLevel() > 0)
+			return sendCompressedBody(src, position, count, md);
+		long sent = 0;
+		while (sent < count) {
+			int n = acquireWindow((int) Math.min(MuxChannel.CHUNK, count - sent));
+			byte[] frame = MuxChannel.pooledFrame(Frame.DATA, id, n);
+			ByteBuffer bb = ByteBuffer.wrap(frame, Frame.MUX_HEADER_LEN, n);
+			while (bb.hasRemaining()) {
+				if (src.read(bb, position + sent + bb.position() - Frame.MUX_HEADER_LEN) < 0)
+					throw new EOFException("File ended after " + sent + " of " + count + " bytes");
+			}
+			if (null != md)
+				md.update(frame, Frame.MUX_HEADER_LEN, n);
+			mux.enqueue(this, frame);
+			sent += n;
+		}
+		return sent;
+	}
+
+	@Override
+	public long receiveBody(FileChannel dst, long position, long count,
+			MessageDigest md) throws IOException {
+		long written = 0;
+		while (written < count) {
+			Object o = take();
+			if (o instanceof Response)
+				throw new UnexpectedMessageException((Response) o);
+			if (! (o instanceof byte[]))
+				throw new ProtocolException("Expected DATA frame");
+			byte[] frame = (byte[]) o;
+			int len = MuxChannel.payloadLength(frame);
+			byte[] payload = frame;
+			int off = Frame.MUX_HEADER_LEN;
+			if (Frame.DEFLATED == frame[0]) {
+				len = compression().inflate(frame, off, len, block, count - written);
+				payload = block;
+				off = 0;
+			} else if (len > count - written)
+				throw new ProtocolException("DATA frame of " + len + " bytes exceeds the announced size");
+			if (null != md)
+				md.update(payload, off, len);
+			ByteBuffer bb = ByteBuffer.wrap(payload, off, len);
+			while (bb.hasRemaining())
+				dst.write(bb, position + written + bb.position() - off);
+			BufferPool.release(frame);
+			written += len;
+			granted(len); //the window counts the original bytes
+		}
+		return written;
+	}
+
+	/**
+	 * Sends the body in chunks, deflated when they shrink enough. The
+	 * window counts the original bytes.
+	 */
+	private long sendCompressedBody(FileChannel src, long position, long count,
+			MessageDigest md) throws IOException {
+		Compression c = compression();
+		c.startBody();
+		long sent = 0;
+		while (sent < count) {
+			int n = acquireWindow((int) Math.min(MuxChannel.CHUNK, count - sent));
+			ByteBuffer bb = ByteBuffer.wrap(block, 0, n);
+			while (bb.hasRemaining()) {
+				if (src.read(bb, position + sent + bb.position()) < 0)
+					throw new EOFException("File ended after " + (sent + bb.position()) + " of " + count + " bytes");
+			}
+			if (null != md)
+				md.update(block, 0, n);
+			int packed = c.compress(block, 0, n);
+			byte type = packed < 0 ? Frame.DATA : Frame.DEFLATED;
+			byte[] payload = packed < 0 ? block : c.packed();
+			int len = packed < 0 ? n : packed;
+			byte[] frame = MuxChannel.pooledFrame(type, id, len);
+			System.arraycopy(payload, 0, frame, Frame.MUX_HEADER_LEN, len);
+			mux.enqueue(this, frame);
+			sent += n;
+		}
+		return sent;
+	}
+
+	private Compression compression() {
+		if (null == compression) {
+			//a stream may receive a compressed body before sending its own
+			compression = new Compression(Math.max(Deflater.BEST_SPEED, mux.getCompressLevel()));
+			block = new byte[MuxChannel.CHUNK];
+		}
+		return compression;
+	}
+
+	@Override
+	public boolean hasTrailers() {
+		return mux.hasTrailers();
+	}
+
+	@Override
+	public void writeTrailer(String checksum) throws IOException {
+		mux.enqueue(this, MuxChannel.frame(Frame.TRAILER, id, FrameCodec.encodeTrailer(checksum)));
+	}
+
+	@Override
+	public String readTrailer() throws IOException {
+		Object o = take();
+		if (o instanceof Response)
+			throw new UnexpectedMessageException((Response) o);
+		if (! (o instanceof String))
+			throw new ProtocolException("Expected TRAILER frame");
+		return (String) o;
+	}
+
+	/**
+	 * Only closes the stream, the connection stays open for the others.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			if (null == failure)
+				failure = new EOFException("Stream closed");
+			for (Object o : inbox) {
+				if (o instanceof byte[])
+					BufferPool.release((byte[]) o);
+			}
+			inbox.clear();
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		mux.remove(this);
+		if (null != compression)
+			compression.end();
+		try {
+			mux.enqueue(this, MuxChannel.frame(Frame.RESET, id, new byte[0]));
+		} catch (IOException e) {
+			//the connection is gone, nothing to tell the peer
+		}
+	}
+
+	//----CALLED BY THE CHANNEL-------------------------------------------//
+	void deliver(Object message) {
+		lock.lock();
+		try {
+			inbox.add(message);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void credit(int bytes) {
+		lock.lock();
+		try {
+			sendWindow += bytes;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void resetByPeer() {
+		lock.lock();
+		try {
+			reset = true;
+			inbox.add(RESET_MARK);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void fail(IOException e) {
+		lock.lock();
+		try {
+			failure = e;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//----HELPERS---------------------------------------------------------//
+	private Object take() throws IOException {
+		lock.lock();
+		try {
+			while (inbox.isEmpty() && null == failure)
+				changed.await();
+			if (inbox.isEmpty())
+				throw failure;
+			Object o = inbox.removeFirst();
+			if (RESET_MARK == o)
+				throw new EOFException("Stream reset by peer");
+			return o;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the peer");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the window lets at least one byte through.
+	 * @param wanted
+	 * @return the number of bytes that may be sent, at most <code>wanted</code>
+	 */
+	private int acquireWindow(int wanted) throws IOException {
+		lock.lock();
+		try {
+			while (0 == sendWindow && ! reset && null == failure)
+				changed.await();
+			if (reset)
+				throw new EOFException("Stream reset by peer");
+			if (null != failure)
+				throw failure;
+			int n = Math.min(wanted, sendWindow);
+			sendWindow -= n;
+			return n;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the peer");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives consumed DATA back to the sender's window, in batches.
+	 */
+	private void granted(int bytes) {
+		consumed += bytes;
+		if (consumed >= MuxChannel.WINDOW / 4) {
+			byte[] frame = MuxChannel.pooledFrame(Frame.WINDOW, id, 4);
+			MuxChannel.putInt(frame, Frame.MUX_HEADER_LEN, consumed);
+			mux.enqueueUrgent(frame);
+			consumed = 0;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package red2.f1.proto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import red2.f1.msg.Data;
+import red2.f1.msg.Request;
+import red2.f1.msg.Response;
+import red2.f1.util.Util;
+
+/**
+ * The original protocol: every message is a serialized object and the file
+ * contents travel as {@link Data} objects of at most {@link Util#MAX_DATA} bytes.
+ * The object streams are opened lazily, so each side writes its stream
+ * header only when it first sends something.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ObjectMsgChannel extends MsgChannel {
+	private final InputStream in;
+	private ObjectInputStream ois = null;
+	private ObjectOutputStream oos = null;
+	/** Chunks of the bodies we send, reused from one body to the next. */
+	private final byte[] buf = new byte[Util.MAX_DATA];
+	/** Sends every full chunk, serialized straight from {@link #buf}. */
+	private final Data full = new Data(Util.MAX_DATA);
+
+	public ObjectMsgChannel(Socket conn, InputStream in) {
+		super(conn);
+		this.in = in;
+		full.wrapData(buf);
+	}
+
+	@Override
+	public boolean isLegacy() {
+		return true;
+	}
+
+	@Override
+	public Object readMessage() throws IOException, ClassNotFoundException {
+		return input().readObject();
+	}
+
+	@Override
+	public void writeRequest(Request r) throws IOException {
+		output().writeObject(r);
+		oos.flush();
+	}
+
+	@Override
+	public void writeResponse(Response r) throws IOException {
+		output().writeObject(r);
+		oos.flush();
+	}
+
+	@Override
+	public long sendBody(FileChannel src, long position, long count,
+			MessageDigest md) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		long sent = 0;
+		while (sent < count) {
+			bb.clear();
+			bb.limit((int) Math.min(buf.length, count - sent));
+			//the receiver stops at the first short chunk, so always fill the buffer
+			while (bb.hasRemaining()) {
+				if (src.read(bb, position + sent + bb.position()) < 0)
+					break;
+			}
+			if (0 == bb.position())
+				break;
+			if (null != md)
+				md.update(buf, 0, bb.position());
+			Data dpak = full;
+			if (bb.position() < buf.length) {
+				dpak = new Data(bb.position());
+				dpak.writeData(buf);
+			}
+			output().writeObject(dpak);
+			oos.flush();
+			oos.reset();
+			sent += bb.position();
+			if (bb.hasRemaining())
+				break; //end of file reached before count
+		}
+		return sent;
+	}
+
+	@Override
+	public long receiveBody(FileChannel dst, long position, long count,
+			MessageDigest md) throws IOException {
+		long written = 0;
+		while (written < count) {
+			Object obj;
+			try {
+				obj = input().readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("ClassNotFoundException: " + e.getMessage());
+			}
+			if (!(obj instanceof Data))
+				throw new UnexpectedMessageException(obj);
+			Data data = (Data) obj;
+			if (data.getLen() == 0)
+				break;
+			if (null != md)
+				md.update(data.getData(), 0, data.getLen());
+			ByteBuffer bb = ByteBuffer.wrap(data.getData(), 0, data.getLen());
+			while (bb.hasRemaining())
+				dst.write(bb, position + written + bb.position());
+			written += data.getLen();
+		}
+		return written;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (null != oos) oos.close();
+			if (null != ois) ois.close();
+		} finally {
+			super.close();
+		}
+	}
+
+	private ObjectInputStream input() throws IOException {
+		if (null == ois)
+			ois = new ObjectInputStream(in);
+		return ois;
+	}
+
+	private ObjectOutputStream output() throws IOException {
+		if (null == oos) {
+			oos = new ObjectOutputStream(conn.getOutputStream());
+			oos.flush();
+		}
+		return oos;
+	}
+}
@@ -0,0 +1,25 @@
+package red2.f1.proto;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the peer sends a message that does not fit the current exchange,
+ * typically an error {@link red2.f1.msg.Response} in the middle of a transfer.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class UnexpectedMessageException extends IOException {
+	/**
+	 * Generated serial ID.
+	 */
+	private static final long serialVersionUID = -2260945207911404874L;
+	private final transient Object received;
+
+	public UnexpectedMessageException(Object received) {
+		super("Unexpected message: " + (null == received ? "null" : received.getClass().getSimpleName()));
+		this.received = received;
+	}
+
+	public Object getReceived() {
+		return received;
+	}
+}
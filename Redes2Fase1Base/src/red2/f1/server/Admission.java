@@ -0,0 +1,95 @@
+package red2.f1.server;
+
+import java.util.concurrent.Semaphore;
+
+import red2.f1.msg.MsgType;
+import red2.f1.msg.Response;
+import red2.f1.msg.Response.Codes;
+
+/**
+ * Admission control. A connection needs a permit before it gets a handler,
+ * and each request then needs a permit of its lane: transfers can not take
+ * all the workers, so listings and deletes keep a stable latency under load.
+ * Whoever does not get a permit is answered with {@link #busyResponse()}.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Admission {
+	public static enum Lane {META, TRANSFER}
+
+	private final Semaphore connections;
+	private final Semaphore transferLane;
+	private final Semaphore metaLane;
+	private final long retryAfter;
+
+	/**
+	 * @param connections connections admitted at the same time, running or queued
+	 * @param transfers requests of the transfer lane served at the same time
+	 * @param meta requests of the meta lane served at the same time
+	 * @param retryAfter delay suggested to the clients turned away
+	 */
+	public Admission(int connections, int transfers, int meta, long retryAfter) {
+		this.connections = new Semaphore(connections);
+		this.transferLane = new Semaphore(transfers);
+		this.metaLane = new Semaphore(meta);
+		this.retryAfter = retryAfter;
+	}
+
+	public static Lane laneOf(MsgType type) {
+		if (null == type)
+			return Lane.META;
+		switch (type) {
+		case R:
+		case S:
+		case DS:
+		case CS:
+		case BR:
+		case BS:
+			return Lane.TRANSFER;
+		default:
+			return Lane.META;
+		}
+	}
+
+	/**
+	 * @return true if the connection may be given to a handler,
+	 * it must then call {@link #releaseConnection()} when done
+	 */
+	public boolean tryAcquireConnection() {
+		return connections.tryAcquire();
+	}
+
+	public void releaseConnection() {
+		connections.release();
+	}
+
+	/**
+	 * @param type
+	 * @return true if the request may be served, {@link #leave(MsgType)} must follow
+	 */
+	public boolean tryEnter(MsgType type) {
+		return lane(type).tryAcquire();
+	}
+
+	public void leave(MsgType type) {
+		lane(type).release();
+	}
+
+	private Semaphore lane(MsgType type) {
+		return Lane.TRANSFER == laneOf(type) ? transferLane : metaLane;
+	}
+
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @return the error sent to the clients turned away
+	 */
+	public Response busyResponse() {
+		Response resp = new Response(MsgType.ERR);
+		resp.setCode(Codes.ERR);
+		resp.setMessage("Server busy, retry after " + retryAfter + " ms");
+		resp.setRetryAfter(retryAfter);
+		return resp;
+	}
+}
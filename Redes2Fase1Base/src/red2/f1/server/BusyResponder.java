@@ -0,0 +1,72 @@
+package red2.f1.server;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import red2.f1.msg.Hello;
+import red2.f1.proto.DrainableInputStream;
+import red2.f1.proto.Frame;
+import red2.f1.proto.FrameMsgChannel;
+import red2.f1.proto.MsgChannel;
+import red2.f1.util.Util;
+
+/**
+ * Turns away a connection that was not admitted: reads its request, answers
+ * with {@link Admission#busyResponse()} and closes. Everything runs with a
+ * short timeout, so slow clients can not hold the shedding threads.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class BusyResponder implements Runnable {
+	private static final int TIMEOUT = 2000;
+
+	private final Socket conn;
+	private final Admission admission;
+	private final byte[] prefix;
+	private final Hello negotiated;
+
+	public BusyResponder(Socket s, Admission admission) {
+		this(s, admission, null, null);
+	}
+
+	/**
+	 * @param s
+	 * @param admission
+	 * @param prefix bytes already read from the connection, may be null
+	 * @param negotiated frame options already agreed on, null if no handshake happened yet
+	 */
+	public BusyResponder(Socket s, Admission admission, byte[] prefix, Hello negotiated) {
+		this.conn = s;
+		this.admission = admission;
+		this.prefix = prefix;
+		this.negotiated = negotiated;
+	}
+
+	@Override
+	public void run() {
+		MsgChannel channel = null;
+		try {
+			conn.setSoTimeout(TIMEOUT);
+			if (null != negotiated) {
+				channel = new FrameMsgChannel(conn, new DrainableInputStream(conn.getInputStream(), prefix));
+			} else {
+				channel = null == prefix ? MsgChannel.accept(conn) : MsgChannel.accept(conn, prefix);
+				if (! channel.isLegacy()) {
+					FrameMsgChannel frames = (FrameMsgChannel) channel;
+					Hello offer = frames.readHello();
+					frames.writeHello(new Hello(Math.min(offer.getVersion(), Frame.VERSION)));
+				}
+			}
+			channel.readMessage(); //the request, not served
+			channel.writeResponse(admission.busyResponse());
+		} catch (Exception e) {
+			//the client is gone or too slow, closing is all that is left
+		} finally {
+			try {
+				if (null != channel) channel.close();
+				else conn.close();
+			} catch (IOException e) {
+				Util.serBashln("Error closing rejected connection: " + e.getMessage());
+			}
+		}
+	}
+}
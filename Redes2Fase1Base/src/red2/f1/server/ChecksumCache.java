@@ -0,0 +1,255 @@
+package red2.f1.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import red2.f1.util.FileTree;
+import red2.f1.util.Log;
+import red2.f1.util.Util;
+
+/**
+ * MD5 checksums of the served files, so a download does not have to read the
+ * whole file before its first byte is sent. An entry is valid while the file
+ * keeps the length and modification time it had when it was hashed.
+ * <p>
+ * The most recently used entries are kept in memory and saved to an index
+ * file in the served folder, which survives restarts and is hidden from the
+ * clients. The index is rewritten in the background, at most every
+ * {@link #FLUSH_INTERVAL} ms and once more when the server stops, never by
+ * the handlers themselves.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ChecksumCache {
+	/** Name of the index file, inside the served folder. */
+	public static final String INDEX_NAME = ".red2-checksums";
+	/** Time between two writes of a changed index. */
+	public static final long FLUSH_INTERVAL = 5000;
+
+	private static class Sum {
+		final long length;
+		final long modified;
+		final String checksum;
+
+		Sum(long length, long modified, String checksum) {
+			this.length = length;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+	}
+
+	private final File dir;
+	private final File index;
+	//guarded by this
+	private final Map<String, Sum> entries;
+	/** The entries changed since the index was last written. */
+	private volatile boolean dirty = false;
+	/** Held while the index is written, by the flusher or the shutdown hook. */
+	private final Object saving = new Object();
+
+	/**
+	 * @param dir the served folder
+	 * @param capacity entries kept, the least recently used are dropped first
+	 */
+	public ChecksumCache(File dir, final int capacity) {
+		this.dir = dir;
+		this.index = new File(dir, INDEX_NAME);
+		this.entries = new LinkedHashMap<String, Sum>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Sum> eldest) {
+				return size() > capacity;
+			}
+		};
+		load();
+		Thread flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(FLUSH_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+					flush();
+				}
+			}
+		}, "checksum-flush");
+		flusher.setDaemon(true);
+		flusher.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "checksum-flush-exit"));
+	}
+
+	/**
+	 * @param name a file name as sent by the clients
+	 * @return true for the index file, which the clients must not see
+	 */
+	public static boolean isIndex(String name) {
+		return null != name && name.startsWith(INDEX_NAME); //and its temporary copy
+	}
+
+	/**
+	 * @param file a file of the served folder
+	 * @return its checksum, computed only if the cache does not hold
+	 * a valid one; null if it could not be computed
+	 */
+	public String checksum(File file) {
+		long modified = file.lastModified();
+		String checksum = cached(file);
+		if (null != checksum)
+			return checksum;
+		checksum = Util.calcMD5(file, Util.MAX_DATA * Util.MAX_DATA);
+		if (null != checksum && ! checksum.isEmpty() && modified == file.lastModified())
+			put(file, checksum);
+		return checksum;
+	}
+
+	/**
+	 * @param file a file of the served folder
+	 * @return its checksum if the cache holds a valid one, null otherwise
+	 */
+	public String cached(File file) {
+		String key = keyOf(file);
+		long length = file.length();
+		long modified = file.lastModified();
+		Sum e;
+		synchronized (this) {
+			e = entries.get(key);
+		}
+		if (null != e && e.length == length && e.modified == modified)
+			return e.checksum;
+		return null;
+	}
+
+	/**
+	 * Remembers the checksum of a file, e.g. computed while it was uploaded.
+	 * @param file
+	 * @param checksum
+	 */
+	public void put(File file, String checksum) {
+		Sum sum = new Sum(file.length(), file.lastModified(), checksum);
+		String key = keyOf(file);
+		synchronized (this) {
+			entries.put(key, sum);
+		}
+		dirty = true;
+	}
+
+	public void remove(String name) {
+		synchronized (this) {
+			if (null == entries.remove(name))
+				return;
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Writes the index if it changed since it was last written.
+	 */
+	public void flush() {
+		synchronized (saving) {
+			if (! dirty)
+				return;
+			dirty = false;
+			save();
+		}
+	}
+
+	/**
+	 * @return the name of the file as the clients send it, its path for the
+	 * files of subfolders
+	 */
+	private String keyOf(File file) {
+		return FileTree.pathOf(dir, file);
+	}
+
+	//----INDEX FILE------------------------------------------------------//
+	/**
+	 * Reads the index, one <code>checksum length modified name</code> line per
+	 * file, tab separated. Broken lines and vanished files are skipped.
+	 */
+	private void load() {
+		if (! index.isFile())
+			return;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), Util.SHARED_CHARSET));
+			String line;
+			while (null != (line = reader.readLine())) {
+				String[] f = line.split("\t", 4);
+				if (f.length != 4 || ! new File(dir, f[3]).isFile())
+					continue;
+				try {
+					entries.put(f[3], new Sum(Long.parseLong(f[1]), Long.parseLong(f[2]), f[0]));
+				} catch (NumberFormatException e) {
+					//skip the line
+				}
+			}
+			Util.serBashln("Loaded " + entries.size() + " checksum(s) from " + index.getName());
+		} catch (IOException e) {
+			Util.serBashln("Unable to read checksum index: " + e.getMessage());
+		} finally {
+			try {
+				if (null != reader) reader.close();
+			} catch (IOException e) {
+				//nothing else to do
+			}
+		}
+	}
+
+	/**
+	 * Writes the index to a temporary file first, so a crash never leaves
+	 * it half written. Only the copy of the entries holds the cache.
+	 */
+	private void save() {
+		List<String> lines;
+		synchronized (this) {
+			lines = new ArrayList<String>(entries.size());
+			for (Map.Entry<String, Sum> e : entries.entrySet()) {
+				Sum entry = e.getValue();
+				lines.add(entry.checksum + "\t" + entry.length + "\t" + entry.modified + "\t" + e.getKey());
+			}
+		}
+		File tmp = new File(dir, INDEX_NAME + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), Util.SHARED_CHARSET));
+			for (String line : lines) {
+				writer.write(line);
+				writer.newLine();
+			}
+			writer.close();
+			writer = null;
+			if (! tmp.renameTo(index)) {
+				index.delete();
+				if (! tmp.renameTo(index))
+					Util.serBashln("Unable to replace checksum index " + index.getName());
+			}
+		} catch (IOException e) {
+			dirty = true; //try again later
+			Util.serBashln("Unable to write checksum index");
+			Log.error(e);
+		} finally {
+			try {
+				if (null != writer) writer.close();
+			} catch (IOException e) {
+				//nothing else to do
+			}
+		}
+	}
+}
@@ -0,0 +1,531 @@
+package red2.f1.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import red2.f1.proto.MsgChannel;
+import red2.f1.util.BufferPool;
+import red2.f1.util.Chunker;
+import red2.f1.util.Util;
+
+/**
+ * Deduplicating storage of the uploaded files, enabled by
+ * <code>-store=chunks</code>. Every file is split in content defined chunks
+ * (see {@link Chunker}), each distinct chunk is stored once under its
+ * SHA-256 and a file is kept as its manifest, the list of its chunks.
+ * Near identical files thus share most of their disk space.
+ * <p>
+ * Everything lives in a hidden folder of the served folder:
+ * <code>chunks/ab/abcd...</code> and <code>files/&lt;name&gt;</code>, a first
+ * line <code>size checksum</code> then a <code>hash length</code> line per
+ * chunk, tab separated. Chunks are counted as used while a manifest, an
+ * upload in progress or a download refers to them, and deleted once unused.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ChunkStore {
+	/** Name of the store folder, inside the served folder. */
+	public static final String DIR_NAME = ".red2-store";
+
+	/**
+	 * A stored file: its size, MD5 and chunks.
+	 */
+	public static class Manifest {
+		private final long size;
+		private final String checksum;
+		private final String[] hashes;
+		private final int[] lengths;
+
+		public Manifest(long size, String checksum, String[] hashes, int[] lengths) {
+			this.size = size;
+			this.checksum = checksum;
+			this.hashes = hashes;
+			this.lengths = lengths;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getChecksum() {
+			return checksum;
+		}
+	}
+
+	private final File chunksDir;
+	private final File filesDir;
+	private final Map<String, Manifest> files = new HashMap<String, Manifest>();
+	/** Uses of every chunk: by the manifests, the uploads and the downloads in progress. */
+	private final Map<String, Integer> refs = new HashMap<String, Integer>();
+
+	/**
+	 * Loads the manifests and deletes the chunks no manifest uses, left by
+	 * uploads interrupted by a restart.
+	 * @param dir the served folder
+	 * @throws IOException if the store folder can not be created
+	 */
+	public ChunkStore(File dir) throws IOException {
+		File root = new File(dir, DIR_NAME);
+		this.chunksDir = new File(root, "chunks");
+		this.filesDir = new File(root, "files");
+		if (! chunksDir.isDirectory() && ! chunksDir.mkdirs())
+			throw new IOException("Unable to create " + chunksDir.getPath());
+		if (! filesDir.isDirectory() && ! filesDir.mkdirs())
+			throw new IOException("Unable to create " + filesDir.getPath());
+		for (File f : filesDir.listFiles()) {
+			Manifest m = load(f);
+			if (null == m) {
+				Util.serBashln("Skipping broken manifest " + f.getName());
+				continue;
+			}
+			files.put(f.getName(), m);
+			acquire(m.hashes);
+		}
+		int swept = 0;
+		for (File sub : chunksDir.listFiles())
+			if (sub.isDirectory())
+				for (File c : sub.listFiles())
+					if (! refs.containsKey(c.getName()) && c.delete())
+						swept++;
+		Util.serBashln("Loaded " + files.size() + " stored file(s), " + refs.size() + " chunk(s)" +
+				(swept > 0 ? ", deleted " + swept + " unused chunk(s)" : ""));
+	}
+
+	/**
+	 * @param name a file name as sent by the clients
+	 * @return true for the store folder, which the clients must not see
+	 */
+	public static boolean isStore(String name) {
+		return null != name && name.startsWith(DIR_NAME);
+	}
+
+	public synchronized boolean contains(String name) {
+		return files.containsKey(name);
+	}
+
+	/**
+	 * @return the size of every stored file, by name
+	 */
+	public synchronized Map<String, Long> sizes() {
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for (Map.Entry<String, Manifest> e : files.entrySet())
+			sizes.put(e.getKey(), e.getValue().size);
+		return sizes;
+	}
+
+	/**
+	 * @param name
+	 * @return the size of the stored file, -1 if it is not stored
+	 */
+	public synchronized long sizeOf(String name) {
+		Manifest m = files.get(name);
+		return null == m ? -1 : m.size;
+	}
+
+	/**
+	 * Takes a stored file for reading, its chunks are kept until {@link #close(Manifest)}.
+	 * @param name
+	 * @return null if the file is not stored
+	 */
+	public synchronized Manifest open(String name) {
+		Manifest m = files.get(name);
+		if (null != m)
+			acquire(m.hashes);
+		return m;
+	}
+
+	public synchronized void close(Manifest m) {
+		release(m.hashes);
+	}
+
+	/**
+	 * Starts storing a file listed as chunks, its chunks are kept until
+	 * {@link #commit} or {@link #close(Manifest)}.
+	 * @param m
+	 * @return which chunks are missing; a chunk listed twice is only asked for once
+	 */
+	public synchronized boolean[] reserve(Manifest m) {
+		boolean[] missing = new boolean[m.hashes.length];
+		Map<String, Boolean> seen = new HashMap<String, Boolean>();
+		for (int i = 0; i < m.hashes.length; i++)
+			if (null == seen.put(m.hashes[i], Boolean.TRUE))
+				missing[i] = ! chunkFile(m.hashes[i]).isFile();
+		acquire(m.hashes);
+		return missing;
+	}
+
+	/**
+	 * Stores a chunk, unless it is already there.
+	 * @param hash
+	 * @param tmp holds the chunk, its hash verified; moved or deleted
+	 * @throws IOException
+	 */
+	public synchronized void put(String hash, File tmp) throws IOException {
+		File f = chunkFile(hash);
+		if (f.isFile()) {
+			tmp.delete();
+			return;
+		}
+		File sub = f.getParentFile();
+		if (! sub.isDirectory() && ! sub.mkdirs())
+			throw new IOException("Unable to create " + sub.getPath());
+		if (! tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("Unable to store chunk " + hash);
+		}
+	}
+
+	/**
+	 * @return a new file, in the store folder, for a chunk being received
+	 * @throws IOException
+	 */
+	public File newChunkFile() throws IOException {
+		return File.createTempFile("chunk-", ".tmp", chunksDir);
+	}
+
+	/**
+	 * Makes a reserved file visible under its name, replacing a stored file
+	 * of the same name.
+	 * @param name
+	 * @param m reserved with {@link #reserve}, all its chunks stored
+	 * @throws IOException if the manifest could not be written, the reservation is released
+	 */
+	public synchronized void commit(String name, Manifest m) throws IOException {
+		for (String hash : m.hashes)
+			if (! chunkFile(hash).isFile()) {
+				release(m.hashes);
+				throw new IOException("Chunk " + hash + " of '" + name + "' is missing");
+			}
+		try {
+			save(name, m);
+		} catch (IOException e) {
+			release(m.hashes);
+			throw e;
+		}
+		Manifest old = files.put(name, m);
+		if (null != old)
+			release(old.hashes);
+	}
+
+	/**
+	 * Moves an uploaded file into the store.
+	 * @param file deleted once stored
+	 * @param name
+	 * @param checksum MD5 of the file
+	 * @return the number of chunks that were not stored yet
+	 * @throws IOException
+	 */
+	public int ingest(File file, String name, String checksum) throws IOException {
+		MessageDigest sha = sha();
+		List<String> hashes = new ArrayList<String>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		byte[] chunk = BufferPool.heap(Chunker.MAX_CHUNK);
+		int added = 0;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Chunker chunker = new Chunker(in);
+			int len;
+			while ((len = chunker.next(chunk)) >= 0) {
+				sha.update(chunk, 0, len);
+				String hash = Util.toHex(sha.digest());
+				synchronized (this) {
+					acquire(new String[] {hash}); //a concurrent delete must not take it
+					if (! chunkFile(hash).isFile()) {
+						File tmp = newChunkFile();
+						OutputStream out = new FileOutputStream(tmp);
+						try {
+							out.write(chunk, 0, len);
+						} finally {
+							out.close();
+						}
+						put(hash, tmp);
+						added++;
+					}
+				}
+				hashes.add(hash);
+				lengths.add(len);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				release(hashes.toArray(new String[hashes.size()]));
+			}
+			throw e;
+		} finally {
+			in.close();
+			BufferPool.release(chunk);
+		}
+		int[] lens = new int[lengths.size()];
+		for (int i = 0; i < lens.length; i++)
+			lens[i] = lengths.get(i);
+		commit(name, new Manifest(file.length(), checksum, hashes.toArray(new String[hashes.size()]), lens));
+		file.delete();
+		return added;
+	}
+
+	/**
+	 * @param name
+	 * @return false if the file is not stored
+	 */
+	public synchronized boolean delete(String name) {
+		Manifest m = files.remove(name);
+		if (null == m)
+			return false;
+		new File(filesDir, name).delete();
+		release(m.hashes);
+		return true;
+	}
+
+	/**
+	 * Sends a part of a stored file as a body.
+	 * @param m opened with {@link #open(String)}
+	 * @param ch
+	 * @param offset
+	 * @param length
+	 * @param md updated with the bytes sent, may be null
+	 * @return the number of bytes sent
+	 * @throws IOException
+	 */
+	public long sendBody(Manifest m, MsgChannel ch, long offset, long length, MessageDigest md)
+			throws IOException {
+		long pos = 0;
+		long sent = 0;
+		long end = offset + length;
+		for (int i = 0; i < m.hashes.length && pos < end; i++) {
+			long chunkEnd = pos + m.lengths[i];
+			if (chunkEnd > offset) {
+				long from = Math.max(offset, pos) - pos;
+				long count = Math.min(end, chunkEnd) - pos - from;
+				FileInputStream in = new FileInputStream(chunkFile(m.hashes[i]));
+				try {
+					long n = ch.sendBody(in.getChannel(), from, count, md);
+					sent += n;
+					if (n != count)
+						return sent;
+				} finally {
+					in.close();
+				}
+			}
+			pos = chunkEnd;
+		}
+		return sent;
+	}
+
+	/**
+	 * Writes a stored file out, e.g. as the old copy a delta is applied to.
+	 * @param m opened with {@link #open(String)}
+	 * @param out not closed
+	 * @throws IOException
+	 */
+	public void copy(Manifest m, OutputStream out) throws IOException {
+		byte[] buf = BufferPool.heap(Chunker.MAX_CHUNK);
+		try {
+			for (String hash : m.hashes) {
+				FileInputStream in = new FileInputStream(chunkFile(hash));
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0)
+						out.write(buf, 0, n);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			BufferPool.release(buf);
+		}
+	}
+
+	/**
+	 * Hashes a stored file back from its chunks.
+	 * @param m opened with {@link #open(String)} or reserved with {@link #reserve}
+	 * @return the MD5 of the file
+	 * @throws IOException
+	 */
+	public String checksum(Manifest m) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Error creating MessageDigest with MD5 algorithm");
+		}
+		byte[] buf = BufferPool.heap(Chunker.MAX_CHUNK);
+		try {
+			for (String hash : m.hashes) {
+				FileInputStream in = new FileInputStream(chunkFile(hash));
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0)
+						md.update(buf, 0, n);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			BufferPool.release(buf);
+		}
+		return Util.calcMD5(md.digest());
+	}
+
+	/**
+	 * @param chunks as sent by the clients, see {@link Chunker#ENTRY_LEN}
+	 * @param size
+	 * @param checksum
+	 * @return null if the list is malformed or does not add up to <code>size</code>
+	 */
+	public static Manifest parse(byte[] chunks, long size, String checksum) {
+		if (null == chunks || 0 != chunks.length % Chunker.ENTRY_LEN)
+			return null;
+		int n = chunks.length / Chunker.ENTRY_LEN;
+		String[] hashes = new String[n];
+		int[] lengths = new int[n];
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			int off = i * Chunker.ENTRY_LEN;
+			byte[] hash = new byte[Chunker.HASH_LEN];
+			System.arraycopy(chunks, off, hash, 0, hash.length);
+			hashes[i] = Util.toHex(hash);
+			off += Chunker.HASH_LEN;
+			lengths[i] = (chunks[off] & 0xff) << 24 | (chunks[off + 1] & 0xff) << 16 |
+					(chunks[off + 2] & 0xff) << 8 | (chunks[off + 3] & 0xff);
+			if (lengths[i] <= 0 || lengths[i] > Chunker.MAX_CHUNK)
+				return null;
+			total += lengths[i];
+		}
+		return total == size ? new Manifest(size, checksum, hashes, lengths) : null;
+	}
+
+	/**
+	 * @param m
+	 * @param i
+	 * @return the hash of the i-th chunk of the file
+	 */
+	public static String hashOf(Manifest m, int i) {
+		return m.hashes[i];
+	}
+
+	/**
+	 * @param m
+	 * @param i
+	 * @return the length of the i-th chunk of the file
+	 */
+	public static int lengthOf(Manifest m, int i) {
+		return m.lengths[i];
+	}
+
+	/**
+	 * @param m
+	 * @return the number of chunks of the file
+	 */
+	public static int countOf(Manifest m) {
+		return m.hashes.length;
+	}
+
+	/**
+	 * @return a new digest of the algorithm naming the chunks
+	 * @throws IOException if the algorithm is not available
+	 */
+	public static MessageDigest sha() throws IOException {
+		try {
+			return MessageDigest.getInstance(Chunker.HASH);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Error creating MessageDigest with " + Chunker.HASH + " algorithm");
+		}
+	}
+
+	//----COUNTING--------------------------------------------------------//
+	private void acquire(String[] hashes) {
+		for (String hash : hashes) {
+			Integer n = refs.get(hash);
+			refs.put(hash, null == n ? 1 : n + 1);
+		}
+	}
+
+	/**
+	 * Gives back uses of chunks, deleting those no longer used.
+	 */
+	private void release(String[] hashes) {
+		for (String hash : hashes) {
+			Integer n = refs.get(hash);
+			if (null == n || n <= 1) {
+				refs.remove(hash);
+				chunkFile(hash).delete();
+			} else
+				refs.put(hash, n - 1);
+		}
+	}
+
+	private File chunkFile(String hash) {
+		return new File(new File(chunksDir, hash.substring(0, 2)), hash);
+	}
+
+	//----MANIFEST FILES--------------------------------------------------//
+	private void save(String name, Manifest m) throws IOException {
+		File tmp = new File(filesDir, name + ".tmp");
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+				Util.SHARED_CHARSET));
+		try {
+			writer.write(m.size + "\t" + m.checksum);
+			writer.newLine();
+			for (int i = 0; i < m.hashes.length; i++) {
+				writer.write(m.hashes[i] + "\t" + m.lengths[i]);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		File f = new File(filesDir, name);
+		if (! tmp.renameTo(f)) {
+			f.delete();
+			if (! tmp.renameTo(f)) {
+				tmp.delete();
+				throw new IOException("Unable to write the manifest of '" + name + "'");
+			}
+		}
+	}
+
+	private static Manifest load(File f) {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), Util.SHARED_CHARSET));
+			String[] head = reader.readLine().split("\t", 2);
+			List<String> hashes = new ArrayList<String>();
+			List<Integer> lengths = new ArrayList<Integer>();
+			long total = 0;
+			String line;
+			while (null != (line = reader.readLine())) {
+				String[] c = line.split("\t", 2);
+				hashes.add(c[0]);
+				lengths.add(Integer.parseInt(c[1]));
+				total += lengths.get(lengths.size() - 1);
+			}
+			long size = Long.parseLong(head[0]);
+			if (total != size || head.length != 2)
+				return null;
+			int[] lens = new int[lengths.size()];
+			for (int i = 0; i < lens.length; i++)
+				lens[i] = lengths.get(i);
+			return new Manifest(size, head[1], hashes.toArray(new String[hashes.size()]), lens);
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) { //missing or malformed fields
+			return null;
+		} finally {
+			try {
+				if (null != reader) reader.close();
+			} catch (IOException e) {
+				//nothing else to do
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package red2.f1.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import red2.f1.util.FileTree;
+import red2.f1.util.MemoryFileChannel;
+import red2.f1.util.Util;
+
+/**
+ * Contents of the most requested files, kept off the heap in direct
+ * buffers, so that a popular download reads nothing from the disk.
+ * <p>
+ * A file is loaded whole on its {@link #ADMIT}th request among the recent
+ * ones, its checksum computed on the way, and served from memory as long as
+ * it keeps the length and modification time it had then. The least recently
+ * used files make room for new ones within the byte budget. The files the
+ * {@link DirectoryIndex} hears about, written or deleted through the server
+ * or seen changing by its watcher, are dropped at once.
+ * <p>
+ * The memory of a dropped file is freed by the garbage collector once the
+ * transfers still reading it are done, so the budget may be exceeded for a
+ * while. It counts against <code>-XX:MaxDirectMemorySize</code>.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ContentCache {
+	/** Requests among the recent ones a file needs before it is loaded. */
+	public static final int ADMIT = 2;
+	/** Recently requested files whose requests are counted. */
+	private static final int CANDIDATES = 1024;
+	/** Largest file kept, as a fraction of the budget. */
+	private static final int MAX_SHARE = 4;
+
+	private static class Content {
+		final long length;
+		final long modified;
+		final ByteBuffer data;
+
+		Content(long length, long modified, ByteBuffer data) {
+			this.length = length;
+			this.modified = modified;
+			this.data = data;
+		}
+	}
+
+	private final File dir;
+	private final long budget;
+	private final ChecksumCache checksums;
+	//guarded by this
+	/** Least recently used first. */
+	private final Map<String, Content> entries = new LinkedHashMap<String, Content>(16, 0.75f, true);
+	private final Map<String, Integer> candidates;
+	/** Files being loaded, not to be loaded twice at the same time. */
+	private final Set<String> loading = new HashSet<String>();
+	private long used = 0;
+
+	/**
+	 * @param dir the served folder
+	 * @param budget bytes of file contents kept
+	 * @param checksums given the checksums computed while loading
+	 */
+	public ContentCache(File dir, long budget, ChecksumCache checksums) {
+		this.dir = dir;
+		this.budget = budget;
+		this.checksums = checksums;
+		this.candidates = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > CANDIDATES;
+			}
+		};
+	}
+
+	/**
+	 * Counts a request of the file and loads it if it became hot.
+	 * @param file a file of the served folder
+	 * @return a channel reading the file from memory, null if it is not
+	 * kept; the checksum of a kept file is in the {@link ChecksumCache}
+	 */
+	public FileChannel open(File file) {
+		String key = FileTree.pathOf(dir, file);
+		long length = file.length();
+		long modified = file.lastModified();
+		synchronized (this) {
+			Content c = entries.get(key);
+			if (null != c) {
+				if (c.length == length && c.modified == modified)
+					return new MemoryFileChannel(c.data);
+				drop(key);
+			}
+			if (length <= 0 || length > Math.min(Integer.MAX_VALUE, budget / MAX_SHARE)
+					|| loading.contains(key))
+				return null;
+			Integer seen = candidates.get(key);
+			int requests = null == seen ? 1 : seen + 1;
+			if (requests < ADMIT) {
+				candidates.put(key, requests);
+				return null;
+			}
+			candidates.remove(key);
+			loading.add(key);
+		}
+		ByteBuffer data = null;
+		try {
+			data = load(file, (int) length, modified);
+		} finally {
+			synchronized (this) {
+				loading.remove(key);
+				if (null != data) {
+					for (Iterator<Content> it = entries.values().iterator();
+							used + length > budget && it.hasNext(); ) {
+						used -= it.next().length;
+						it.remove();
+					}
+					entries.put(key, new Content(length, modified, data));
+					used += length;
+				}
+			}
+		}
+		return null == data ? null : new MemoryFileChannel(data);
+	}
+
+	/**
+	 * Drops a file, e.g. after it was replaced or deleted.
+	 * @param name as sent by the clients
+	 */
+	public synchronized void remove(String name) {
+		drop(name);
+		candidates.remove(name);
+	}
+
+	private void drop(String key) {
+		Content c = entries.remove(key);
+		if (null != c)
+			used -= c.length;
+	}
+
+	/**
+	 * Reads the whole file, hashing it unless its checksum is known.
+	 * @return read only, null if the file could not be read or changed meanwhile
+	 */
+	private ByteBuffer load(File file, int length, long modified) {
+		MessageDigest md = null;
+		if (null == checksums.cached(file)) {
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				return null;
+			}
+		}
+		ByteBuffer data = ByteBuffer.allocateDirect(length);
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel src = in.getChannel();
+			while (data.hasRemaining() && src.read(data) >= 0)
+				;
+		} catch (IOException e) {
+			Util.serBashln("Unable to cache '" + file.getName() + "': " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				if (null != in) in.close();
+			} catch (IOException e) {
+				//nothing was written
+			}
+		}
+		if (data.hasRemaining() || file.length() != length || file.lastModified() != modified)
+			return null;
+		data.flip();
+		if (null != md) {
+			md.update(data.duplicate());
+			checksums.put(file, Util.calcMD5(md.digest()));
+		}
+		return data.asReadOnlyBuffer();
+	}
+}
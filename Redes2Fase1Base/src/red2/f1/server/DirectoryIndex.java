@@ -0,0 +1,387 @@
+package red2.f1.server;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import red2.f1.msg.FileEntry;
+import red2.f1.util.Util;
+
+/**
+ * In-memory listing of the served folder, so answering LR does not touch
+ * the disk. Every file is kept with its size already formatted, sorted by
+ * name and by size, so a page of the listing is read from where the
+ * previous one ended (see {@link #page}). The whole map sent to the old
+ * clients is rebuilt only after a change.
+ * <p>
+ * Files of the chunk store are listed as the files of the folder. Its
+ * subfolders are listed too, their name ending with {@link #DIR_SUFFIX},
+ * but not what they hold.
+ * <p>
+ * A watcher thread updates the entries as the folder changes, and the whole
+ * folder is rescanned every now and then in case an event was lost. The
+ * handlers also report the files they write or delete, so a client sees
+ * its own changes right away.
+ * <p>
+ * The folder is watched with <code>java.nio.file.WatchService</code>, which
+ * needs Java 7: it is looked up by reflection so the server still builds and
+ * runs on older JVMs, where only the rescans keep the listing up to date.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class DirectoryIndex implements Runnable {
+	/** Most entries of a page, whatever the client asks for. */
+	public static final int MAX_PAGE = 5000;
+	/** Ends the names of the subfolders. */
+	public static final String DIR_SUFFIX = "/";
+	/** Formatted size of the subfolders. */
+	public static final String DIR_SIZE = "<DIR>";
+
+	/** By size, then by name. */
+	private static final Comparator<FileEntry> BY_SIZE = new Comparator<FileEntry>() {
+		@Override
+		public int compare(FileEntry a, FileEntry b) {
+			if (a.getSize() != b.getSize())
+				return a.getSize() < b.getSize() ? -1 : 1;
+			return a.getName().compareTo(b.getName());
+		}
+	};
+
+	private final File dir;
+	/** Stored files, null if the uploads are kept as plain files. */
+	private final ChunkStore store;
+	/** Told about the files that change, null if there is none. */
+	private final ContentCache contents;
+	/** Time between two full rescans. */
+	private final long rescanInterval;
+	/** Every visible file, by name. Updated while holding the lock, read without it. */
+	private final ConcurrentSkipListMap<String, FileEntry> byName = new ConcurrentSkipListMap<String, FileEntry>();
+	/** The same files, by size. */
+	private final ConcurrentSkipListSet<FileEntry> bySize = new ConcurrentSkipListSet<FileEntry>(BY_SIZE);
+	/** What LR sends to the clients that do not ask for pages, null after a change. */
+	private volatile Map<String, String> listing = null;
+
+	//the watch service and its methods, null if not available
+	private Object watcher = null;
+	private Method poll;
+	private Method pollEvents;
+	private Method reset;
+	private Method kind;
+	private Method context;
+	private Object overflow;
+
+	/**
+	 * @param dir the served folder
+	 * @param store the chunk store, null if there is none
+	 * @param contents the cached file contents, null if there are none
+	 * @param rescanInterval milliseconds between two full rescans
+	 */
+	public DirectoryIndex(File dir, ChunkStore store, ContentCache contents, long rescanInterval) {
+		this.dir = dir;
+		this.store = store;
+		this.contents = contents;
+		this.rescanInterval = rescanInterval;
+	}
+
+	/**
+	 * Scans the folder and starts the watcher thread.
+	 */
+	public void start() {
+		rescan();
+		watch();
+		Thread t = new Thread(this, "dir-watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return the name and formatted size of every visible file, not to be modified
+	 */
+	public Map<String, String> listing() {
+		Map<String, String> l = listing;
+		if (null != l)
+			return l;
+		synchronized (this) {
+			if (null == listing) {
+				Map<String, String> files = new HashMap<String, String>(byName.size() * 2);
+				for (FileEntry e : byName.values())
+					files.put(e.getName(), e.getReadableSize());
+				listing = Collections.unmodifiableMap(files);
+			}
+			return listing;
+		}
+	}
+
+	/**
+	 * Reads a page of the listing.
+	 * @param glob only the names matching it, see {@link Util#matches}; null for every file
+	 * @param sort <code>name</code> or <code>size</code>, <code>-</code> first for the
+	 * descending order; null for by name
+	 * @param cursor returned with the previous page, null for the first one
+	 * @param pageSize the most entries to add, at most {@link #MAX_PAGE}
+	 * @param out receives the entries
+	 * @return the cursor of the next page, null if this one is the last
+	 * @throws IllegalArgumentException for an unknown sort or a malformed cursor
+	 */
+	public String page(String glob, String sort, String cursor, int pageSize, List<FileEntry> out) {
+		boolean descending = null != sort && sort.startsWith("-");
+		String key = null == sort ? "name" : descending ? sort.substring(1) : sort;
+		pageSize = Math.max(1, Math.min(MAX_PAGE, pageSize));
+		Iterable<FileEntry> entries;
+		if ("name".equals(key)) {
+			entries = byName(Util.globPrefix(glob), cursor, descending).values();
+		} else if ("size".equals(key)) {
+			NavigableSet<FileEntry> set = bySize;
+			if (null != cursor) {
+				FileEntry last = parseSizeCursor(cursor);
+				set = descending ? set.headSet(last, false) : set.tailSet(last, false);
+			}
+			entries = descending ? set.descendingSet() : set;
+		} else
+			throw new IllegalArgumentException("Unknown sort order '" + sort + "'");
+		for (FileEntry e : entries) {
+			if (! Util.matches(glob, e.getName()))
+				continue;
+			out.add(e);
+			if (out.size() == pageSize)
+				return "size".equals(key) ? e.getSize() + "/" + e.getName() : e.getName();
+		}
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @return the file, null if it is not listed
+	 */
+	public FileEntry get(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @param glob see {@link Util#matches}
+	 * @return every file whose name matches, by name
+	 */
+	public List<FileEntry> matching(String glob) {
+		List<FileEntry> found = new ArrayList<FileEntry>();
+		for (FileEntry e : byName(Util.globPrefix(glob), null, false).values())
+			if (Util.matches(glob, e.getName()))
+				found.add(e);
+		return found;
+	}
+
+	/**
+	 * Looks at a file again, after it was written or deleted. Its cached
+	 * contents, if any, are dropped.
+	 * @param name a file of the folder, or of a subfolder: the subfolder is
+	 * then looked at
+	 */
+	public void changed(String name) {
+		if (null == name || ('/' != File.separatorChar && name.indexOf(File.separatorChar) >= 0))
+			return;
+		if (null != contents)
+			contents.remove(name);
+		int slash = name.indexOf('/');
+		if (slash >= 0)
+			name = name.substring(0, slash);
+		if (name.isEmpty() || FileHandler.isHidden(name))
+			return;
+		long size = null == store ? -1 : store.sizeOf(name);
+		boolean folder = false;
+		if (size < 0) {
+			File f = new File(dir, name);
+			size = f.isFile() ? f.length() : -1;
+			folder = f.isDirectory();
+		}
+		synchronized (this) {
+			if (size < 0)
+				remove(name);
+			else
+				put(name, size);
+			if (folder)
+				put(name + DIR_SUFFIX, 0);
+			else
+				remove(name + DIR_SUFFIX);
+		}
+	}
+
+	/**
+	 * Lists the whole folder again.
+	 */
+	public void rescan() {
+		Map<String, Long> fresh = new HashMap<String, Long>();
+		File[] files = dir.listFiles();
+		if (null != files) {
+			for (File f : files) {
+				if (FileHandler.isHidden(f.getName()))
+					continue;
+				if (f.isFile())
+					fresh.put(f.getName(), f.length());
+				else if (f.isDirectory())
+					fresh.put(f.getName() + DIR_SUFFIX, 0L);
+			}
+		}
+		if (null != store)
+			fresh.putAll(store.sizes());
+		synchronized (this) {
+			for (String name : byName.keySet())
+				if (! fresh.containsKey(name))
+					remove(name);
+			for (Map.Entry<String, Long> e : fresh.entrySet())
+				put(e.getKey(), e.getValue());
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastScan = System.currentTimeMillis();
+		while (true) {
+			try {
+				if (null == watcher) {
+					Thread.sleep(rescanInterval);
+					rescan();
+					continue;
+				}
+				long wait = Math.max(1, lastScan + rescanInterval - System.currentTimeMillis());
+				Object key = poll.invoke(watcher, wait, TimeUnit.MILLISECONDS);
+				if (null != key) {
+					for (Object event : (List<?>) pollEvents.invoke(key)) {
+						if (overflow == kind.invoke(event)) {
+							rescan();
+							lastScan = System.currentTimeMillis();
+						} else
+							changed(String.valueOf(context.invoke(event)));
+					}
+					if (! (Boolean) reset.invoke(key)) {
+						Util.serBashln("Served folder no longer watched, rescanning every " +
+								rescanInterval + " ms");
+						watcher = null;
+					}
+				}
+				if (System.currentTimeMillis() - lastScan >= rescanInterval) {
+					rescan();
+					lastScan = System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				Util.serBashln("Error watching the served folder: " + e.getMessage());
+				watcher = null;
+			}
+		}
+	}
+
+	/**
+	 * Registers the folder with a watch service, if the JVM has one.
+	 */
+	private void watch() {
+		try {
+			Class<?> path = Class.forName("java.nio.file.Path");
+			Class<?> service = Class.forName("java.nio.file.WatchService");
+			Class<?> watchKey = Class.forName("java.nio.file.WatchKey");
+			Class<?> watchEvent = Class.forName("java.nio.file.WatchEvent");
+			Class<?> eventKind = Class.forName("java.nio.file.WatchEvent$Kind");
+			Class<?> kinds = Class.forName("java.nio.file.StandardWatchEventKinds");
+			Object p = File.class.getMethod("toPath").invoke(dir);
+			Object fs = path.getMethod("getFileSystem").invoke(p);
+			Object ws = Class.forName("java.nio.file.FileSystem").getMethod("newWatchService").invoke(fs);
+			Object events = Array.newInstance(eventKind, 3);
+			Array.set(events, 0, kinds.getField("ENTRY_CREATE").get(null));
+			Array.set(events, 1, kinds.getField("ENTRY_DELETE").get(null));
+			Array.set(events, 2, kinds.getField("ENTRY_MODIFY").get(null));
+			path.getMethod("register", service, events.getClass()).invoke(p, ws, events);
+			poll = service.getMethod("poll", long.class, TimeUnit.class);
+			pollEvents = watchKey.getMethod("pollEvents");
+			reset = watchKey.getMethod("reset");
+			kind = watchEvent.getMethod("kind");
+			context = watchEvent.getMethod("context");
+			overflow = kinds.getField("OVERFLOW").get(null);
+			watcher = ws;
+			Util.serBashln("Watching the served folder, " + byName.size() + " file(s) listed");
+		} catch (ClassNotFoundException e) {
+			Util.serBashln("Watching folders needs Java 7, rescanning every " + rescanInterval + " ms");
+		} catch (Exception e) {
+			Util.serBashln("Unable to watch the served folder, rescanning every " + rescanInterval + " ms");
+		}
+	}
+
+	//----HELPERS---------------------------------------------------------//
+	/** Called while holding the lock. */
+	private void put(String name, long size) {
+		FileEntry old = byName.get(name);
+		if (null != old && old.getSize() == size)
+			return;
+		FileEntry e = new FileEntry(name, size,
+				name.endsWith(DIR_SUFFIX) ? DIR_SIZE : Util.calculateFileSize(size));
+		byName.put(name, e);
+		if (null != old)
+			bySize.remove(old);
+		bySize.add(e);
+		listing = null;
+	}
+
+	/** Called while holding the lock. */
+	private void remove(String name) {
+		FileEntry old = byName.remove(name);
+		if (null != old) {
+			bySize.remove(old);
+			listing = null;
+		}
+	}
+
+	/**
+	 * @param prefix the names all start with, maybe empty
+	 * @param cursor the last name of the previous page, null for the first page
+	 * @param descending
+	 * @return the names still to list, in order
+	 */
+	private NavigableMap<String, FileEntry> byName(String prefix, String cursor, boolean descending) {
+		//the names starting with the prefix are the ones from it up to its last char increased
+		String lo = prefix;
+		boolean loIncluded = true;
+		String hi = null;
+		for (int i = prefix.length() - 1; i >= 0 && null == hi; i--)
+			if (Character.MAX_VALUE != prefix.charAt(i))
+				hi = prefix.substring(0, i) + (char) (prefix.charAt(i) + 1);
+		if (null != cursor) {
+			if (! descending && cursor.compareTo(lo) >= 0) {
+				lo = cursor;
+				loIncluded = false;
+			} else if (descending && (null == hi || cursor.compareTo(hi) < 0))
+				hi = cursor;
+		}
+		NavigableMap<String, FileEntry> range;
+		if (null == hi)
+			range = byName.tailMap(lo, loIncluded);
+		else if (lo.compareTo(hi) >= 0)
+			range = new TreeMap<String, FileEntry>();
+		else
+			range = byName.subMap(lo, loIncluded, hi, false);
+		return descending ? range.descendingMap() : range;
+	}
+
+	/**
+	 * @param cursor <code>size/name</code>
+	 * @return an entry to look up the last one of the previous page with
+	 */
+	private static FileEntry parseSizeCursor(String cursor) {
+		int slash = cursor.indexOf('/');
+		try {
+			if (slash > 0)
+				return new FileEntry(cursor.substring(slash + 1), Long.parseLong(cursor.substring(0, slash)), null);
+		} catch (NumberFormatException e) {
+			//reported below
+		}
+		throw new IllegalArgumentException("Malformed cursor '" + cursor + "'");
+	}
+}
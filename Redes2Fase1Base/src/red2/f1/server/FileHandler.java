@@ -1,24 +1,49 @@
 package red2.f1.server;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
-import red2.f1.msg.Data;
+import red2.f1.msg.FileEntry;
+import red2.f1.msg.Hello;
 import red2.f1.msg.MsgType;
 import red2.f1.msg.Request;
 import red2.f1.msg.Response;
 import red2.f1.msg.Response.Codes;
+import red2.f1.proto.ChunkSizer;
+import red2.f1.proto.Compression;
+import red2.f1.proto.DrainableInputStream;
+import red2.f1.proto.Frame;
+import red2.f1.proto.FrameMsgChannel;
+import red2.f1.proto.MsgChannel;
+import red2.f1.proto.MuxChannel;
+import red2.f1.proto.MuxStream;
+import red2.f1.proto.UnexpectedMessageException;
+import red2.f1.util.Delta;
+import red2.f1.util.FileTree;
+import red2.f1.util.Log;
+import red2.f1.util.Peer;
+import red2.f1.util.ReadAhead;
 import red2.f1.util.Util;
+import red2.f1.util.WriteBehind;
 
 /**
  * Handler for the file server.
@@ -26,48 +51,248 @@ import red2.f1.util.Util;
  */
 public class FileHandler implements Runnable {
 	private static final String fatalError = "[Fatal error]: ";
+	/** Outcome of a file of a batch received and saved. */
+	private static final String BATCH_OK = "OK";
+	/** Leaves the files the server keeps for itself out of the trees it walks. */
+	private static final FilenameFilter HIDDEN = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return isHidden(name);
+		}
+	};
 
 	private Socket conn;
 	private File localDir;
+	private ServerConfig config;
+	private Admission admission;
+	/** Deduplicating store of the uploads, null if they are kept as plain files. */
+	private ChunkStore store;
+	private int idleTimeout;
+	/** Type of the request holding a lane permit, null if none. */
+	private MsgType admitted = null;
 	private Request req = null;
 	private Response resp = null;
-	private ObjectInputStream ois = null;
-	private ObjectOutputStream oos = null;
-	private String remoteHost;
+	private MsgChannel channel = null;
+	private Peer remoteHost;
+	/** Bytes already read from the connection by the {@link Reactor}, null otherwise. */
+	private byte[] prefix = null;
+	/** Options the {@link Reactor} agreed on before handing the connection over. */
+	private Hello negotiated = null;
+
+	/** The client asked to send more requests on this connection. */
+	private boolean session = false;
+	/** The client asked to run many exchanges at the same time on this connection. */
+	private boolean multiplexed = false;
+	/** False for the handlers of a {@link MuxStream}, the connection belongs to their parent. */
+	private boolean ownsConnection = true;
+	/** Requests served so far on this connection. */
+	private int served = 0;
 
 	private boolean canContinue = true; 
+	/** The last exchange ended cleanly, the next frame is a new request. */
+	private boolean atBoundary = false;
+	/** A file body was interrupted, the stream position is unknown. */
+	private boolean midBody = false;
+	/** The last request was turned away, the session ends. */
+	private boolean turnedAway = false;
 
 	private String errorMsg = null;
 	private String okMsg = null;
 	private boolean inErrorState = false;
+	/** A response could not be written, the exchange is broken off. */
+	private boolean writeFailed = false;
+
+	//----counters of the current request, see OperationStats
+	private long requestStart = 0;
+	private long firstByte = 0;
+	private long bodyIn = 0;
+	private long bodyOut = 0;
+
+	/**
+	 * @param s
+	 * @param config the server settings; the connection must already hold
+	 * a permit of its {@link Admission}, the handler releases it when done
+	 */
+	public FileHandler(Socket s, ServerConfig config) {
+		this(s, config, new Peer(s.getInetAddress(), s.getPort(), config.isResolvingHosts()));
+	}
 
-	public FileHandler(Socket s, String absolutePath) {
+	private FileHandler(Socket s, ServerConfig config, Peer remoteHost) {
 		this.conn = s;
-		this.localDir = new File(absolutePath);
-		this.remoteHost = conn.getInetAddress().getHostName() + ":" + conn.getPort();
+		this.config = config;
+		this.localDir = config.getLocalDir();
+		this.admission = config.getAdmission();
+		this.store = config.getChunkStore();
+		this.idleTimeout = config.getIdleTimeout();
+		this.remoteHost = remoteHost;
+	}
+
+	/**
+	 * Takes over a connection started by a {@link Reactor}.
+	 * @param s a socket in blocking mode
+	 * @param config
+	 * @param prefix the bytes the reactor read but did not process
+	 * @param negotiated the frame options the reactor accepted, null if
+	 * the client speaks the object streams protocol
+	 * @param remoteHost the client as the reactor named it
+	 */
+	public FileHandler(Socket s, ServerConfig config, byte[] prefix, Hello negotiated, Peer remoteHost) {
+		this(s, config, remoteHost);
+		this.prefix = prefix;
+		this.negotiated = negotiated;
+	}
+
+	/**
+	 * Serves the single exchange of a stream of a multiplexed connection.
+	 * @param stream
+	 * @param config
+	 * @param parent the client of the connection, whose host name is looked up only once
+	 */
+	public FileHandler(MuxStream stream, ServerConfig config, Peer parent) {
+		this(stream.getSocket(), config, parent.stream(stream.getId()));
+		this.channel = stream;
+		this.ownsConnection = false;
 	}
 
 	@Override
 	public void run() {
-		isLocalDirOK();
-		openInputStream();
+		if (ownsConnection)
+			config.getMetrics().connectionOpened();
+		try {
+			isLocalDirOK();
+			if (null == channel)
+				openChannel();
+			if (null != channel && multiplexed) {
+				serveStreams();
+			} else if (null != channel) {
+				serveRequest();
+				while (awaitNextRequest())
+					serveRequest();
+			}
+		} finally {
+			if (null != admitted)
+				admission.leave(admitted);
+			try {
+				if (null != channel) channel.close();
+				else if (null != conn) conn.close();
+			} catch (IOException e) {
+				Util.serBashln("Error closing streams or connection to " + remoteHost);
+				Log.error(e);
+			}
+			if (ownsConnection) {
+				admission.releaseConnection();
+				config.getMetrics().connectionClosed();
+			}
+		}
+		//System.out.println("Handler to " + remoteHost + " finished.");
+	}
+
+	/**
+	 * Serves one request of the connection, from reading it to the final response.
+	 */
+	private void serveRequest() {
+		atBoundary = false;
 		readRequest();
 		if (canContinue) {
-			openOutputStream();
-			if (sendResponse() && inErrorState) {
-				Util.serBashln(errorMsg);
+			if (inErrorState && Codes.OK == resp.getCode())
+				constructErrorResponseMsg(); //failed after accepting the request
+			if (sendResponse()) {
+				atBoundary = true;
+				if (inErrorState)
+					Util.serBashln(errorMsg);
+			}
+		}
+		if (null != admitted) {
+			admission.leave(admitted);
+			admitted = null;
+		}
+		if (null != req && null != req.getType())
+			config.getMetrics().operation(req.getType()).record(requestStart, firstByte,
+					System.nanoTime(), bodyIn, bodyOut, inErrorState || turnedAway || writeFailed
+					|| (null != resp && Codes.ERR == resp.getCode()));
+		served++;
+	}
+
+	/**
+	 * Gives every stream the client opens its own handler, run by the executor
+	 * of the connections. Streams beyond the advertised limit are turned away.
+	 * A stream finding every thread of a bounded pool busy is served on this
+	 * thread, the others wait for it to be done: the threads may all be
+	 * handlers like this one, waiting for their streams.
+	 */
+	private void serveStreams() {
+		MuxChannel mux;
+		try {
+			mux = ((FrameMsgChannel) channel).multiplex(false, idleTimeout);
+		} catch (IOException e) {
+			Util.serBashln("Error multiplexing connection to " + remoteHost);
+			Log.error(e);
+			return;
+		}
+		ExecutorService executor = config.getExecutor();
+		try {
+			MuxStream stream;
+			while (null != (stream = mux.acceptStream())) {
+				if (mux.activeStreams() > config.getMuxStreams()) {
+					try {
+						stream.writeResponse(admission.busyResponse());
+						stream.close();
+					} catch (IOException e) {
+						//connection lost, acceptStream will tell
+					}
+					continue;
+				}
+				FileHandler handler = new FileHandler(stream, config, remoteHost);
+				if (isSaturated(executor)) {
+					handler.run();
+					continue;
+				}
+				try {
+					executor.execute(handler);
+				} catch (RejectedExecutionException e) {
+					handler.run(); //shutting down
+				}
 			}
+		} catch (InterruptedException e) {
+			Util.serBashln("Interrupted while serving " + remoteHost);
+		} finally {
+			mux.close();
 		}
+	}
+
+	/**
+	 * @param executor
+	 * @return true if it is a pool of threads all busy, a new task would wait
+	 */
+	private static boolean isSaturated(ExecutorService executor) {
+		if (! (executor instanceof ThreadPoolExecutor))
+			return false;
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+		return pool.getActiveCount() >= pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * In a session, gets ready for the next request once the last one ended cleanly.
+	 * The wait for it is bounded by the idle timeout.
+	 * @return false if the connection must be closed
+	 */
+	private boolean awaitNextRequest() {
+		if (! session || ! atBoundary || midBody || turnedAway)
+			return false;
+		req = null;
+		resp = null;
+		canContinue = true;
+		errorMsg = null;
+		okMsg = null;
+		inErrorState = false;
+		writeFailed = false;
+		isLocalDirOK();
 		try {
-			if (null != oos) oos.close();
-			if (null != ois) ois.close();
-			if (null != conn) conn.close();
+			conn.setSoTimeout(idleTimeout);
 		} catch (IOException e) {
-			Util.serBashln("Error closing streams or connection to " + remoteHost);
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
+			return false;
 		}
-		//System.out.println("Handler to " + remoteHost + " finished.");
+		return true;
 	}
 
 	/**
@@ -78,17 +303,32 @@ public class FileHandler implements Runnable {
 	private void readRequest() {
 		Object obj = null;
 		try {
-			obj = ois.readObject();
+			obj = channel.readMessage();
+			requestStart = System.nanoTime();
+			firstByte = bodyIn = bodyOut = 0;
+			if (session)
+				conn.setSoTimeout(0); //only the wait between requests is bounded
+		} catch (EOFException e) {
+			if (served > 0) { //the client ended its session
+				canContinue = false;
+				return;
+			}
+			Util.serBashln("Error reading Request from client " + remoteHost);
+			Log.error(e);
+			canContinue = false;
+			return;
+		} catch (SocketTimeoutException e) {
+			Util.serBashln("Session of " + remoteHost + " idle for " + idleTimeout + " ms, closing");
+			canContinue = false;
+			return;
 		} catch (ClassNotFoundException e) {
 			Util.serBashln("Error understanding client " + remoteHost);
-			System.out.println("ClassNotFoundException: " + e.getMessage());
-			e.printStackTrace();
+			Log.error(e);
 			canContinue = false;
 			return;
 		} catch (IOException e) {
 			Util.serBashln("Error reading Request from client " + remoteHost);
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
+			Log.error(e);
 			canContinue = false;
 			return;
 		}
@@ -97,6 +337,14 @@ public class FileHandler implements Runnable {
 		else {
 			if (null != obj && obj instanceof Request) {
 				req = (Request)obj;
+				if (! admission.tryEnter(req.getType())) {
+					Util.serBashln("Too many " + Admission.laneOf(req.getType()) +
+							" requests, turning away " + remoteHost);
+					resp = admission.busyResponse();
+					turnedAway = true;
+					return;
+				}
+				admitted = req.getType();
 				switch (req.getType()) {
 				case LR:
 					okMsg = "Received a request from "
@@ -122,6 +370,43 @@ public class FileHandler implements Runnable {
 					resp = new Response(MsgType.S);
 					recvFileFromClient(req.getMessage());
 					break;
+				case DS:
+					okMsg = "Received a request from " + remoteHost + 
+							" to update '" + req.getMessage() + "' ... ";
+					resp = new Response(MsgType.DS);
+					recvDeltaFromClient(req.getMessage());
+					break;
+				case CS:
+					okMsg = "Received a request from " + remoteHost + 
+							" to store '" + req.getMessage() + "' ... ";
+					resp = new Response(MsgType.CS);
+					recvChunksFromClient(req.getMessage());
+					break;
+				case BR:
+					okMsg = "Received a request from " + remoteHost + 
+							" to send a batch of files ... ";
+					resp = new Response(MsgType.BR);
+					sendBatchToClient();
+					break;
+				case BS:
+					okMsg = "Received a request from " + remoteHost + 
+							" to receive a batch of files ... ";
+					resp = new Response(MsgType.BS);
+					recvBatchFromClient();
+					break;
+				case BD:
+					okMsg = "Received a request from " + remoteHost + 
+							" to delete a batch of files ... ";
+					resp = new Response(MsgType.BD);
+					deleteBatch();
+					break;
+				case STATS:
+					okMsg = "Received a request from " + remoteHost +
+							" for the server statistics ... ";
+					resp = new Response(MsgType.STATS);
+					resp.setMessage(config.getMetrics().getReport());
+					Util.serBashln(okMsg + "OK");
+					break;
 				default:
 					Util.serBashln("Received an unknown request from " + remoteHost);
 					canContinue = false;
@@ -139,50 +424,17 @@ public class FileHandler implements Runnable {
 	 */
 	private boolean sendResponse() {
 		try {
-			oos.writeObject(resp);
-			oos.flush();
+			channel.writeResponse(resp);
+			if (0 == firstByte)
+				firstByte = System.nanoTime();
 			return true;
 		} catch (IOException e) {
 			Util.serBashln("Error writing Response to output stream towards " + remoteHost);
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
+			Log.error(e);
 		}
+		writeFailed = true;
 		return false;
 	}
-	/**
-	 * Writes data object to output stream //and flushes the stream.
-	 * @param data
-	 * @throws IOException 
-	 */
-	private void sendData(Data data) throws IOException {
-		oos.writeObject(data);
-		oos.flush();
-		oos.reset();
-	}
-	/**
-	 * Reads a Data object from the opened stream.
-	 * It assumes the stream has been opened.
-	 * @return
-	 */
-	private Data readData() {
-		Object obj = null;
-		try {
-			obj = ois.readObject();
-		} catch (IOException e) {
-			Util.serBashln("Error reading data from " + remoteHost);
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			Util.serBashln("Error understanding data sent from " + remoteHost);
-			System.out.println("ClassNotFoundException: " + e.getMessage());
-			e.printStackTrace();
-		}
-		if (null != obj)
-			if(obj instanceof Data) {
-				return (Data)obj;
-			}
-		return null;
-	}
 	//----PROCESSING COMMANDS--------------------------------//
 	private void sendFileToClient(String target) {
 		if (!isLocalDirOK()) {
@@ -190,7 +442,11 @@ public class FileHandler implements Runnable {
 			return;
 		}
 		File file = new File(localDir.getAbsolutePath() + File.separator + target);
-		if (! file.exists() || ! file.canRead()) {
+		if (! isHidden(target) && ! file.exists() && isStored(target)) {
+			sendStoredToClient(target);
+			return;
+		}
+		if (isHidden(target) || ! file.exists() || ! file.canRead()) {
 			inErrorState = true;
 			errorMsg = "File '" + target + "' not found";
 			resp.setMessage(errorMsg);
@@ -198,10 +454,44 @@ public class FileHandler implements Runnable {
 			Util.serBashln(okMsg + "ERROR");
 			return;
 		}
+		long size = file.length();
+		long offset = req.getOffset();
+		if (offset < 0 || offset > size) {
+			inErrorState = true;
+			errorMsg = "Invalid offset " + offset + " for '" + target + "' (" + size + " B)";
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		long length = req.getLength() <= 0 ? size - offset : Math.min(req.getLength(), size - offset);
 		resp.setMessage("File '" + target + "' exists, ready for transfer");
-		resp.setFileSize(file.length());
-		resp.setChecksum(Util.calcMD5(file, Util.MAX_DATA * Util.MAX_DATA));
-		if (null == resp.getChecksum() || resp.getChecksum().isEmpty()) {
+		resp.setFileSize(size);
+		resp.setOffset(offset);
+		resp.setLength(length);
+		long modified = file.lastModified();
+		//a hot file comes with its checksum
+		FileChannel cached = null == config.getContentCache() ? null : config.getContentCache().open(file);
+		MessageDigest md = null;
+		//a part of the file is always announced with the checksum of the whole file
+		if (channel.hasTrailers() && ! req.isRanged()) {
+			//unless known, the checksum is computed while sending and follows the body
+			resp.setChecksum(config.getChecksumCache().cached(file));
+			if (null == resp.getChecksum()) {
+				try {
+					md = MessageDigest.getInstance("MD5");
+				} catch (NoSuchAlgorithmException e) {
+					inErrorState = true;
+					errorMsg = "Error creating MessageDigest with MD5 algorithm";
+					resp.setCode(Codes.ERR);
+					resp.setMessage(errorMsg);
+					Util.serBashln(okMsg + "ERROR");
+					return;
+				}
+			}
+		} else
+			resp.setChecksum(config.getChecksumCache().checksum(file));
+		if (null == md && (null == resp.getChecksum() || resp.getChecksum().isEmpty())) {
 			inErrorState = true;
 			errorMsg = "Error creating checksum for '" + target + "'";
 			resp.setCode(Codes.ERR);
@@ -209,62 +499,127 @@ public class FileHandler implements Runnable {
 			Util.serBashln(okMsg + "ERROR");
 			return;
 		}
-		Util.serBashln("File checksum on this side: " + resp.getChecksum());
+		if (null == md)
+			Log.info("File checksum on this side: {}", resp.getChecksum());
 		canContinue = false;
-		if (! openOutputStream() || ! sendResponse()) {
+		if (! sendResponse()) {
 			Util.serBashln(okMsg + "ERROR");
 			return;
 		}
 		//can start sending Data
-		byte[] buf = null;
 		FileInputStream fis = null;
 		try {
-			fis = new FileInputStream(file);
+			FileChannel src = cached;
+			if (null == src) {
+				fis = new FileInputStream(file);
+				src = fis.getChannel();
+			}
 			Util.serBashln(okMsg + "OK");
-			Util.serBashln("Starting sending data to " + remoteHost);
-			int readBytes;
-			buf = new byte[Util.MAX_DATA];
+			if (req.isRanged())
+				Log.info("Starting sending {} bytes from byte {} to {}", length, offset, remoteHost);
+			else
+				Log.info("Starting sending data to {}", remoteHost);
 			long start = System.currentTimeMillis();
-			do { //TODO the read should be by itself in a try-catch
-				readBytes = fis.read(buf);
-				if (readBytes >= 0) {
-					Data dpak = new Data(readBytes);
-					dpak.writeData(buf);
-					sendData(dpak);
-					//Util.serBashln("Sent " + readBytes + " bytes");
-				}
-			} while (readBytes == Util.MAX_DATA);
-			Util.serBashln("Transfer of '" + file.getName() + 
-					"' towards " + remoteHost + " completed in " +
-					(System.currentTimeMillis() - start) +
-					" miliseconds.");
+			midBody = true;
+			bodyOut += channel.sendBody(src, offset, length, md);
+			if (null != md) {
+				String checksum = Util.calcMD5(md.digest());
+				channel.writeTrailer(checksum);
+				Log.info("File checksum on this side: {}", checksum);
+				if (modified == file.lastModified())
+					config.getChecksumCache().put(file, checksum);
+			}
+			midBody = false;
+			atBoundary = true;
+			Log.info("Transfer of '{}' towards {} completed in {} miliseconds.",
+					file.getName(), remoteHost, System.currentTimeMillis() - start);
 		} catch (FileNotFoundException e) { 
 			//file might have been deleted after calculating the checksum
 			inErrorState = true;
 			errorMsg = "Error opening file '" + target + "' for transfer";
-			System.out.println("FileNotFoundException: " + e.getMessage());
-			e.printStackTrace();
+			Log.error(e);
 			resp = new Response(MsgType.ERR);
 			resp.setCode(Codes.ERR);
 			resp.setMessage(errorMsg);
-			canContinue = true; //try and send the reason to client
+			canContinue = channel.canAbortBody(); //try and send the reason to client
 		} catch (IOException e) {
 			inErrorState = true;
 			errorMsg = "I/O error while transfering file '" + target + "'";
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
+			Log.error(e);
 			resp = new Response(MsgType.ERR);
 			resp.setCode(Codes.ERR);
 			resp.setMessage(errorMsg);
-			canContinue = true; //try and send the reason to client
+			canContinue = channel.canAbortBody(); //try and send the reason to client
 		} finally {
 			try {
 				if (null != fis) fis.close();
 			} catch (IOException e) {
 				Util.serBashln("Unable to close input stream on file " + file.getName());
-				System.out.println("IOException: " + e.getMessage());
-				e.printStackTrace();
+				Log.error(e);
+			}
+		}
+	}
+
+	/**
+	 * Sends a file, or a part of it, from the chunk store: the checksum is
+	 * known from its manifest and the body is read chunk after chunk.
+	 * @param target
+	 */
+	private void sendStoredToClient(String target) {
+		ChunkStore.Manifest m = store.open(target);
+		if (null == m) {
+			inErrorState = true;
+			errorMsg = "File '" + target + "' not found";
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		try {
+			long size = m.getSize();
+			long offset = req.getOffset();
+			if (offset < 0 || offset > size) {
+				inErrorState = true;
+				errorMsg = "Invalid offset " + offset + " for '" + target + "' (" + size + " B)";
+				resp.setMessage(errorMsg);
+				resp.setCode(Codes.ERR);
+				Util.serBashln(okMsg + "ERROR");
+				return;
+			}
+			long length = req.getLength() <= 0 ? size - offset : Math.min(req.getLength(), size - offset);
+			resp.setMessage("File '" + target + "' exists, ready for transfer");
+			resp.setFileSize(size);
+			resp.setOffset(offset);
+			resp.setLength(length);
+			resp.setChecksum(m.getChecksum());
+			Log.info("File checksum on this side: {}", resp.getChecksum());
+			canContinue = false;
+			if (! sendResponse()) {
+				Util.serBashln(okMsg + "ERROR");
+				return;
 			}
+			Util.serBashln(okMsg + "OK");
+			if (req.isRanged())
+				Log.info("Starting sending {} bytes from byte {} to {}", length, offset, remoteHost);
+			else
+				Log.info("Starting sending data to {}", remoteHost);
+			long start = System.currentTimeMillis();
+			midBody = true;
+			bodyOut += store.sendBody(m, channel, offset, length, null);
+			midBody = false;
+			atBoundary = true;
+			Log.info("Transfer of '{}' towards {} completed in {} miliseconds.",
+					target, remoteHost, System.currentTimeMillis() - start);
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = "I/O error while transfering file '" + target + "'";
+			Log.error(e);
+			resp = new Response(MsgType.ERR);
+			resp.setCode(Codes.ERR);
+			resp.setMessage(errorMsg);
+			canContinue = channel.canAbortBody(); //try and send the reason to client
+		} finally {
+			store.close(m);
 		}
 	}
 
@@ -274,7 +629,7 @@ public class FileHandler implements Runnable {
 			return;
 		}
 		File file = new File(localDir.getAbsolutePath() + File.separator + target);
-		if (file.exists()) {
+		if (file.exists() || isHidden(target) || isStored(target)) {
 			inErrorState = true;
 			errorMsg = "File '" + target + "' already exists";
 			resp.setMessage(errorMsg);
@@ -282,177 +637,1216 @@ public class FileHandler implements Runnable {
 			Util.serBashln(okMsg + "ERROR");
 			return;
 		}
-		//start receiving file chunks
-		String finalChecksum = req.getChecksum();
-		long fileLength = req.getFileSize();
-		int recvBytes = 0;
-		resp.setMessage("Can accept file '" + target + "'");
-		if (! openOutputStream() || ! sendResponse()) {
-			Util.serBashln(okMsg + "ERROR");
+		if (req.isRanged()) {
+			recvPartFromClient(target, file);
+			return;
+		}
+		MessageDigest md = null;
+		try {
+			md = MessageDigest.getInstance("MD5");
+			md.reset();
+		} catch (NoSuchAlgorithmException e) {
+			inErrorState = true;
+			errorMsg = "Error creating MessageDigest with MD5 algorithm";
+			Log.error(e);
 			return;
 		}
+		File staging;
 		try {
-			file.createNewFile();
+			staging = config.getUploadStaging().begin(target, req.getFileSize());
 		} catch (IOException e) {
 			inErrorState = true;
-			errorMsg = "Error creating new empty file '" + target + "'";
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
+			errorMsg = e.getMessage();
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
 			return;
 		}
+		try {
+			recvStagedFromClient(target, file, staging, md);
+		} finally {
+			config.getUploadStaging().end(target);
+		}
+	}
 
-		if (fileLength == 0) {
-			Util.serBashln(okMsg + "OK");
-			canContinue = false;
+	/**
+	 * Receives a whole file into its staging file, after what an interrupted
+	 * upload left, and renames it once verified.
+	 * @param target
+	 * @param file
+	 * @param staging
+	 * @param md
+	 */
+	private void recvStagedFromClient(String target, File file, File staging, MessageDigest md) {
+		String finalChecksum = req.getChecksum();
+		long fileLength = req.getFileSize();
+		long offset = Math.min(staging.length(), fileLength);
+		resp.setFileSize(fileLength);
+		resp.setOffset(offset);
+		resp.setMessage(offset > 0 ? "Can resume file '" + target + "' from byte " + offset
+				: "Can accept file '" + target + "'");
+		if (! sendResponse()) {
+			Util.serBashln(okMsg + "ERROR");
 			return;
 		}
-		FileOutputStream fos = null;
+		//the client sends the body (and trailer) whatever happens next
+		midBody = fileLength > offset || null == finalChecksum;
+		RandomAccessFile raf = null;
 		try {
-			fos = new FileOutputStream(file);
+			//read-write, the received bytes may be hashed back from the file
+			raf = new RandomAccessFile(staging, "rw");
 		} catch (FileNotFoundException e) {
 			inErrorState = true;
 			errorMsg = "Error opening out stream on '" + target + "'";
-			System.out.println("FileNotFoundException: " + e.getMessage());
-			e.printStackTrace();
-			file.delete();
+			Log.error(e);
 			return;
 		}
-		MessageDigest md = null;
+		long written = 0;
 		try {
-			md = MessageDigest.getInstance("MD5");
-			md.reset();
-		} catch (NoSuchAlgorithmException e) {
+			raf.setLength(offset);
+			if (offset > 0)
+				Util.updateDigest(raf.getChannel(), 0, offset, md);
+			written = channel.receiveBody(raf.getChannel(), offset, fileLength - offset, md);
+			bodyIn += written;
+			midBody = written != fileLength - offset || null == finalChecksum;
+		} catch (UnexpectedMessageException e) {
 			inErrorState = true;
-			errorMsg = "Error creating MessageDigest with MD5 algorithm";
-			System.out.println("NoSuchAlgorithmException: " + e.getMessage());
-			e.printStackTrace();
-			file.delete();
+			errorMsg = "Transfer of '" + target + "' aborted by client";
+			Util.serBashln(errorMsg);
 			return;
-		}
-		int chunkSize = 0;
-		int written = 0;
-		try {
-			do {
-				Data data = readData();
-				if (null == data)
-					break;
-				if (data.getLen() == 0)
-					break;
-				if (0 == chunkSize)
-					chunkSize = data.getLen();
-				md.update(data.getData(), 0, data.getLen());
-				fos.write(data.getData(), 0, data.getLen());
-				written += data.getLen();
-				recvBytes = data.getLen();
-			} while ((chunkSize > 0 && recvBytes == chunkSize) && written < fileLength);
 		} catch (IOException e) {
 			inErrorState = true;
 			errorMsg = "I/O error while writing into file '" + target + "'";
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
-			file.delete();
+			Log.error(e);
+			Util.serBashln("Keeping " + staging.length() + " bytes of '" + target + "' to resume later.");
 			return;
 		} finally {
 			try {
-				fos.close();
+				raf.close();
 			} catch (IOException e) {
 				inErrorState = true;
 				errorMsg = "Error closing stream on file '" + target + "'";
-				System.out.println("IOException: " + e.getMessage());
-				e.printStackTrace();
-				file.delete();
+				Log.error(e);
+				staging.delete();
 				return;
 			}
 		}
-		if (written != fileLength) {
+		if (written != fileLength - offset) {
 			inErrorState = true;
 			errorMsg = "Size failure: " + fileLength +
-					" (B on source) vs " + written + " (B received)";
-			Util.serBashln("File '" + target +"' will not be saved.");
-			file.delete();
+					" (B on source) vs " + (offset + written) + " (B received)";
+			Util.serBashln("Keeping " + staging.length() + " bytes of '" + target + "' to resume later.");
 			return;
 		}
+		if (null == finalChecksum) {
+			finalChecksum = readTrailer(target);
+			if (null == finalChecksum)
+				return;
+		}
 		String resultChecksum = Util.calcMD5(md.digest());
 		if (! finalChecksum.contentEquals(resultChecksum)) {
 			inErrorState = true;
 			errorMsg = "Checksum failure: " + finalChecksum +
 					" (source) vs " + resultChecksum + " (received)";
 			Util.serBashln("File '" + target +"' will not be saved.");
-			file.delete();
+			staging.delete();
+			return;
+		}
+		if (file.exists()) { //created meanwhile, renaming would replace it
+			inErrorState = true;
+			errorMsg = "File '" + target + "' already exists";
+			Util.serBashln("File '" + target +"' will not be saved.");
+			staging.delete();
+			return;
+		}
+		if (! staging.renameTo(file)) {
+			inErrorState = true;
+			errorMsg = "Error saving file '" + target + "'";
+			Util.serBashln(okMsg + "ERROR");
+			staging.delete();
 			return;
-		} else {
-			Util.serBashln(okMsg + "OK");
-			canContinue = false;
 		}
+		config.getChecksumCache().put(file, resultChecksum);
+		config.getDirectoryIndex().changed(target);
+		Util.serBashln(okMsg + "OK");
+		storeUpload(file, target, resultChecksum);
+		acknowledgeUpload(target);
 	}
 
-
-
-	private void deleteFile(String target) {
-		if (!isLocalDirOK())
-			constructErrorResponseMsg();
-		else {
-			File file = new File(localDir.getAbsolutePath() + File.separator + target);
-			if (file.exists() && file.canWrite() && file.delete()) {
-				resp.setMessage("File '" + target + "' deleted.");
-				Util.serBashln(okMsg + "OK");
-			} else {
-				inErrorState = true;
-				errorMsg = "Can not delete file '" + target + "'";
-				resp.setCode(Codes.ERR);
-				resp.setMessage(errorMsg);
-				Util.serBashln(okMsg + "ERROR");
-			}
+	/**
+	 * Receives one part of a parallel upload, written at its place in the
+	 * file shared by the parts. The part completing the file verifies it.
+	 * @param target
+	 * @param file
+	 */
+	private void recvPartFromClient(String target, File file) {
+		String finalChecksum = req.getChecksum();
+		long fileLength = req.getFileSize();
+		long offset = req.getOffset();
+		long length = req.getLength();
+		if (null == finalChecksum || offset < 0 || length <= 0 || offset + length > fileLength) {
+			inErrorState = true;
+			errorMsg = "Invalid part of '" + target + "': " + length + " bytes from byte " + offset;
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
 		}
-	}
-	private void listFiles() {
-		if (!isLocalDirOK())
-			constructErrorResponseMsg();
-		else {
-			Map<String, String> files = new HashMap<String, String>();
-			for (File file : localDir.listFiles()) {
-				if (file.isFile()) {
-					files.put(file.getName(), Util.calculateFileSize(file));
-				}
-			}
-			resp.setFiles(files);
+		UploadSessions uploads = config.getUploadSessions();
+		UploadSessions.Session upload;
+		try {
+			upload = uploads.join(target, fileLength, finalChecksum);
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = e.getMessage();
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		resp.setFileSize(fileLength);
+		resp.setOffset(offset);
+		resp.setLength(length);
+		resp.setMessage("Can accept " + length + " bytes of '" + target + "' from byte " + offset);
+		if (! sendResponse()) {
+			uploads.leave(upload, offset, length, false);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		midBody = true;
+		long written = 0;
+		try {
+			written = channel.receiveBody(upload.getChannel(), offset, length, null);
+			bodyIn += written;
+			midBody = written != length;
+		} catch (UnexpectedMessageException e) {
+			uploads.leave(upload, offset, length, false);
+			inErrorState = true;
+			errorMsg = "Transfer of '" + target + "' aborted by client";
+			Util.serBashln(errorMsg);
+			return;
+		} catch (IOException e) {
+			uploads.leave(upload, offset, length, false);
+			inErrorState = true;
+			errorMsg = "I/O error while writing into file '" + target + "'";
+			Log.error(e);
+			return;
+		}
+		if (written != length) {
+			uploads.leave(upload, offset, length, false);
+			inErrorState = true;
+			errorMsg = "Size failure: " + length +
+					" (B on source) vs " + written + " (B received)";
+			return;
+		}
+		if (! uploads.leave(upload, offset, length, true)) {
 			Util.serBashln(okMsg + "OK");
+			if (channel.isLegacy()) {
+				canContinue = false;
+				return;
+			}
+			resp = new Response(MsgType.S);
+			resp.setMessage(length + " bytes of '" + target + "' received");
+			return;
+		}
+		//the last part: the whole file is there
+		errorMsg = uploads.finish(upload, file, config.getChecksumCache());
+		if (null != errorMsg) {
+			inErrorState = true;
+			Util.serBashln(okMsg + "ERROR");
+			return;
 		}
+		config.getDirectoryIndex().changed(target);
+		Util.serBashln(okMsg + "OK");
+		storeUpload(file, target, finalChecksum);
+		acknowledgeUpload(target);
 	}
 
-
-	//----MISC METHODS--------------------------------------//
-	private void constructErrorResponseMsg() {
+	/**
+	 * Updates a file from a delta against the copy already here: sends the
+	 * signatures of its blocks, receives the delta, rebuilds the new version
+	 * into a staging file and swaps it in once its checksum is verified.
+	 * @param target
+	 */
+	private void recvDeltaFromClient(String target) {
+		if (!isLocalDirOK()) {
+			constructErrorResponseMsg();
+			return;
+		}
+		File file = new File(localDir.getAbsolutePath() + File.separator + target);
+		ChunkStore.Manifest stored = null;
+		if (! isHidden(target) && ! file.exists() && null != store)
+			stored = store.open(target);
+		if (isHidden(target) || (null == stored
+				&& (! file.isFile() || ! file.canRead() || ! file.canWrite()))) {
+			inErrorState = true;
+			errorMsg = "File '" + target + "' not found, send it with 's'";
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		//what is replaced must still be the version the signatures are made of
+		long basisLength = file.length();
+		long basisModified = file.lastModified();
+		long size;
+		int blockSize;
+		long sigLength;
+		RandomAccessFile basis = null;
+		File copy = null; //a stored old copy, put back together
+		File sig = null;
+		File delta = null;
+		File rebuilt = null;
+		try {
+			if (null != stored) {
+				try {
+					copy = UploadStaging.newRebuildFile(localDir);
+					FileOutputStream cos = new FileOutputStream(copy);
+					try {
+						store.copy(stored, cos);
+					} finally {
+						cos.close();
+					}
+				} finally {
+					store.close(stored);
+				}
+			}
+			basis = new RandomAccessFile(null != copy ? copy : file, "r");
+			size = basis.length();
+			blockSize = Delta.blockSize(size);
+			sigLength = Delta.signaturesLength(size, blockSize);
+			sig = File.createTempFile("red2-", ".sig");
+			FileOutputStream fos = new FileOutputStream(sig);
+			try {
+				Delta.writeSignatures(basis.getChannel(), size, blockSize, fos);
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = "Error computing the signatures of '" + target + "'";
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			Log.error(e);
+			closeQuietly(basis);
+			if (null != copy) copy.delete();
+			if (null != sig) sig.delete();
+			return;
+		}
+		resp.setFileSize(size);
+		resp.setBlockSize(blockSize);
+		resp.setLength(sigLength);
+		resp.setMessage("Can update file '" + target + "'");
+		try {
+			if (! sendResponse()) {
+				Util.serBashln(okMsg + "ERROR");
+				canContinue = false;
+				return;
+			}
+			midBody = true;
+			FileInputStream sigIn = new FileInputStream(sig);
+			try {
+				bodyOut += channel.sendBody(sigIn.getChannel(), 0, sigLength, null);
+			} finally {
+				sigIn.close();
+			}
+			//the client answers with the delta
+			Object obj = channel.readMessage();
+			if (! (obj instanceof Request) || MsgType.DS != ((Request) obj).getType()
+					|| ! target.equals(((Request) obj).getMessage())) {
+				inErrorState = true;
+				errorMsg = "Expected the delta of '" + target + "'";
+				Util.serBashln(okMsg + "ERROR");
+				return;
+			}
+			Request update = (Request) obj;
+			if (update.getLength() <= 0 || null == update.getChecksum()) {
+				inErrorState = true;
+				errorMsg = "Invalid delta of '" + target + "'";
+				Util.serBashln(okMsg + "ERROR");
+				return;
+			}
+			delta = File.createTempFile("red2-", ".delta");
+			RandomAccessFile raf = new RandomAccessFile(delta, "rw");
+			long written;
+			try {
+				written = channel.receiveBody(raf.getChannel(), 0, update.getLength(), null);
+				bodyIn += written;
+			} finally {
+				raf.close();
+			}
+			if (written != update.getLength()) {
+				inErrorState = true;
+				errorMsg = "Size failure: " + update.getLength() +
+						" (B of delta) vs " + written + " (B received)";
+				return;
+			}
+			midBody = false;
+			//rebuild the new version next to the old one
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			rebuilt = UploadStaging.newRebuildFile(localDir);
+			FileInputStream deltaIn = new FileInputStream(delta);
+			FileOutputStream out = new FileOutputStream(rebuilt);
+			long rebuiltSize;
+			try {
+				rebuiltSize = Delta.apply(deltaIn, basis.getChannel(), size, blockSize, out, md);
+			} finally {
+				deltaIn.close();
+				out.close();
+			}
+			basis.close();
+			basis = null;
+			String resultChecksum = Util.calcMD5(md.digest());
+			if (rebuiltSize != update.getFileSize() || ! update.getChecksum().contentEquals(resultChecksum)) {
+				inErrorState = true;
+				errorMsg = "Checksum failure: " + update.getChecksum() +
+						" (source) vs " + resultChecksum + " (rebuilt)";
+				Util.serBashln("File '" + target +"' will not be updated.");
+				return;
+			}
+			if (file.length() != basisLength || file.lastModified() != basisModified) {
+				inErrorState = true;
+				errorMsg = "File '" + target + "' changed during the update";
+				Util.serBashln("File '" + target +"' will not be updated.");
+				return;
+			}
+			if (! rebuilt.renameTo(file)) {
+				file.delete();
+				if (! rebuilt.renameTo(file)) {
+					inErrorState = true;
+					errorMsg = "Error saving file '" + target + "'";
+					Util.serBashln(okMsg + "ERROR");
+					return;
+				}
+			}
+			config.getChecksumCache().put(file, resultChecksum);
+			config.getDirectoryIndex().changed(target);
+			Util.serBashln(okMsg + "OK");
+			Util.serBashln("Rebuilt '" + target + "' (" + rebuiltSize + " B) from a delta of " +
+					written + " B");
+			storeUpload(file, target, resultChecksum);
+			resp = new Response(MsgType.DS);
+			resp.setMessage("File '" + target + "' updated from a delta of " + written + " bytes");
+		} catch (ProtocolException e) {
+			inErrorState = true;
+			errorMsg = "Invalid delta of '" + target + "': " + e.getMessage();
+		} catch (NoSuchAlgorithmException e) {
+			inErrorState = true;
+			errorMsg = "Error creating MessageDigest with MD5 algorithm";
+			Log.error(e);
+		} catch (ClassNotFoundException e) {
+			inErrorState = true;
+			errorMsg = "Unable to understand request";
+			canContinue = false;
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = "I/O error while updating file '" + target + "'";
+			Log.error(e);
+			canContinue = channel.canAbortBody();
+		} finally {
+			closeQuietly(basis);
+			if (null != copy) copy.delete();
+			sig.delete();
+			if (null != delta) delta.delete();
+			if (null != rebuilt) rebuilt.delete(); //gone if renamed
+		}
+	}
+
+	/**
+	 * Stores a file announced as the list of its chunks: answers with the
+	 * chunks the store lacks, receives those one after the other, each
+	 * checked against its hash, then verifies the whole file.
+	 * @param target
+	 */
+	private void recvChunksFromClient(String target) {
+		if (!isLocalDirOK()) {
+			constructErrorResponseMsg();
+			return;
+		}
+		if (null == store) {
+			inErrorState = true;
+			errorMsg = "Server does not deduplicate uploads, send '" + target + "' with 's'";
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		File file = new File(localDir.getAbsolutePath() + File.separator + target);
+		if (file.exists() || isHidden(target) || isStored(target)) {
+			inErrorState = true;
+			errorMsg = "File '" + target + "' already exists";
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		ChunkStore.Manifest m = ChunkStore.parse(req.getChunks(), req.getFileSize(), req.getChecksum());
+		if (null == m || null == req.getChecksum()) {
+			inErrorState = true;
+			errorMsg = "Invalid list of chunks of '" + target + "'";
+			resp.setMessage(errorMsg);
+			resp.setCode(Codes.ERR);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		boolean[] missing = store.reserve(m);
+		byte[] wanted = new byte[(missing.length + 7) / 8];
+		int count = 0;
+		long bytes = 0;
+		for (int i = 0; i < missing.length; i++)
+			if (missing[i]) {
+				wanted[i / 8] |= 1 << (i % 8);
+				count++;
+				bytes += ChunkStore.lengthOf(m, i);
+			}
+		resp.setFileSize(m.getSize());
+		resp.setLength(bytes);
+		resp.setChunks(wanted);
+		resp.setMessage("Needs " + count + " of " + missing.length + " chunk(s) of '" + target + "'");
+		boolean committed = false;
+		File tmp = null;
+		try {
+			if (! sendResponse()) {
+				Util.serBashln(okMsg + "ERROR");
+				canContinue = false;
+				return;
+			}
+			midBody = bytes > 0;
+			MessageDigest sha = ChunkStore.sha();
+			for (int i = 0; i < missing.length; i++) {
+				if (! missing[i])
+					continue;
+				int length = ChunkStore.lengthOf(m, i);
+				tmp = store.newChunkFile();
+				RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+				long written;
+				try {
+					written = channel.receiveBody(raf.getChannel(), 0, length, sha);
+					bodyIn += written;
+				} finally {
+					raf.close();
+				}
+				if (written != length) {
+					inErrorState = true;
+					errorMsg = "Size failure: " + length +
+							" (B of chunk " + i + ") vs " + written + " (B received)";
+					return;
+				}
+				String hash = Util.toHex(sha.digest());
+				if (! hash.equals(ChunkStore.hashOf(m, i))) {
+					inErrorState = true;
+					errorMsg = "Chunk " + i + " of '" + target + "' does not match its hash";
+					return;
+				}
+				store.put(hash, tmp);
+				tmp = null;
+			}
+			midBody = false;
+			String resultChecksum = store.checksum(m);
+			if (! req.getChecksum().contentEquals(resultChecksum)) {
+				inErrorState = true;
+				errorMsg = "Checksum failure: " + req.getChecksum() +
+						" (source) vs " + resultChecksum + " (stored)";
+				Util.serBashln("File '" + target +"' will not be saved.");
+				return;
+			}
+			committed = true; //a failed commit releases the chunks itself
+			store.commit(target, m);
+			config.getDirectoryIndex().changed(target);
+			Util.serBashln(okMsg + "OK");
+			Util.serBashln("Stored '" + target + "' (" + m.getSize() + " B) receiving " + count +
+					" of its " + missing.length + " chunk(s), " + bytes + " B");
+			resp = new Response(MsgType.CS);
+			resp.setMessage("File '" + target + "' stored, " + count + " new chunk(s) of " + missing.length);
+		} catch (UnexpectedMessageException e) {
+			midBody = false;
+			inErrorState = true;
+			errorMsg = "Transfer of '" + target + "' aborted by client";
+			Util.serBashln(errorMsg);
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = "I/O error while storing file '" + target + "'";
+			Log.error(e);
+			canContinue = channel.canAbortBody();
+		} finally {
+			if (null != tmp) tmp.delete();
+			if (! committed)
+				store.close(m);
+		}
+	}
+
+	private static void closeQuietly(RandomAccessFile raf) {
+		try {
+			if (null != raf) raf.close();
+		} catch (IOException e) {
+			//only read, nothing to lose
+		}
+	}
+
+	/**
+	 * Reads the checksum following the body of an upload announced without one.
+	 * @param target
+	 * @return null if the client aborted or the trailer could not be read
+	 */
+	private String readTrailer(String target) {
+		try {
+			String checksum = channel.readTrailer();
+			midBody = false;
+			return checksum;
+		} catch (UnexpectedMessageException e) {
+			midBody = false;
+			inErrorState = true;
+			errorMsg = "Transfer of '" + target + "' aborted by client";
+			Util.serBashln(errorMsg);
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = "Error reading the checksum of '" + target + "'";
+			Log.error(e);
+		}
+		return null;
+	}
+
+	/**
+	 * Frame clients wait for a final {@link Response} confirming the upload,
+	 * legacy clients do not expect anything after the data.
+	 */
+	private void acknowledgeUpload(String target) {
+		if (channel.isLegacy()) {
+			canContinue = false;
+			return;
+		}
+		resp = new Response(MsgType.S);
+		resp.setMessage("File '" + target + "' received");
+	}
+
+
+
+	/**
+	 * Moves a file just received into the chunk store, when there is one.
+	 * If that fails the file stays as a plain file, still served.
+	 * @param file
+	 * @param target
+	 * @param checksum
+	 */
+	private void storeUpload(File file, String target, String checksum) {
+		if (null == store)
+			return;
+		try {
+			int added = store.ingest(file, target, checksum);
+			config.getChecksumCache().remove(target);
+			config.getDirectoryIndex().changed(target);
+			Util.serBashln("Stored '" + target + "' with " + added + " new chunk(s)");
+		} catch (IOException e) {
+			Util.serBashln("Unable to store '" + target + "', keeping it as a plain file");
+			Log.error(e);
+		}
+	}
+
+	private boolean isStored(String target) {
+		return null != store && store.contains(target);
+	}
+
+	private void deleteFile(String target) {
+		if (!isLocalDirOK())
+			constructErrorResponseMsg();
+		else {
+			if (removeFile(target)) {
+				resp.setMessage("File '" + target + "' deleted.");
+				Util.serBashln(okMsg + "OK");
+			} else {
+				inErrorState = true;
+				errorMsg = "Can not delete file '" + target + "'";
+				resp.setCode(Codes.ERR);
+				resp.setMessage(errorMsg);
+				Util.serBashln(okMsg + "ERROR");
+			}
+		}
+	}
+	/**
+	 * @param target
+	 * @return true if the file, plain or stored, has been deleted
+	 */
+	private boolean removeFile(String target) {
+		File file = FileTree.resolve(localDir, target);
+		if (null == file || isHidden(target))
+			return false;
+		boolean deleted = file.exists() && file.canWrite() && file.delete();
+		if (null != store && store.delete(target))
+			deleted = true;
+		if (deleted) {
+			if (target.indexOf(FileTree.SEPARATOR) > 0)
+				pruneFolders(file);
+			config.getChecksumCache().remove(target);
+			config.getDirectoryIndex().changed(target);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Removes the folders a deleted file leaves empty, up to the served one.
+	 * @param file
+	 */
+	private void pruneFolders(File file) {
+		File top = localDir.getAbsoluteFile();
+		File dir = file.getAbsoluteFile().getParentFile();
+		while (null != dir && ! dir.equals(top) && dir.delete())
+			dir = dir.getParentFile();
+	}
+
+	//----BATCHES-------------------------------------------//
+	/**
+	 * @return the files named by a BR or BD request, listed or matching its
+	 * pattern, a folder standing for every file of its tree; null if it names
+	 * none, the error response is then ready
+	 */
+	private List<FileEntry> batchTargets() {
+		List<String> names = new ArrayList<String>();
+		if (null != req.getEntries() && ! req.getEntries().isEmpty()) {
+			for (FileEntry e : req.getEntries())
+				names.add(e.getName());
+		} else if (null != req.getFilter() && ! req.getFilter().isEmpty()) {
+			for (FileEntry e : config.getDirectoryIndex().matching(req.getFilter()))
+				names.add(e.getName());
+		} else {
+			inErrorState = true;
+			errorMsg = "No files given";
+			resp.setCode(Codes.ERR);
+			resp.setMessage(errorMsg);
+			Util.serBashln(okMsg + "ERROR");
+			return null;
+		}
+		List<FileEntry> files = new ArrayList<FileEntry>(names.size());
+		for (String name : names) {
+			String path = name.endsWith(DirectoryIndex.DIR_SUFFIX) ? name.substring(0, name.length() - 1) : name;
+			File f = FileTree.resolve(localDir, path);
+			if (null != f && ! isHidden(path) && f.isDirectory()) {
+				for (String inside : FileTree.walk(localDir, path, HIDDEN))
+					files.add(entryOf(inside));
+			} else
+				files.add(entryOf(name));
+		}
+		return files;
+	}
+
+	/**
+	 * @param name
+	 * @return the listed entry of a file, or one read from the file itself for
+	 * those of subfolders; size -1 if there is no such file
+	 */
+	private FileEntry entryOf(String name) {
+		FileEntry listed = config.getDirectoryIndex().get(name);
+		if (null != listed)
+			return listed;
+		File f = FileTree.resolve(localDir, name);
+		if (name.indexOf(FileTree.SEPARATOR) > 0 && null != f && ! isHidden(name) && f.isFile())
+			return new FileEntry(name, f.length(), Util.calculateFileSize(f.length()));
+		return new FileEntry(name, -1, null);
+	}
+
+	/**
+	 * Sends many files in one exchange: a first response lists them, then
+	 * every file follows behind a {@link MsgType#BR} header holding its size
+	 * and checksum, or an error header if it can not be sent. A last
+	 * response ends the batch.
+	 */
+	private void sendBatchToClient() {
+		if (!isLocalDirOK()) {
+			constructErrorResponseMsg();
+			return;
+		}
+		List<FileEntry> files = batchTargets();
+		if (null == files)
+			return;
+		resp.setEntries(files);
+		resp.setMessage(files.size() + " file(s) to send");
+		canContinue = false;
+		if (! sendResponse()) {
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		Util.serBashln(okMsg + "OK");
+		long start = System.currentTimeMillis();
+		int sent = 0;
+		long bytes = 0;
+		List<File> paths = new ArrayList<File>(files.size());
+		for (FileEntry e : files)
+			paths.add(e.getSize() < 0 ? null : FileTree.resolve(localDir, e.getName()));
+		ReadAhead readAhead = new ReadAhead(paths);
+		readAhead.start();
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				readAhead.reached(i);
+				long size = sendBatchFile(files.get(i).getName());
+				if (inErrorState)
+					return;
+				if (size >= 0) {
+					sent++;
+					bytes += size;
+				}
+			}
+		} finally {
+			readAhead.stop();
+		}
+		canContinue = true;
+		resp = new Response(MsgType.BR);
+		resp.setMessage("Sent " + sent + " of " + files.size() + " file(s), " + bytes + " B");
+		Log.info("{} towards {} in {} miliseconds.", resp.getMessage(), remoteHost,
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Sends a file of a batch behind its header.
+	 * @param target
+	 * @return the size of the file, -1 if an error header was sent instead;
+	 * the error state is set if the batch can not go on
+	 */
+	private long sendBatchFile(String target) {
+		Response header = new Response(MsgType.BR);
+		header.setMessage(target);
+		File file = FileTree.resolve(localDir, target);
+		ChunkStore.Manifest m = null;
+		FileInputStream fis = null;
+		String problem = null;
+		try {
+			if (null != file && ! isHidden(target) && ! file.exists() && isStored(target))
+				m = store.open(target);
+			MessageDigest md = null;
+			long modified = null == file ? 0 : file.lastModified();
+			if (null != m) {
+				header.setFileSize(m.getSize());
+				header.setChecksum(m.getChecksum());
+			} else if (null == file || isHidden(target) || ! file.isFile() || ! file.canRead()) {
+				problem = "File '" + target + "' not found";
+			} else {
+				fis = new FileInputStream(file);
+				header.setFileSize(fis.getChannel().size());
+				if (channel.hasTrailers()) {
+					header.setChecksum(config.getChecksumCache().cached(file));
+					if (null == header.getChecksum())
+						md = MessageDigest.getInstance("MD5");
+				} else
+					header.setChecksum(config.getChecksumCache().checksum(file));
+				if (null == md && (null == header.getChecksum() || header.getChecksum().isEmpty()))
+					problem = "Error creating checksum for '" + target + "'";
+			}
+			if (null == problem) {
+				channel.writeResponse(header);
+				midBody = true;
+				if (null != m)
+					bodyOut += store.sendBody(m, channel, 0, m.getSize(), null);
+				else
+					bodyOut += channel.sendBody(fis.getChannel(), 0, header.getFileSize(), md);
+				if (null != md) {
+					String checksum = Util.calcMD5(md.digest());
+					channel.writeTrailer(checksum);
+					if (modified == file.lastModified())
+						config.getChecksumCache().put(file, checksum);
+				}
+				midBody = false;
+				return header.getFileSize();
+			}
+		} catch (FileNotFoundException e) {
+			problem = "Error opening file '" + target + "' for transfer";
+		} catch (NoSuchAlgorithmException e) {
+			problem = "Error creating MessageDigest with MD5 algorithm";
+		} catch (IOException e) {
+			abortBatch("I/O error while transfering file '" + target + "'", e);
+			return -1;
+		} finally {
+			if (null != m)
+				store.close(m);
+			try {
+				if (null != fis) fis.close();
+			} catch (IOException e) {
+				Util.serBashln("Unable to close input stream on file " + target);
+				Log.error(e);
+			}
+		}
+		Util.serBashln(problem);
+		header.setCode(Codes.ERR);
+		header.setMessage(problem);
+		try {
+			channel.writeResponse(header);
+		} catch (IOException e) {
+			abortBatch("Error writing Response to output stream towards " + remoteHost, e);
+		}
+		return -1;
+	}
+
+	/**
+	 * Ends a batch being sent, telling the client why if the connection still allows it.
+	 * @param msg
+	 * @param e
+	 */
+	private void abortBatch(String msg, IOException e) {
+		inErrorState = true;
+		errorMsg = msg;
+		Log.error(e);
 		resp = new Response(MsgType.ERR);
 		resp.setCode(Codes.ERR);
 		resp.setMessage(errorMsg);
+		canContinue = channel.canAbortBody(); //try and send the reason to client
 	}
 
-	private boolean openOutputStream() {
-		if (null == oos ) {
+	/**
+	 * Receives many files in one exchange: answers with the files it takes,
+	 * those not here yet, then reads every one of them behind its
+	 * {@link MsgType#BS} header. Files of subfolders have their path as name,
+	 * the missing folders are created. The last response tells what happened
+	 * to every file.
+	 */
+	private void recvBatchFromClient() {
+		if (!isLocalDirOK()) {
+			constructErrorResponseMsg();
+			return;
+		}
+		List<FileEntry> offered = req.getEntries();
+		if (null == offered || offered.isEmpty()) {
+			inErrorState = true;
+			errorMsg = "No files given";
+			resp.setCode(Codes.ERR);
+			resp.setMessage(errorMsg);
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		Map<String, String> results = new HashMap<String, String>();
+		List<FileEntry> accepted = new ArrayList<FileEntry>();
+		for (FileEntry e : offered) {
+			String name = e.getName();
+			if (results.containsKey(name))
+				continue;
+			File f = FileTree.resolve(localDir, name);
+			if (null == f || isHidden(name)) {
+				results.put(name, "Invalid file name '" + name + "'");
+			} else if (f.exists() || isStored(name)) {
+				results.put(name, "File '" + name + "' already exists");
+			} else {
+				results.put(name, "Not received");
+				accepted.add(e);
+			}
+		}
+		resp.setEntries(accepted);
+		resp.setMessage("Can accept " + accepted.size() + " of " + results.size() + " file(s)");
+		if (! sendResponse()) {
+			Util.serBashln(okMsg + "ERROR");
+			return;
+		}
+		Util.serBashln(okMsg + "OK");
+		long start = System.currentTimeMillis();
+		WriteBehind writer = new WriteBehind();
+		try {
+			for (FileEntry e : accepted) {
+				String problem = recvBatchFile(e.getName(), results, writer);
+				if (inErrorState)
+					return;
+				if (null != problem) {
+					synchronized (results) {
+						results.put(e.getName(), problem);
+					}
+				}
+			}
+		} finally {
+			writer.finish();
+		}
+		int received = 0;
+		for (String outcome : results.values()) {
+			if (BATCH_OK.equals(outcome))
+				received++;
+		}
+		resp = new Response(MsgType.BS);
+		resp.setFiles(results);
+		resp.setMessage("Received " + received + " of " + results.size() + " file(s)");
+		Log.info("{} from {} in {} miliseconds.", resp.getMessage(), remoteHost,
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Receives a file of a batch, behind its header, and leaves it to the
+	 * writer threads to move in place.
+	 * @param target
+	 * @param results where the writer threads tell how saving went
+	 * @param writer
+	 * @return null once handed to the writers, else why it was not received;
+	 * the error state is set if the batch can not go on
+	 */
+	private String recvBatchFile(final String target, final Map<String, String> results,
+			WriteBehind writer) {
+		Request header = null;
+		try {
+			Object obj = channel.readMessage();
+			if (obj instanceof Request && MsgType.BS == ((Request) obj).getType()
+					&& target.equals(((Request) obj).getMessage()))
+				header = (Request) obj;
+		} catch (ClassNotFoundException e) {
+			Log.error(e);
+		} catch (IOException e) {
+			Log.error(e);
+		}
+		if (null == header) {
+			inErrorState = true;
+			midBody = true; //where the stream stands is unknown
+			errorMsg = "Expected the header of '" + target + "' from " + remoteHost;
+			return null;
+		}
+		long fileLength = header.getFileSize();
+		if (fileLength < 0)
+			return "Not sent by the client";
+		midBody = true;
+		MessageDigest md = null;
+		RandomAccessFile raf = null;
+		File staging = null;
+		try {
+			md = MessageDigest.getInstance("MD5");
+			staging = UploadStaging.newBatchFile(localDir);
+			raf = new RandomAccessFile(staging, "rw");
+		} catch (NoSuchAlgorithmException e) {
+			inErrorState = true;
+			errorMsg = "Error creating MessageDigest with MD5 algorithm";
+			return null;
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = "Error opening out stream on '" + target + "'";
+			Log.error(e);
+			if (null != staging)
+				staging.delete();
+			return null;
+		}
+		long written = 0;
+		try {
+			written = channel.receiveBody(raf.getChannel(), 0, fileLength, md);
+			bodyIn += written;
+		} catch (UnexpectedMessageException e) {
+			midBody = false;
+			inErrorState = true;
+			errorMsg = "Transfer of '" + target + "' aborted by client";
+			staging.delete();
+			return null;
+		} catch (IOException e) {
+			inErrorState = true;
+			errorMsg = "I/O error while writing into file '" + target + "'";
+			Log.error(e);
+			staging.delete();
+			return null;
+		} finally {
 			try {
-				oos = new ObjectOutputStream(conn.getOutputStream());
-				oos.flush();
-				return true;
+				raf.close();
 			} catch (IOException e) {
-				Util.serBashln("Error opening output stream to client " + remoteHost);
-				System.out.println("IOException: " + e.getMessage());
-				e.printStackTrace();
+				Log.error(e);
 			}
-			return false;
-		} else
-			return true; //already opened
+		}
+		if (written != fileLength) {
+			inErrorState = true;
+			errorMsg = "Size failure: " + fileLength +
+					" (B on source) vs " + written + " (B received)";
+			staging.delete();
+			return null;
+		}
+		String finalChecksum = header.getChecksum();
+		if (null == finalChecksum) {
+			finalChecksum = readTrailer(target);
+			if (null == finalChecksum) {
+				staging.delete();
+				return null;
+			}
+		}
+		midBody = false;
+		final String resultChecksum = Util.calcMD5(md.digest());
+		if (! finalChecksum.contentEquals(resultChecksum)) {
+			staging.delete();
+			return "Checksum failure: " + finalChecksum +
+					" (source) vs " + resultChecksum + " (received)";
+		}
+		final File received = staging;
+		writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				String outcome = saveBatchFile(received, target, resultChecksum);
+				synchronized (results) {
+					results.put(target, outcome);
+				}
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Moves a received file of a batch in place, creating its folders.
+	 * Runs on the writer threads.
+	 * @param staging
+	 * @param target
+	 * @param checksum
+	 * @return {@link #BATCH_OK} or why the file was not saved
+	 */
+	private String saveBatchFile(File staging, String target, String checksum) {
+		File file = FileTree.resolve(localDir, target);
+		File parent = null == file ? null : file.getParentFile();
+		if (null != file && file.exists()) { //created meanwhile, renaming would replace it
+			staging.delete();
+			return "File '" + target + "' already exists";
+		}
+		if (null == parent || ! (parent.mkdirs() || parent.isDirectory()) || ! staging.renameTo(file)) {
+			staging.delete();
+			return "Error saving file '" + target + "'";
+		}
+		config.getChecksumCache().put(file, checksum);
+		config.getDirectoryIndex().changed(target);
+		if (target.indexOf(FileTree.SEPARATOR) < 0) //the store holds no folders
+			storeUpload(file, target, checksum);
+		return BATCH_OK;
+	}
+
+	/**
+	 * Deletes many files in one exchange, the response tells which were.
+	 */
+	private void deleteBatch() {
+		if (!isLocalDirOK()) {
+			constructErrorResponseMsg();
+			return;
+		}
+		List<FileEntry> files = batchTargets();
+		if (null == files)
+			return;
+		Map<String, String> results = new HashMap<String, String>();
+		int deleted = 0;
+		for (FileEntry e : files) {
+			if (removeFile(e.getName())) {
+				deleted++;
+				results.put(e.getName(), "Deleted");
+			} else
+				results.put(e.getName(), "Can not delete file '" + e.getName() + "'");
+		}
+		resp.setFiles(results);
+		resp.setMessage("Deleted " + deleted + " of " + files.size() + " file(s)");
+		Util.serBashln(okMsg + "OK");
 	}
-	private void openInputStream() {
-		if (null == ois)
+
+	private void listFiles() {
+		if (!isLocalDirOK())
+			constructErrorResponseMsg();
+		else {
 			try {
-				ois = new ObjectInputStream(conn.getInputStream());
-			} catch (IOException e) {
-				Util.serBashln("Error opening input stream to client " + remoteHost);
-				System.out.println("IOException: " + e.getMessage());
-				e.printStackTrace();
+				list(resp, req, config);
+				Util.serBashln(okMsg + "OK");
+			} catch (IllegalArgumentException e) {
+				inErrorState = true;
+				errorMsg = e.getMessage();
+				resp.setCode(Codes.ERR);
+				resp.setMessage(errorMsg);
+				Util.serBashln(okMsg + "ERROR");
+			}
+		}
+	}
+
+
+	//----MISC METHODS--------------------------------------//
+	private void constructErrorResponseMsg() {
+		resp = new Response(MsgType.ERR);
+		resp.setCode(Codes.ERR);
+		resp.setMessage(errorMsg);
+	}
+
+	/**
+	 * Detects the protocol spoken by the client and, for frame clients,
+	 * answers the handshake.
+	 */
+	private void openChannel() {
+		try {
+			if (null != negotiated) {
+				FrameMsgChannel frames = new FrameMsgChannel(conn, new DrainableInputStream(conn.getInputStream(), prefix));
+				applyNegotiated(frames, negotiated);
+				channel = frames;
 				return;
 			}
+			channel = null == prefix ? MsgChannel.accept(conn) : MsgChannel.accept(conn, prefix);
+			if (! channel.isLegacy())
+				negotiate((FrameMsgChannel) channel);
+		} catch (IOException e) {
+			Util.serBashln("Error opening input stream to client " + remoteHost);
+			Log.error(e);
+			channel = null;
+		}
+	}
+	/**
+	 * Reads the client's {@link Hello} and answers with the accepted options.
+	 * @param frames
+	 * @throws IOException
+	 */
+	private void negotiate(FrameMsgChannel frames) throws IOException {
+		Hello accepted = accept(frames.readHello(), null != conn.getChannel(), config);
+		applyNegotiated(frames, accepted);
+		frames.writeHello(accepted);
+	}
+	/**
+	 * Answers LR from the {@link DirectoryIndex}: the whole listing, or one
+	 * page of it when the client asks for pages.
+	 * @param resp filled with the files
+	 * @param r
+	 * @param config
+	 * @throws IllegalArgumentException for an unknown sort order or a malformed cursor
+	 */
+	static void list(Response resp, Request r, ServerConfig config) {
+		DirectoryIndex index = config.getDirectoryIndex();
+		if (r.getPageSize() <= 0) {
+			resp.setFiles(index.listing());
+			return;
+		}
+		List<FileEntry> entries = new ArrayList<FileEntry>(Math.min(r.getPageSize(), DirectoryIndex.MAX_PAGE));
+		resp.setCursor(index.page(r.getFilter(), r.getSort(), r.getCursor(), r.getPageSize(), entries));
+		resp.setEntries(entries);
+	}
+	/**
+	 * @param name a file name as sent by the clients
+	 * @return true for the files the server keeps for itself in the served folder
+	 */
+	static boolean isHidden(String name) {
+		return ChecksumCache.isIndex(name) || UploadStaging.isStaging(name) || ChunkStore.isStore(name);
+	}
+	/**
+	 * Picks the options of the client's offer this server agrees on.
+	 * @param offer
+	 * @param hasChannel true if the socket has a channel (needed by the raw bodies)
+	 * @param config tells which of the optional features are enabled
+	 * @return the answer to send back
+	 */
+	static Hello accept(Hello offer, boolean hasChannel, ServerConfig config) {
+		Hello accepted = new Hello(Math.min(offer.getVersion(), Frame.VERSION));
+		if (config.getIdleTimeout() > 0 && offer.hasOption(Frame.OPT_SESSION))
+			accepted.setOption(Frame.OPT_SESSION, String.valueOf(config.getIdleTimeout()));
+		if (config.getMuxStreams() > 0 && offer.hasOption(Frame.OPT_MUX))
+			accepted.setOption(Frame.OPT_MUX, String.valueOf(config.getMuxStreams()));
+		int level = Math.min(Compression.levelOf(offer), config.getCompressLevel());
+		if (level > 0) //compressed blocks need their frames, so no raw bodies
+			accepted.setOption(Frame.OPT_COMPRESS, String.valueOf(level));
+		if (hasChannel && 0 == level && offer.hasOption(Frame.OPT_RAW_DOWNLOAD))
+			accepted.setOption(Frame.OPT_RAW_DOWNLOAD, null);
+		if (hasChannel && 0 == level && offer.hasOption(Frame.OPT_RAW_UPLOAD))
+			accepted.setOption(Frame.OPT_RAW_UPLOAD, null);
+		if (offer.hasOption(Frame.OPT_TRAILER))
+			accepted.setOption(Frame.OPT_TRAILER, null);
+		if (offer.hasOption(Frame.OPT_BATCH))
+			accepted.setOption(Frame.OPT_BATCH, null);
+		if (offer.hasOption(Frame.OPT_STATS))
+			accepted.setOption(Frame.OPT_STATS, null);
+		if (offer.hasOption(Frame.OPT_CHUNK))
+			accepted.setOption(Frame.OPT_CHUNK,
+					String.valueOf(Math.min(ChunkSizer.maxOf(offer), config.getMaxChunk())));
+		return accepted;
+	}
+	/**
+	 * Configures the channel with the options both sides agreed on.
+	 * @param frames
+	 * @param accepted
+	 */
+	private void applyNegotiated(FrameMsgChannel frames, Hello accepted) {
+		frames.setRawBodies(accepted.hasOption(Frame.OPT_RAW_DOWNLOAD),
+				accepted.hasOption(Frame.OPT_RAW_UPLOAD));
+		frames.setTrailers(accepted.hasOption(Frame.OPT_TRAILER));
+		frames.setCompression(Compression.levelOf(accepted));
+		frames.setChunking(ChunkSizer.maxOf(accepted), 0);
+		frames.setNegotiated(accepted);
+		session = accepted.hasOption(Frame.OPT_SESSION);
+		multiplexed = accepted.hasOption(Frame.OPT_MUX);
 	}
 	/**
 	 * Checks if there's any error regarding the local folder.
@@ -2,19 +2,38 @@ package red2.f1.server;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import red2.f1.proto.ChunkSizer;
+import red2.f1.util.Log;
 import red2.f1.util.Util;
 
 public class FileServer {
 
-	private static File localDir;
+	/** Threads answering the connections turned away, and how many may wait for them. */
+	private static final int SHED_THREADS = 2;
+	private static final int SHED_QUEUE = 64;
+
+	private static ServerConfig config;
 	private static int port;
-	private static ServerSocket serverSocket;
+	/** Blocking server channel, accepted sockets keep their channel for zero-copy transfers. */
+	private static ServerSocketChannel serverChannel;
 	private static ExecutorService executor;
+	/** Small bounded pool sending the busy responses. */
+	private static ExecutorService shedder;
 	
 	/**
 	 * Main method.
@@ -23,7 +42,13 @@ public class FileServer {
 	public static void main(String[] args) {
 		processArguments(args);
 		startServer();
-		executor = Executors.newCachedThreadPool();
+		executor = createExecutor();
+		config.setExecutor(executor);
+		shedder = createShedder();
+		if (executor instanceof ThreadPoolExecutor)
+			config.getMetrics().watchQueue(((ThreadPoolExecutor) executor).getQueue());
+		if (config.isJmx())
+			config.getMetrics().register();
 		try {
 			launchServer();
 		} catch (IOException e) {
@@ -31,28 +56,151 @@ public class FileServer {
 			System.exit(1);
 		} finally {
 			executor.shutdown();
+			shedder.shutdown();
 		}
 	}
 
 	
 	private static void launchServer() throws IOException {
+		if (config.isReactorEngine()) {
+			launchReactors();
+			return;
+		}
+		Admission admission = config.getAdmission();
 		while(true) {
-			Socket s = serverSocket.accept();
+			SocketChannel s = accept();
 			//Util.serBashln("Received request from " + s.getRemoteSocketAddress().toString());
-			executor.execute(new FileHandler(s, localDir.getAbsolutePath()));
+			if (! admission.tryAcquireConnection()) {
+				shed(new BusyResponder(s.socket(), admission), s.socket());
+				continue;
+			}
+			try {
+				executor.execute(new FileHandler(s.socket(), config));
+			} catch (RejectedExecutionException e) {
+				admission.releaseConnection();
+				shed(new BusyResponder(s.socket(), admission), s.socket());
+			}
+		}
+	}
+
+	/**
+	 * Hands a connection that was not admitted to the shedding pool,
+	 * or simply closes it when that pool is saturated too.
+	 * @param responder
+	 * @param s
+	 */
+	static void shed(BusyResponder responder, Socket s) {
+		try {
+			shedder.execute(responder);
+		} catch (RejectedExecutionException e) {
+			try {
+				s.close();
+			} catch (IOException ioe) {
+				Util.serBashln("Error closing rejected connection: " + ioe.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Creates the executor for the {@link FileHandler}s: a bounded pool of platform
+	 * threads, or one virtual thread per task when asked for and available.
+	 * Virtual threads need Java 21, the factory is looked up by reflection so
+	 * the server still builds and runs on older JVMs. Either way the number of
+	 * connections served or waiting is capped by the {@link Admission}.
+	 * @return
+	 */
+	private static ExecutorService createExecutor() {
+		if (config.isVirtualThreads()) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				Util.serBashln("Running each connection on a virtual thread");
+				return (ExecutorService) factory.invoke(null);
+			} catch (NoSuchMethodException e) {
+				Util.serBashln("Virtual threads need Java 21, falling back to a thread pool");
+			} catch (Exception e) {
+				Util.serBashln("Unable to create the virtual thread executor: " + e.getMessage());
+			}
+		}
+		int workers = config.getWorkers();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static ExecutorService createShedder() {
+		return new ThreadPoolExecutor(SHED_THREADS, SHED_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(SHED_QUEUE), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "shedder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts the reactor threads and deals the accepted connections
+	 * between them. The connections the reactors can not serve
+	 * are handed to {@link FileHandler}s on the executor.
+	 * @throws IOException
+	 */
+	private static void launchReactors() throws IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(
+				Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "reactor-worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (workers instanceof ThreadPoolExecutor)
+			config.getMetrics().watchQueue(((ThreadPoolExecutor) workers).getQueue());
+		Reactor[] reactors = new Reactor[config.getReactorCount()];
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(config, workers, executor);
+			new Thread(reactors[i], "reactor-" + i).start();
+		}
+		Util.serBashln("Serving with " + reactors.length + " reactor thread(s)");
+		long accepted = 0;
+		while (true) {
+			SocketChannel s = accept();
+			reactors[(int) (accepted++ % reactors.length)].register(s);
+		}
+	}
+
+	/**
+	 * Waits for the next connection and sizes its buffers, see {@link ChunkSizer#tune}.
+	 * @return
+	 * @throws IOException
+	 */
+	private static SocketChannel accept() throws IOException {
+		SocketChannel s = serverChannel.accept();
+		config.getMetrics().connectionAccepted();
+		try {
+			ChunkSizer.tune(s.socket(), config.getSocketBuffer());
+		} catch (SocketException e) {
+			Util.serBashln("Unable to size the buffers of " + s.socket().getRemoteSocketAddress() + ": " + e.getMessage());
 		}
+		return s;
 	}
 
 	/**
-	 * Instantiates the {@link SocketServer} using the specified port.
+	 * Opens the {@link ServerSocketChannel} on the specified port.
 	 * Terminates the program's execution in case of error.
 	 */
 	private static void startServer() {
 		try {
-			serverSocket = new ServerSocket(port);
+			serverChannel = ServerSocketChannel.open();
+			//inherited by the accepted sockets, the window scale is fixed when they connect
+			if (config.getSocketBuffer() > 0)
+				serverChannel.socket().setReceiveBufferSize(config.getSocketBuffer());
+			serverChannel.socket().bind(new InetSocketAddress(port));
 		} catch (IOException e) {
 			Util.serBashln("Unable to open the server socket.");
-			System.out.println("IOException: " + e.getMessage());
+			Log.error(e);
 			System.exit(1);
 		}
 		Util.serBashln("Server up and ready, listening on port " + port);
@@ -63,22 +211,37 @@ public class FileServer {
 	 * @param args
 	 */
 	private static void processArguments(String[] args) {
-		if (args.length != 2){
+		if (args.length < 2){
 			Util.serBashln("Incorrect arguments.");
-			Util.serBashln("Usage: java FileServer port localFolder");
+			Util.serBashln("Usage: java FileServer port localFolder " + ServerConfig.USAGE);
 			System.exit(1);
 		}
+		File localDir = new File(args[1]);
+		config = new ServerConfig(localDir);
+		for (int i = 2; i < args.length; i++) {
+			if (! config.setOption(args[i])) {
+				Util.serBashln("Unknown or malformed option: " + args[i]);
+				System.exit(1);
+			}
+		}
 		try{
 			port = Integer.parseInt(args[0]);
 		} catch (NumberFormatException e) {
 			Util.serBashln("Number format error for port number: " + args[1]);
 			System.exit(1);
 		}
-		localDir = new File(args[1]);
 		if (! localDir.isDirectory()) {
 			Util.serBashln("File " + args[1] + " is not a folder.");
 			System.exit(-1);
 		} else
 			Util.serBashln("Incoming files will be stored into " + args[1]);
+		try {
+			config.openChunkStore();
+		} catch (IOException e) {
+			Util.serBashln("Unable to open the chunk store in " + args[1]);
+			Log.error(e);
+			System.exit(1);
+		}
+		config.getDirectoryIndex();
 	}
 }
@@ -0,0 +1,123 @@
+package red2.f1.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import red2.f1.msg.MsgType;
+import red2.f1.util.Log;
+import red2.f1.util.Util;
+
+/**
+ * Counters of what the server does: an {@link OperationStats} per request
+ * type, the connections being served and the tasks waiting for a thread.
+ * They are always kept, a request costs a few atomic increments, and can be
+ * read through JMX, under the <code>red2.f1</code> domain, or by the clients
+ * with a {@link MsgType#STATS} request.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Metrics implements MetricsMBean {
+	public static final String DOMAIN = "red2.f1";
+
+	private final long started = System.currentTimeMillis();
+	private final OperationStats[] operations = new OperationStats[MsgType.values().length];
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong connections = new AtomicLong();
+	/** Queues of the executors, read when asked for their depth. */
+	private final List<Queue<?>> queues = new CopyOnWriteArrayList<Queue<?>>();
+
+	public Metrics() {
+		for (MsgType type : MsgType.values())
+			operations[type.ordinal()] = new OperationStats(type);
+	}
+
+	/**
+	 * @param type
+	 * @return the counters of the requests of this type
+	 */
+	public OperationStats operation(MsgType type) {
+		return operations[type.ordinal()];
+	}
+
+	public void connectionAccepted() {
+		connections.incrementAndGet();
+	}
+
+	public void connectionOpened() {
+		active.incrementAndGet();
+	}
+
+	public void connectionClosed() {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * @param queue the tasks waiting for the threads of an executor
+	 */
+	public void watchQueue(Queue<?> queue) {
+		queues.add(queue);
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return active.get();
+	}
+
+	@Override
+	public long getConnections() {
+		return connections.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Queue<?> q : queues)
+			depth += q.size();
+		return depth;
+	}
+
+	@Override
+	public long getUptime() {
+		return (System.currentTimeMillis() - started) / 1000;
+	}
+
+	/**
+	 * @return the server counters, then those of every request type served so far
+	 */
+	@Override
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Up ").append(getUptime()).append(" s, ").append(getActiveConnections())
+				.append(" active connection(s), ").append(getConnections()).append(" accepted")
+				.append(", ").append(getQueueDepth()).append(" task(s) queued");
+		for (OperationStats op : operations)
+			if (op.getRequests() > 0)
+				sb.append('\n').append(op);
+		return sb.toString();
+	}
+
+	/**
+	 * Shows the counters in the platform MBean server: the server as
+	 * <code>red2.f1:type=Server</code>, every request type as
+	 * <code>red2.f1:type=Operation,name=TYPE</code>.
+	 */
+	public void register() {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbs.registerMBean(this, new ObjectName(DOMAIN + ":type=Server"));
+			for (OperationStats op : operations)
+				if (MsgType.ERR != op.getType())
+					mbs.registerMBean(op, new ObjectName(DOMAIN + ":type=Operation,name=" + op.getType()));
+		} catch (JMException e) {
+			Util.serBashln("Unable to register the metrics with JMX");
+			Log.error(e);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package red2.f1.server;
+
+/**
+ * What JMX shows of the server as a whole, see {@link Metrics}.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public interface MetricsMBean {
+	/** Connections being served, those turned away not included. */
+	int getActiveConnections();
+	/** Connections accepted since the start, those turned away included. */
+	long getConnections();
+	/** Tasks waiting for a thread of the executors. */
+	int getQueueDepth();
+	/** Seconds since the start. */
+	long getUptime();
+	/** The same text as the answer to a {@link red2.f1.msg.MsgType#STATS} request. */
+	String getReport();
+}
@@ -0,0 +1,130 @@
+package red2.f1.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import red2.f1.msg.MsgType;
+import red2.f1.util.Histogram;
+import red2.f1.util.Util;
+
+/**
+ * Counters of the requests of one {@link MsgType}, updated by the handlers
+ * as they finish them, without any lock.
+ * <p>
+ * The time to first byte goes from the request read to its first response
+ * written, the duration up to the end of the exchange, bodies included.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class OperationStats implements OperationStatsMBean {
+	private static final long NANOS_PER_MICRO = 1000;
+
+	private final MsgType type;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final Histogram firstByte = new Histogram();
+	private final Histogram duration = new Histogram();
+
+	public OperationStats(MsgType type) {
+		this.type = type;
+	}
+
+	public MsgType getType() {
+		return type;
+	}
+
+	/**
+	 * Counts a finished request.
+	 * @param start {@link System#nanoTime()} when the request was read
+	 * @param firstByte when its first response was written, 0 if none was
+	 * @param end when the exchange was over
+	 * @param in file bytes received
+	 * @param out file bytes sent
+	 * @param failed true if the request was refused, turned away or broken off
+	 */
+	public void record(long start, long firstByte, long end, long in, long out, boolean failed) {
+		requests.incrementAndGet();
+		if (failed)
+			errors.incrementAndGet();
+		if (in > 0)
+			bytesIn.addAndGet(in);
+		if (out > 0)
+			bytesOut.addAndGet(out);
+		if (0 != firstByte)
+			this.firstByte.record((firstByte - start) / NANOS_PER_MICRO);
+		duration.record((end - start) / NANOS_PER_MICRO);
+	}
+
+	@Override
+	public long getRequests() {
+		return requests.get();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	@Override
+	public long getThroughput() {
+		long micros = duration.getSum();
+		return 0 == micros ? 0 : (long) ((bytesIn.get() + bytesOut.get()) * 1e6 / micros);
+	}
+
+	@Override
+	public long getFirstByteMedian() {
+		return firstByte.percentile(50);
+	}
+
+	@Override
+	public long getFirstByte99() {
+		return firstByte.percentile(99);
+	}
+
+	@Override
+	public long getFirstByteMax() {
+		return firstByte.getMax();
+	}
+
+	@Override
+	public long getDurationMedian() {
+		return duration.percentile(50);
+	}
+
+	@Override
+	public long getDuration99() {
+		return duration.percentile(99);
+	}
+
+	@Override
+	public long getDurationMax() {
+		return duration.getMax();
+	}
+
+	/**
+	 * @return a line of the {@link Metrics#report()}, times in milliseconds
+	 */
+	@Override
+	public String toString() {
+		return type + ": " + getRequests() + " request(s), " + getErrors() + " error(s), in "
+				+ Util.calculateFileSize(getBytesIn()) + ", out " + Util.calculateFileSize(getBytesOut())
+				+ " (" + Util.calculateFileSize(getThroughput()) + "/s), first byte p50/p99/max "
+				+ millis(getFirstByteMedian()) + "/" + millis(getFirstByte99()) + "/" + millis(getFirstByteMax())
+				+ " ms, duration p50/p99/max " + millis(getDurationMedian()) + "/"
+				+ millis(getDuration99()) + "/" + millis(getDurationMax()) + " ms";
+	}
+
+	private static String millis(long micros) {
+		return String.format("%.1f", micros / 1000.0);
+	}
+}
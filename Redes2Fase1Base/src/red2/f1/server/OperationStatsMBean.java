@@ -0,0 +1,21 @@
+package red2.f1.server;
+
+/**
+ * What JMX shows of the requests of one type, see {@link OperationStats}.
+ * Times are in microseconds.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public interface OperationStatsMBean {
+	long getRequests();
+	long getErrors();
+	long getBytesIn();
+	long getBytesOut();
+	/** File bytes moved per second of the time spent serving the requests. */
+	long getThroughput();
+	long getFirstByteMedian();
+	long getFirstByte99();
+	long getFirstByteMax();
+	long getDurationMedian();
+	long getDuration99();
+	long getDurationMax();
+}
@@ -0,0 +1,173 @@
+package red2.f1.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import red2.f1.msg.Hello;
+import red2.f1.util.Util;
+
+/**
+ * One selector thread of the non-blocking engine. It owns a set of
+ * {@link ReactorConnection}s and drives their state machines on readiness
+ * events; other threads talk to it only through {@link #execute(Runnable)}.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Reactor implements Runnable {
+	/** How often the idle connections are looked for. */
+	private static final long SWEEP_INTERVAL = 1000;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final List<ReactorConnection> handoffs = new ArrayList<ReactorConnection>();
+	private final ServerConfig config;
+	/** Runs the blocking steps: listing, checksums, opening files. */
+	private final ExecutorService workers;
+	/** Runs the {@link FileHandler}s of the connections handed off. */
+	private final ExecutorService handlers;
+
+	public Reactor(ServerConfig config, ExecutorService workers, ExecutorService handlers) throws IOException {
+		this.selector = Selector.open();
+		this.config = config;
+		this.workers = workers;
+		this.handlers = handlers;
+	}
+
+	/**
+	 * Runs a task on the reactor thread, as soon as possible.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Takes an accepted connection under this reactor.
+	 * @param sc
+	 */
+	public void register(final SocketChannel sc) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sc.configureBlocking(false);
+					ReactorConnection c = new ReactorConnection(Reactor.this, sc, config);
+					c.setKey(sc.register(selector, SelectionKey.OP_READ, c));
+				} catch (IOException e) {
+					Util.serBashln("Error registering connection: " + e.getMessage());
+					try {
+						sc.close();
+					} catch (IOException e1) {
+						//nothing else to do
+					}
+				}
+			}
+		});
+	}
+
+	ExecutorService getWorkers() {
+		return workers;
+	}
+
+	Admission getAdmission() {
+		return config.getAdmission();
+	}
+
+	/**
+	 * Gives the connection to a blocking {@link FileHandler}. The channel can only
+	 * go back to blocking mode once its key is gone from the selector, so the
+	 * switch happens at the end of the current loop. Like any blocking
+	 * connection it needs a permit of the {@link Admission}, or it is turned away.
+	 * @param c
+	 */
+	void handoff(ReactorConnection c) {
+		c.getKey().cancel();
+		handoffs.add(c);
+	}
+
+	@Override
+	public void run() {
+		long lastSweep = System.currentTimeMillis();
+		while (selector.isOpen()) {
+			try {
+				selector.select(SWEEP_INTERVAL);
+			} catch (IOException e) {
+				Util.serBashln("Fatal error in reactor: " + e.getMessage());
+				return;
+			}
+			Runnable task;
+			while (null != (task = tasks.poll()))
+				task.run();
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				ReactorConnection c = (ReactorConnection) key.attachment();
+				if (key.isValid())
+					c.handle(key);
+			}
+			if (! handoffs.isEmpty())
+				completeHandoffs();
+			long now = System.currentTimeMillis();
+			if (now - lastSweep >= SWEEP_INTERVAL) {
+				closeIdle(now);
+				lastSweep = now;
+			}
+		}
+	}
+
+	private void closeIdle(long now) {
+		for (SelectionKey key : selector.keys()) {
+			ReactorConnection c = (ReactorConnection) key.attachment();
+			if (key.isValid() && c.isIdle(now)) {
+				Util.serBashln("Connection " + c.getRemoteHost() + " idle, closing");
+				c.close();
+			}
+		}
+	}
+
+	private void completeHandoffs() {
+		try {
+			selector.selectNow(); //flushes the cancelled keys
+		} catch (IOException e) {
+			Util.serBashln("Error flushing cancelled keys: " + e.getMessage());
+		}
+		Admission admission = config.getAdmission();
+		for (ReactorConnection c : handoffs) {
+			c.stopCounting();
+			SocketChannel sc = c.getChannel();
+			try {
+				sc.configureBlocking(true);
+				c.flushQueued(); //the HELLO answer may still be pending
+				Hello negotiated = c.getNegotiated();
+				byte[] prefix = c.takeUnprocessed();
+				if (! admission.tryAcquireConnection()) {
+					FileServer.shed(new BusyResponder(sc.socket(), admission, prefix, negotiated), sc.socket());
+					continue;
+				}
+				try {
+					handlers.execute(new FileHandler(sc.socket(), config, prefix, negotiated, c.getRemoteHost()));
+				} catch (RejectedExecutionException e) {
+					admission.releaseConnection();
+					FileServer.shed(new BusyResponder(sc.socket(), admission, prefix, negotiated), sc.socket());
+				}
+			} catch (ClosedChannelException e) {
+				//client went away meanwhile
+			} catch (IOException e) {
+				Util.serBashln("Error handing off connection: " + e.getMessage());
+				c.close();
+			}
+		}
+		handoffs.clear();
+	}
+}
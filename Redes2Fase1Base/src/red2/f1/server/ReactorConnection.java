@@ -0,0 +1,1060 @@
+package red2.f1.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+
+import red2.f1.msg.Hello;
+import red2.f1.msg.MsgType;
+import red2.f1.msg.Request;
+import red2.f1.msg.Response;
+import red2.f1.msg.Response.Codes;
+import red2.f1.proto.ChunkSizer;
+import red2.f1.proto.Compression;
+import red2.f1.proto.Frame;
+import red2.f1.proto.FrameCodec;
+import red2.f1.util.BufferPool;
+import red2.f1.util.FileTree;
+import red2.f1.util.Log;
+import red2.f1.util.Peer;
+import red2.f1.util.Util;
+
+/**
+ * A frame protocol connection served by a {@link Reactor}. The LR/DR/R/S
+ * exchange of {@link FileHandler} is split into non-blocking steps:
+ * <ol>
+ * <li>HANDSHAKE: preamble and {@link Hello}, legacy and multiplexed clients are handed off</li>
+ * <li>REQUEST: waits for the request frame</li>
+ * <li>WORKING: a worker does the blocking part (listing, checksum, opening the file)</li>
+ * <li>SEND_BODY / RECEIVE_BODY: file contents, driven by readiness events</li>
+ * <li>CLOSING: flushes what is left and closes</li>
+ * </ol>
+ * In a session the connection goes back to REQUEST after each exchange.
+ * Connections waiting for the client longer than the idle timeout are
+ * closed by the reactor's sweep.
+ * Everything but the WORKING step runs on the reactor thread.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ReactorConnection {
+	private static enum State {HANDSHAKE, REQUEST, WORKING, SEND_BODY, RECEIVE_BODY, CLOSING}
+
+	private static final String fatalError = "[Fatal error]: ";
+	/** Initial size of the request buffer, small because most connections are idle. */
+	private static final int IN_BUFFER = 4 * 1024;
+	/** Largest request frame accepted. */
+	private static final int MAX_REQUEST = 1024 * 1024;
+	/** Buffer used while a file body is moving. */
+	private static final int BODY_BUFFER = 64 * 1024;
+
+	private final Reactor reactor;
+	private final SocketChannel sc;
+	private final File localDir;
+	private final ServerConfig config;
+	private final Admission admission;
+	private final int idleTimeout;
+	private final Peer remoteHost;
+	private SelectionKey key;
+	private State state = State.HANDSHAKE;
+	private boolean magicSeen = false;
+	private ByteBuffer in = ByteBuffer.allocate(IN_BUFFER);
+	private final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+	private Hello negotiated = null;
+	private boolean rawDownload = false;
+	/** Largest DATA payload agreed on, the frames are also bounded by the body buffer. */
+	private int dataChunk = Util.MAX_DATA;
+	private boolean rawUpload = false;
+	private boolean trailers = false;
+	private boolean session = false;
+	private long lastActive = System.currentTimeMillis();
+
+	//----current transfer
+	private Request req = null;
+	/** Type of the request holding a lane permit, null if none. */
+	private MsgType admitted = null;
+	private String okMsg = null;
+	private File target = null;
+	/** Where an upload is written, renamed to <code>target</code> once verified. */
+	private File staging = null;
+	/** The parallel upload the part being received belongs to, null otherwise. */
+	private UploadSessions.Session upload = null;
+	private FileChannel file = null;
+	private long bodyPos = 0;
+	private long bodyEnd = 0;
+	private int frameLeft = 0;
+	private MessageDigest md = null;
+	/** Checksum the body is verified against, null until its trailer arrives. */
+	private String expected = null;
+	/** Modification time of the file being sent, when it was opened. */
+	private long modified = 0;
+	private ByteBuffer bodyBuf = null;
+	private long start = 0;
+	//----counters of the current request, see OperationStats
+	/** When the request was read, 0 once it has been counted. */
+	private long requestStart = 0;
+	private long firstByte = 0;
+	/** File bytes moved, in the direction of the request. */
+	private long bodyBytes = 0;
+	private boolean failed = false;
+	/** The connection counts among the active ones of the {@link Metrics}. */
+	private boolean counted = true;
+
+	public ReactorConnection(Reactor reactor, SocketChannel sc, ServerConfig config) {
+		this.reactor = reactor;
+		this.sc = sc;
+		this.config = config;
+		this.localDir = config.getLocalDir();
+		this.admission = config.getAdmission();
+		this.idleTimeout = config.getIdleTimeout();
+		this.remoteHost = new Peer(sc.socket().getInetAddress(), sc.socket().getPort(), config.isResolvingHosts());
+		config.getMetrics().connectionOpened();
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	SocketChannel getChannel() {
+		return sc;
+	}
+
+	Peer getRemoteHost() {
+		return remoteHost;
+	}
+
+	Hello getNegotiated() {
+		return negotiated;
+	}
+
+	/**
+	 * @param now
+	 * @return true if the connection has been waiting for the client
+	 * longer than the idle timeout
+	 */
+	boolean isIdle(long now) {
+		if (State.HANDSHAKE != state && State.REQUEST != state)
+			return false;
+		return idleTimeout > 0 && out.isEmpty() && now - lastActive >= idleTimeout;
+	}
+
+	/**
+	 * @return the bytes read from the socket but not processed yet
+	 */
+	byte[] takeUnprocessed() {
+		in.flip();
+		byte[] rest = new byte[in.remaining()];
+		in.get(rest);
+		in.clear();
+		return rest;
+	}
+
+	//----EVENTS----------------------------------------------------------//
+	/**
+	 * Called by the reactor when the channel is ready.
+	 * @param key
+	 */
+	void handle(SelectionKey key) {
+		lastActive = System.currentTimeMillis();
+		try {
+			if (key.isReadable())
+				onReadable();
+			if (key.isValid() && key.isWritable())
+				pump();
+			updateInterest();
+		} catch (IOException e) {
+			Util.serBashln("Connection to " + remoteHost + " aborted: " + e.getMessage());
+			close();
+		}
+	}
+
+	private void onReadable() throws IOException {
+		switch (state) {
+		case HANDSHAKE:
+		case REQUEST:
+			if (! in.hasRemaining())
+				growInput(in.capacity() * 2);
+			if (sc.read(in) < 0) {
+				close();
+				return;
+			}
+			parse();
+			break;
+		case RECEIVE_BODY:
+			receiveBody();
+			break;
+		default:
+			//nothing is expected from the client now
+			if (sc.read(in) < 0)
+				close();
+		}
+	}
+
+	private void updateInterest() {
+		if (! key.isValid())
+			return;
+		int ops = 0;
+		if (State.HANDSHAKE == state || State.REQUEST == state || State.RECEIVE_BODY == state)
+			ops |= SelectionKey.OP_READ;
+		if (! out.isEmpty() || State.SEND_BODY == state)
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Parses as many frames from the input buffer as the current state allows.
+	 * @throws IOException
+	 */
+	private void parse() throws IOException {
+		in.flip();
+		try {
+			while (State.HANDSHAKE == state || State.REQUEST == state) {
+				if (! magicSeen) {
+					if (in.remaining() < Frame.MAGIC.length)
+						return;
+					byte[] head = new byte[Frame.MAGIC.length];
+					in.get(head);
+					if (! Frame.isMagic(head)) { //object streams client
+						in.position(in.position() - head.length);
+						reactor.handoff(this);
+						return;
+					}
+					magicSeen = true;
+					continue;
+				}
+				if (in.remaining() < Frame.HEADER_LEN)
+					return;
+				byte type = in.get(in.position());
+				int len = in.getInt(in.position() + 1);
+				if (State.REQUEST == state && Frame.REQUEST == type
+						&& len > MAX_REQUEST && len <= Frame.MAX_CONTROL_LEN) {
+					reactor.handoff(this); //e.g. the chunk list of a large file
+					return;
+				}
+				if (len < 0 || len > MAX_REQUEST)
+					throw new ProtocolException("Invalid frame length " + len);
+				if (in.remaining() < Frame.HEADER_LEN + len) {
+					if (in.capacity() < Frame.HEADER_LEN + len) {
+						in.compact();
+						growInput(Frame.HEADER_LEN + len);
+						in.flip();
+					}
+					return;
+				}
+				if (State.HANDSHAKE == state) {
+					if (Frame.HELLO != type)
+						throw new ProtocolException("Expected HELLO frame, got " + type);
+					in.position(in.position() + Frame.HEADER_LEN);
+					byte[] payload = new byte[len];
+					in.get(payload);
+					negotiate(FrameCodec.decodeHello(payload));
+					if (negotiated.hasOption(Frame.OPT_MUX)) {
+						reactor.handoff(this); //streams are served by blocking handlers
+						return;
+					}
+					continue;
+				}
+				if (Frame.REQUEST != type)
+					throw new ProtocolException("Expected REQUEST frame, got " + type);
+				//peek only: an unknown request is handed off with its frame
+				byte[] payload = new byte[len];
+				int mark = in.position();
+				in.position(mark + Frame.HEADER_LEN);
+				in.get(payload);
+				Request r = FrameCodec.decodeRequest(payload);
+				if (! dispatch(r)) {
+					in.position(mark);
+					reactor.handoff(this);
+				}
+				return;
+			}
+		} finally {
+			in.compact();
+		}
+	}
+
+	private void growInput(int capacity) throws ProtocolException {
+		if (capacity > MAX_REQUEST + Frame.HEADER_LEN)
+			throw new ProtocolException("Request too large");
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		in.flip();
+		bigger.put(in);
+		in = bigger;
+	}
+
+	private void negotiate(Hello offer) throws IOException {
+		negotiated = FileHandler.accept(offer, true, config);
+		rawDownload = negotiated.hasOption(Frame.OPT_RAW_DOWNLOAD);
+		rawUpload = negotiated.hasOption(Frame.OPT_RAW_UPLOAD);
+		dataChunk = ChunkSizer.maxOf(negotiated);
+		trailers = negotiated.hasOption(Frame.OPT_TRAILER);
+		session = negotiated.hasOption(Frame.OPT_SESSION);
+		queue(Frame.HELLO, FrameCodec.encode(negotiated));
+		state = State.REQUEST;
+	}
+
+	//----OUTPUT----------------------------------------------------------//
+	private void queue(byte type, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_LEN + payload.length);
+		frame.put(type).putInt(payload.length).put(payload);
+		frame.flip();
+		out.add(frame);
+	}
+
+	private void queue(Response r) throws IOException {
+		queue(Frame.RESPONSE, FrameCodec.encode(r));
+	}
+
+	/**
+	 * Writes what is still queued, once the channel is back in blocking mode.
+	 * @throws IOException
+	 */
+	void flushQueued() throws IOException {
+		for (ByteBuffer b : out)
+			while (b.hasRemaining())
+				sc.write(b);
+		out.clear();
+	}
+
+	/**
+	 * Writes the queued frames, then moves the body forward.
+	 * @throws IOException
+	 */
+	private void pump() throws IOException {
+		while (! out.isEmpty()) {
+			ByteBuffer head = out.getFirst();
+			sc.write(head);
+			if (head.hasRemaining())
+				return;
+			out.removeFirst();
+		}
+		if (State.SEND_BODY == state)
+			sendBody();
+		if (State.CLOSING == state && out.isEmpty())
+			close();
+	}
+
+	//----REQUESTS--------------------------------------------------------//
+	/**
+	 * Starts processing a request on a worker.
+	 * @param r
+	 * @return false if the request is not served by the reactor
+	 */
+	private boolean dispatch(final Request r) throws IOException {
+		if (null == r.getType())
+			return false;
+		switch (r.getType()) {
+		case LR:
+		case DR:
+		case STATS:
+			break;
+		case R:
+		case S:
+			if (null != config.getChunkStore())
+				return false; //stored files are read and written by blocking handlers
+			if (Compression.levelOf(negotiated) > 0)
+				return false; //so are compressed bodies
+			break;
+		default:
+			return false;
+		}
+		req = r;
+		requestStart = System.nanoTime();
+		firstByte = bodyBytes = 0;
+		failed = false;
+		if (! admission.tryEnter(r.getType())) {
+			Util.serBashln("Too many " + Admission.laneOf(r.getType()) +
+					" requests, turning away " + remoteHost);
+			queue(admission.busyResponse());
+			failed = true;
+			record();
+			state = State.CLOSING;
+			return true;
+		}
+		admitted = r.getType();
+		state = State.WORKING;
+		reactor.getWorkers().execute(new Runnable() {
+			@Override
+			public void run() {
+				Response resp;
+				try {
+					resp = prepare(r);
+				} catch (RuntimeException e) {
+					resp = errorResponse("Internal error: " + e.getMessage());
+				}
+				final Response result = resp;
+				reactor.execute(new Runnable() {
+					@Override
+					public void run() {
+						resume(result);
+					}
+				});
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Blocking part of a request, runs on a worker thread.
+	 * @param r
+	 * @return the response to send
+	 */
+	private Response prepare(Request r) {
+		String dirError = checkLocalDir();
+		switch (r.getType()) {
+		case LR:
+			okMsg = "Received a request from " + remoteHost + " to list the working dir ... ";
+			if (null != dirError)
+				return errorResponse(dirError);
+			Response list = new Response(MsgType.LR);
+			try {
+				FileHandler.list(list, r, config);
+			} catch (IllegalArgumentException e) {
+				Util.serBashln(okMsg + "ERROR");
+				return errorResponse(e.getMessage());
+			}
+			Util.serBashln(okMsg + "OK");
+			return list;
+		case DR:
+			okMsg = "Received a request from " + remoteHost + " to delete '" + r.getMessage() + "' ... ";
+			if (null != dirError)
+				return errorResponse(dirError);
+			File victim = FileTree.resolve(localDir, r.getMessage());
+			boolean gone = null != victim && ! FileHandler.isHidden(r.getMessage())
+					&& victim.exists() && victim.canWrite() && victim.delete();
+			if (! FileHandler.isHidden(r.getMessage()) && null != config.getChunkStore()
+					&& config.getChunkStore().delete(r.getMessage()))
+				gone = true;
+			if (gone) {
+				config.getChecksumCache().remove(r.getMessage());
+				config.getDirectoryIndex().changed(r.getMessage());
+				Response deleted = new Response(MsgType.DR);
+				deleted.setMessage("File '" + r.getMessage() + "' deleted.");
+				Util.serBashln(okMsg + "OK");
+				return deleted;
+			}
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("Can not delete file '" + r.getMessage() + "'");
+		case STATS:
+			okMsg = "Received a request from " + remoteHost + " for the server statistics ... ";
+			Response stats = new Response(MsgType.STATS);
+			stats.setMessage(config.getMetrics().getReport());
+			Util.serBashln(okMsg + "OK");
+			return stats;
+		case R:
+			okMsg = "Received a request from " + remoteHost + " to send '" + r.getMessage() + "' ... ";
+			return dirError != null ? errorResponse(dirError) : prepareSend(r);
+		default:
+			okMsg = "Received a request from " + remoteHost + " to receive '" + r.getMessage() + "' ... ";
+			return dirError != null ? errorResponse(dirError) : prepareReceive(r);
+		}
+	}
+
+	private Response prepareSend(Request r) {
+		String name = r.getMessage();
+		File f = new File(localDir, name);
+		if (FileHandler.isHidden(name) || ! f.exists() || ! f.canRead()) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("File '" + name + "' not found");
+		}
+		long size = f.length();
+		long offset = r.getOffset();
+		if (offset < 0 || offset > size) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("Invalid offset " + offset + " for '" + name + "' (" + size + " B)");
+		}
+		long length = r.getLength() <= 0 ? size - offset : Math.min(r.getLength(), size - offset);
+		Response resp = new Response(MsgType.R);
+		resp.setMessage("File '" + name + "' exists, ready for transfer");
+		resp.setFileSize(size);
+		resp.setOffset(offset);
+		resp.setLength(length);
+		modified = f.lastModified();
+		//a hot file comes with its checksum
+		FileChannel cached = null == config.getContentCache() ? null : config.getContentCache().open(f);
+		//a part of the file is always announced with the checksum of the whole file
+		if (trailers && ! r.isRanged()) {
+			//unless known, the checksum is computed while sending and follows the body
+			resp.setChecksum(config.getChecksumCache().cached(f));
+			if (null == resp.getChecksum()) {
+				try {
+					md = MessageDigest.getInstance("MD5");
+				} catch (NoSuchAlgorithmException e) {
+					Util.serBashln(okMsg + "ERROR");
+					return errorResponse("Error creating MessageDigest with MD5 algorithm");
+				}
+			}
+		} else
+			resp.setChecksum(config.getChecksumCache().checksum(f));
+		if (null == md && (null == resp.getChecksum() || resp.getChecksum().isEmpty())) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("Error creating checksum for '" + name + "'");
+		}
+		try {
+			file = null != cached ? cached : new FileInputStream(f).getChannel();
+		} catch (IOException e) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("Error opening file '" + name + "' for transfer");
+		}
+		if (null == md)
+			Log.info("File checksum on this side: {}", resp.getChecksum());
+		Util.serBashln(okMsg + "OK");
+		target = f;
+		bodyPos = offset;
+		bodyEnd = offset + length;
+		return resp;
+	}
+
+	private Response prepareReceive(Request r) {
+		File f = new File(localDir, r.getMessage());
+		if (f.exists() || FileHandler.isHidden(r.getMessage())) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("File '" + r.getMessage() + "' already exists");
+		}
+		if (r.isRanged())
+			return preparePart(r, f);
+		if (null == r.getChecksum() && ! trailers) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("Missing checksum for '" + r.getMessage() + "'");
+		}
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			return errorResponse("Error creating MessageDigest with MD5 algorithm");
+		}
+		//after what an interrupted upload left
+		long size = r.getFileSize();
+		File part;
+		target = f;
+		try {
+			part = config.getUploadStaging().begin(r.getMessage(), size);
+		} catch (IOException e) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse(e.getMessage());
+		}
+		staging = part;
+		long offset = Math.min(part.length(), size);
+		try {
+			file = new RandomAccessFile(part, "rw").getChannel();
+			file.truncate(offset);
+			if (offset > 0)
+				Util.updateDigest(file, 0, offset, md);
+		} catch (IOException e) {
+			closeFile();
+			part.delete();
+			return errorResponse("Error opening out stream on '" + r.getMessage() + "'");
+		}
+		bodyPos = offset;
+		bodyEnd = size;
+		expected = r.getChecksum();
+		Response resp = new Response(MsgType.S);
+		resp.setFileSize(size);
+		resp.setOffset(offset);
+		resp.setMessage(offset > 0 ? "Can resume file '" + r.getMessage() + "' from byte " + offset
+				: "Can accept file '" + r.getMessage() + "'");
+		return resp;
+	}
+
+	/**
+	 * Gets ready for one part of a parallel upload, written at its place in
+	 * the file shared by the parts.
+	 * @param r
+	 * @param f
+	 * @return
+	 */
+	private Response preparePart(Request r, File f) {
+		String name = r.getMessage();
+		long size = r.getFileSize();
+		long offset = r.getOffset();
+		long length = r.getLength();
+		if (null == r.getChecksum() || offset < 0 || length <= 0 || offset + length > size) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse("Invalid part of '" + name + "': " + length + " bytes from byte " + offset);
+		}
+		try {
+			upload = config.getUploadSessions().join(name, size, r.getChecksum());
+		} catch (IOException e) {
+			Util.serBashln(okMsg + "ERROR");
+			return errorResponse(e.getMessage());
+		}
+		target = f;
+		file = upload.getChannel();
+		bodyPos = offset;
+		bodyEnd = offset + length;
+		expected = r.getChecksum();
+		Response resp = new Response(MsgType.S);
+		resp.setFileSize(size);
+		resp.setOffset(offset);
+		resp.setLength(length);
+		resp.setMessage("Can accept " + length + " bytes of '" + name + "' from byte " + offset);
+		return resp;
+	}
+
+	/**
+	 * Back on the reactor thread with the outcome of {@link #prepare(Request)}.
+	 * @param resp
+	 */
+	private void resume(Response resp) {
+		if (! key.isValid()) { //closed while the worker was busy, a staged upload is kept
+			leaveUpload();
+			leaveStaging();
+			closeFile();
+			return;
+		}
+		try {
+			queue(resp);
+			firstByte = System.nanoTime(); //queued, written by the pump below
+			if (Codes.ERR == resp.getCode()) {
+				Util.serBashln(resp.getMessage());
+				failed = true;
+				endRequest();
+			} else if (MsgType.R == req.getType()) {
+				if (req.isRanged())
+					Log.info("Starting sending {} bytes from byte {} to {}", bodyEnd - bodyPos,
+							bodyPos, remoteHost);
+				else
+					Log.info("Starting sending data to {}", remoteHost);
+				start = System.currentTimeMillis();
+				bodyBuf = BufferPool.direct(BODY_BUFFER);
+				bodyBuf.flip();
+				state = State.SEND_BODY;
+			} else if (MsgType.S == req.getType()) {
+				bodyBuf = BufferPool.direct(BODY_BUFFER);
+				state = State.RECEIVE_BODY;
+				receiveBody(); //bytes may be waiting already
+			} else
+				endRequest();
+			pump();
+			updateInterest();
+		} catch (IOException e) {
+			Util.serBashln("Connection to " + remoteHost + " aborted: " + e.getMessage());
+			close();
+		}
+	}
+
+	//----BODIES----------------------------------------------------------//
+	private void sendBody() throws IOException {
+		if (rawDownload) {
+			while (bodyPos < bodyEnd) {
+				long n = file.transferTo(bodyPos, bodyEnd - bodyPos, sc);
+				if (n <= 0) {
+					if (bodyPos >= file.size())
+						throw new EOFException("File '" + target.getName() + "' shrank during transfer");
+					return; //socket buffer full
+				}
+				if (null != md)
+					hashSent(bodyPos, n);
+				bodyPos += n;
+				bodyBytes += n;
+			}
+		} else {
+			while (true) {
+				if (bodyBuf.hasRemaining()) {
+					sc.write(bodyBuf);
+					if (bodyBuf.hasRemaining())
+						return; //socket buffer full
+				}
+				if (bodyPos >= bodyEnd)
+					break;
+				fillDataFrames();
+			}
+		}
+		Log.info("Transfer of '{}' towards {} completed in {} miliseconds.", target.getName(),
+				remoteHost, System.currentTimeMillis() - start);
+		closeFile();
+		releaseBody();
+		if (null != md) {
+			String checksum = Util.calcMD5(md.digest());
+			queue(Frame.TRAILER, FrameCodec.encodeTrailer(checksum));
+			Log.info("File checksum on this side: {}", checksum);
+			if (modified == target.lastModified())
+				config.getChecksumCache().put(target, checksum);
+		}
+		endRequest();
+	}
+
+	/**
+	 * Hashes bytes already pushed by {@link FileChannel#transferTo}, reading
+	 * them back while they are still in the OS cache.
+	 */
+	private void hashSent(long from, long count) throws IOException {
+		bodyBuf.clear();
+		for (long end = from + count; from < end; ) {
+			bodyBuf.limit((int) Math.min(bodyBuf.capacity(), end - from));
+			int n = file.read(bodyBuf, from);
+			if (n < 0)
+				throw new EOFException("File '" + target.getName() + "' shrank during transfer");
+			bodyBuf.flip();
+			md.update(bodyBuf);
+			bodyBuf.clear();
+			from += n;
+		}
+		bodyBuf.limit(0);
+	}
+
+	/**
+	 * Packs as many DATA frames as fit into the body buffer.
+	 */
+	private void fillDataFrames() throws IOException {
+		bodyBuf.clear();
+		while (bodyPos < bodyEnd && bodyBuf.remaining() > Frame.HEADER_LEN) {
+			int chunk = (int) Math.min(Math.min(dataChunk, bodyEnd - bodyPos),
+					bodyBuf.remaining() - Frame.HEADER_LEN);
+			bodyBuf.put(Frame.DATA).putInt(chunk);
+			int end = bodyBuf.position() + chunk;
+			bodyBuf.limit(end);
+			while (bodyBuf.hasRemaining()) {
+				if (file.read(bodyBuf, bodyPos + chunk - (end - bodyBuf.position())) < 0)
+					throw new EOFException("File '" + target.getName() + "' shrank during transfer");
+			}
+			if (null != md) {
+				bodyBuf.position(end - chunk);
+				md.update(bodyBuf);
+			}
+			bodyBuf.limit(bodyBuf.capacity());
+			bodyPos += chunk;
+			bodyBytes += chunk;
+		}
+		bodyBuf.flip();
+	}
+
+	private void receiveBody() throws IOException {
+		if (in.position() > 0) { //sent together with the request
+			in.flip();
+			consumeBody(in);
+			bodyBuf.put(in); //at most a partial frame header
+			in.clear();
+		}
+		//a bounded number of reads, so one fast client does not starve the others
+		for (int i = 0; i < 16 && ! bodyDone(); i++) {
+			int n = sc.read(bodyBuf);
+			if (n < 0)
+				throw new EOFException("Client closed the connection after " + bodyPos +
+						" of " + bodyEnd + " bytes");
+			bodyBuf.flip();
+			consumeBody(bodyBuf);
+			bodyBuf.compact();
+			if (n == 0)
+				break;
+		}
+		if (bodyDone())
+			finishUpload();
+	}
+
+	/**
+	 * @return true once the body, and its trailer if any, have been received
+	 */
+	private boolean bodyDone() {
+		return bodyPos >= bodyEnd && null != expected;
+	}
+
+	/**
+	 * Writes the file bytes found in <code>b</code>, parsing DATA frames
+	 * unless raw uploads were negotiated, then the trailer if one is expected.
+	 */
+	private void consumeBody(ByteBuffer b) throws IOException {
+		while (b.hasRemaining() && ! bodyDone()) {
+			if (bodyPos >= bodyEnd) {
+				consumeTrailer(b);
+				return;
+			}
+			if (! rawUpload && 0 == frameLeft) {
+				if (b.remaining() < Frame.HEADER_LEN)
+					return;
+				byte type = b.get();
+				int len = b.getInt();
+				if (Frame.RESPONSE == type)
+					throw new IOException("Transfer of '" + target.getName() + "' aborted by client");
+				if (Frame.DATA != type || len < 0 || len > bodyEnd - bodyPos)
+					throw new ProtocolException("Invalid DATA frame");
+				frameLeft = len;
+				continue;
+			}
+			int take = (int) Math.min(b.remaining(), rawUpload ? bodyEnd - bodyPos : frameLeft);
+			int start = b.position();
+			int limit = b.limit();
+			b.limit(start + take);
+			if (null != md) {
+				md.update(b);
+				b.position(start);
+			}
+			long pos = bodyPos;
+			while (b.hasRemaining())
+				pos += file.write(b, pos);
+			b.limit(limit);
+			bodyPos += take;
+			bodyBytes += take;
+			if (! rawUpload)
+				frameLeft -= take;
+		}
+	}
+
+	/**
+	 * Takes the trailer frame from <code>b</code>, once it is complete.
+	 */
+	private void consumeTrailer(ByteBuffer b) throws IOException {
+		if (b.remaining() < Frame.HEADER_LEN)
+			return;
+		byte type = b.get(b.position());
+		int len = b.getInt(b.position() + 1);
+		if (Frame.RESPONSE == type)
+			throw new IOException("Transfer of '" + target.getName() + "' aborted by client");
+		if (Frame.TRAILER != type || len < 0 || len > BODY_BUFFER - Frame.HEADER_LEN)
+			throw new ProtocolException("Invalid TRAILER frame");
+		if (b.remaining() < Frame.HEADER_LEN + len)
+			return;
+		b.position(b.position() + Frame.HEADER_LEN);
+		byte[] payload = new byte[len];
+		b.get(payload);
+		expected = FrameCodec.decodeTrailer(payload);
+	}
+
+	private void finishUpload() throws IOException {
+		if (null != upload) {
+			finishPart();
+			return;
+		}
+		closeFile();
+		releaseBody();
+		String resultChecksum = Util.calcMD5(md.digest());
+		if (! resultChecksum.contentEquals(expected)) {
+			String errorMsg = "Checksum failure: " + expected +
+					" (source) vs " + resultChecksum + " (received)";
+			Util.serBashln("File '" + target.getName() + "' will not be saved.");
+			staging.delete();
+			queue(errorResponse(errorMsg));
+			failed = true;
+		} else if (target.exists()) { //created meanwhile, renaming would replace it
+			Util.serBashln("File '" + target.getName() + "' will not be saved.");
+			staging.delete();
+			queue(errorResponse("File '" + target.getName() + "' already exists"));
+			failed = true;
+		} else if (! staging.renameTo(target)) {
+			Util.serBashln(okMsg + "ERROR");
+			staging.delete();
+			queue(errorResponse("Error saving file '" + target.getName() + "'"));
+			failed = true;
+		} else {
+			config.getChecksumCache().put(target, resultChecksum);
+			config.getDirectoryIndex().changed(target.getName());
+			Util.serBashln(okMsg + "OK");
+			Response ack = new Response(MsgType.S);
+			ack.setMessage("File '" + target.getName() + "' received");
+			queue(ack);
+		}
+		endRequest();
+	}
+
+	/**
+	 * A part of a parallel upload has been written. The part completing the
+	 * file hashes it on a worker, the reactor thread must not block.
+	 * @throws IOException
+	 */
+	private void finishPart() throws IOException {
+		final UploadSessions.Session part = upload;
+		final File f = target;
+		long length = bodyEnd - req.getOffset();
+		upload = null;
+		file = null;
+		releaseBody();
+		if (! config.getUploadSessions().leave(part, req.getOffset(), length, true)) {
+			Util.serBashln(okMsg + "OK");
+			Response ack = new Response(MsgType.S);
+			ack.setMessage(length + " bytes of '" + f.getName() + "' received");
+			queue(ack);
+			endRequest();
+			return;
+		}
+		state = State.WORKING;
+		reactor.getWorkers().execute(new Runnable() {
+			@Override
+			public void run() {
+				String error = config.getUploadSessions().finish(part, f, config.getChecksumCache());
+				Response resp;
+				if (null == error) {
+					config.getDirectoryIndex().changed(f.getName());
+					Util.serBashln(okMsg + "OK");
+					resp = new Response(MsgType.S);
+					resp.setMessage("File '" + f.getName() + "' received");
+				} else {
+					Util.serBashln(okMsg + "ERROR");
+					resp = errorResponse(error);
+				}
+				final Response result = resp;
+				reactor.execute(new Runnable() {
+					@Override
+					public void run() {
+						resumeFinished(result);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Back on the reactor thread once a parallel upload has been verified.
+	 * @param resp
+	 */
+	private void resumeFinished(Response resp) {
+		if (! key.isValid())
+			return;
+		try {
+			if (Codes.ERR == resp.getCode()) {
+				Util.serBashln(resp.getMessage());
+				failed = true;
+			}
+			queue(resp);
+			endRequest();
+			pump();
+			updateInterest();
+		} catch (IOException e) {
+			Util.serBashln("Connection to " + remoteHost + " aborted: " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Gives up the part of a parallel upload being received, if any.
+	 */
+	private void leaveUpload() {
+		if (null != upload) {
+			config.getUploadSessions().leave(upload, bodyPos, 0, false);
+			upload = null;
+			file = null; //shared with the other parts
+		}
+	}
+
+	/**
+	 * Ends the whole upload being received, if any, its staging file is
+	 * kept to be resumed or has been renamed or deleted already.
+	 */
+	private void leaveStaging() {
+		if (null != staging) {
+			config.getUploadStaging().end(target.getName());
+			staging = null;
+		}
+	}
+
+	/**
+	 * The exchange is over: closes the connection, or in a session waits
+	 * for the next request, which may already be buffered.
+	 * @throws IOException
+	 */
+	private void endRequest() throws IOException {
+		record();
+		leaveStaging();
+		if (null != admitted) {
+			admission.leave(admitted);
+			admitted = null;
+		}
+		if (! session) {
+			state = State.CLOSING;
+			return;
+		}
+		req = null;
+		okMsg = null;
+		target = null;
+		md = null;
+		expected = null;
+		frameLeft = 0;
+		bodyPos = bodyEnd = 0;
+		lastActive = System.currentTimeMillis();
+		state = State.REQUEST;
+		if (in.position() > 0)
+			parse();
+	}
+
+	//----MISC------------------------------------------------------------//
+	/**
+	 * Counts the current request in the {@link Metrics}, once.
+	 */
+	private void record() {
+		if (0 == requestStart)
+			return;
+		config.getMetrics().operation(req.getType()).record(requestStart, firstByte, System.nanoTime(),
+				MsgType.S == req.getType() ? bodyBytes : 0, MsgType.R == req.getType() ? bodyBytes : 0, failed);
+		requestStart = 0;
+	}
+
+	/**
+	 * Leaves the active connections of the {@link Metrics}, once: the connection
+	 * is closed, or given to a {@link FileHandler} that counts it from now on.
+	 */
+	void stopCounting() {
+		if (counted) {
+			counted = false;
+			config.getMetrics().connectionClosed();
+		}
+	}
+
+	private static Response errorResponse(String msg) {
+		Response resp = new Response(MsgType.ERR);
+		resp.setCode(Codes.ERR);
+		resp.setMessage(msg);
+		return resp;
+	}
+
+	private String checkLocalDir() {
+		if (null == localDir || ! localDir.exists() || ! localDir.isDirectory())
+			return fatalError + "Local dir not found.";
+		if (! localDir.canRead() || ! localDir.canWrite())
+			return fatalError + "Local dir not accessible to read/write.";
+		return null;
+	}
+
+	private void releaseBody() {
+		BufferPool.release(bodyBuf);
+		bodyBuf = null;
+	}
+
+	private void closeFile() {
+		if (null != file) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				Util.serBashln("Unable to close file " + target.getName());
+			}
+			file = null;
+		}
+	}
+
+	void close() {
+		if (null != req) { //broken off
+			failed = true;
+			record();
+		}
+		stopCounting();
+		leaveUpload();
+		if (State.RECEIVE_BODY == state && null != staging) {
+			closeFile();
+			Util.serBashln("Keeping " + staging.length() + " bytes of '" + target.getName() +
+					"' to resume later.");
+		}
+		leaveStaging();
+		closeFile();
+		releaseBody();
+		if (null != admitted) {
+			admission.leave(admitted);
+			admitted = null;
+		}
+		if (null != key)
+			key.cancel();
+		try {
+			sc.close();
+		} catch (IOException e) {
+			Util.serBashln("Error closing connection to " + remoteHost);
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package red2.f1.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import red2.f1.proto.ChunkSizer;
+import red2.f1.util.Log;
+import red2.f1.util.Util;
+
+/**
+ * Server wide settings, filled from the command line options, and the
+ * services shared by every connection.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ServerConfig {
+	/** Options understood by {@link #setOption(String)}, for the usage message. */
+	public static final String USAGE = "[-engine=threads|reactor] [-reactors=N] [-threads=platform|virtual]" +
+			" [-workers=N] [-queue=N] [-transfers=N] [-retryAfter=ms] [-idleTimeout=ms]" +
+			" [-muxStreams=N] [-checksums=N] [-store=files|chunks] [-compress=0-9]" +
+			" [-rescan=ms] [-maxChunk=bytes] [-socketBuffer=bytes] [-cache=bytes]" +
+			" [-log=error|warn|info|debug] [-resolveHosts=true|false] [-jmx=true|false]";
+
+	private File localDir;
+	private boolean reactorEngine = false;
+	private int reactorCount = Runtime.getRuntime().availableProcessors();
+	private boolean virtualThreads = false;
+	/** Connections served at the same time, 0 for the default of the thread kind. */
+	private int workers = 0;
+	/** Connections waiting for a worker before new ones are turned away. */
+	private int queue = 256;
+	/** Requests of the transfer lane served at the same time, 0 for 3/4 of the workers. */
+	private int transfers = 0;
+	/** Delay suggested to the clients turned away. */
+	private long retryAfter = 1000;
+	/** Time a session may wait for its next request, 0 to refuse sessions. */
+	private int idleTimeout = 15000;
+	/** Exchanges served at the same time on a multiplexed connection, 0 to refuse multiplexing. */
+	private int muxStreams = 8;
+	/** Checksums of served files kept in memory. */
+	private int checksums = 4096;
+	/** Highest deflate level agreed on for the bodies, 0 to refuse compression. */
+	private int compressLevel = 6;
+	/** Time between two full rescans of the served folder. */
+	private long rescan = 60000;
+	/** Largest DATA frame agreed on, each frame buffer of a connection may grow to it. */
+	private int maxChunk = 1024 * 1024;
+	/** Size of the socket buffers, 0 to leave them to the OS. */
+	private int socketBuffer = 0;
+	/** Bytes of hot file contents kept in memory, 0 for none. */
+	private long cacheBytes = 0;
+	/** Look up the host names of the clients for the logs, in the background. */
+	private boolean resolveHosts = true;
+	/** Show the {@link Metrics} through JMX. */
+	private boolean jmx = true;
+	/** Keep the uploads as deduplicated chunks instead of plain files. */
+	private boolean chunkStore = false;
+	private Admission admission = null;
+	private ChecksumCache checksumCache = null;
+	private ContentCache contentCache = null;
+	private UploadSessions uploadSessions = null;
+	private UploadStaging uploadStaging = null;
+	private ChunkStore store = null;
+	private DirectoryIndex directoryIndex = null;
+	private final Metrics metrics = new Metrics();
+	private ExecutorService executor = null;
+
+	public ServerConfig(File localDir) {
+		this.localDir = localDir;
+	}
+
+	/**
+	 * Parses an option of the form <code>-name=value</code>.
+	 * @param option
+	 * @return false if the option is unknown or its value invalid
+	 */
+	public boolean setOption(String option) {
+		String[] opt = option.split("=", 2);
+		if (opt.length != 2)
+			return false;
+		String name = opt[0];
+		String value = opt[1];
+		try {
+			if (name.contentEquals("-engine")
+					&& (value.contentEquals("threads") || value.contentEquals("reactor"))) {
+				reactorEngine = value.contentEquals("reactor");
+				return true;
+			}
+			if (name.contentEquals("-threads")
+					&& (value.contentEquals("platform") || value.contentEquals("virtual"))) {
+				virtualThreads = value.contentEquals("virtual");
+				return true;
+			}
+			if (name.contentEquals("-reactors")) {
+				reactorCount = Math.max(1, Integer.parseInt(value));
+				return true;
+			}
+			if (name.contentEquals("-workers")) {
+				workers = Math.max(1, Integer.parseInt(value));
+				return true;
+			}
+			if (name.contentEquals("-queue")) {
+				queue = Math.max(0, Integer.parseInt(value));
+				return true;
+			}
+			if (name.contentEquals("-transfers")) {
+				transfers = Math.max(1, Integer.parseInt(value));
+				return true;
+			}
+			if (name.contentEquals("-retryAfter")) {
+				retryAfter = Math.max(0, Long.parseLong(value));
+				return true;
+			}
+			if (name.contentEquals("-idleTimeout")) {
+				idleTimeout = Math.max(0, Integer.parseInt(value));
+				return true;
+			}
+			if (name.contentEquals("-muxStreams")) {
+				muxStreams = Math.max(0, Integer.parseInt(value));
+				return true;
+			}
+			if (name.contentEquals("-store")
+					&& (value.contentEquals("files") || value.contentEquals("chunks"))) {
+				chunkStore = value.contentEquals("chunks");
+				return true;
+			}
+			if (name.contentEquals("-rescan")) {
+				rescan = Math.max(1000, Long.parseLong(value));
+				return true;
+			}
+			if (name.contentEquals("-compress")) {
+				compressLevel = Math.max(0, Math.min(9, Integer.parseInt(value)));
+				return true;
+			}
+			if (name.contentEquals("-maxChunk")) {
+				maxChunk = Math.max(Util.MAX_DATA, Math.min(ChunkSizer.MAX, Integer.parseInt(value)));
+				return true;
+			}
+			if (name.contentEquals("-socketBuffer")) {
+				socketBuffer = Math.max(0, Integer.parseInt(value));
+				return true;
+			}
+			if (name.contentEquals("-cache")) {
+				cacheBytes = Math.max(0, Long.parseLong(value));
+				return true;
+			}
+			if (name.contentEquals("-log")) {
+				for (Log.Level level : Log.Level.values()) {
+					if (level.name().equalsIgnoreCase(value)) {
+						Log.setLevel(level);
+						return true;
+					}
+				}
+				return false;
+			}
+			if (name.contentEquals("-resolveHosts")
+					&& (value.contentEquals("true") || value.contentEquals("false"))) {
+				resolveHosts = Boolean.parseBoolean(value);
+				return true;
+			}
+			if (name.contentEquals("-jmx")
+					&& (value.contentEquals("true") || value.contentEquals("false"))) {
+				jmx = Boolean.parseBoolean(value);
+				return true;
+			}
+			if (name.contentEquals("-checksums")) {
+				checksums = Math.max(1, Integer.parseInt(value));
+				return true;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return false;
+	}
+
+	public File getLocalDir() {
+		return localDir;
+	}
+	public boolean isReactorEngine() {
+		return reactorEngine;
+	}
+	public int getReactorCount() {
+		return reactorCount;
+	}
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	/**
+	 * @return the number of connections served at the same time; virtual threads
+	 * are cheap, so their default is much higher
+	 */
+	public int getWorkers() {
+		if (workers > 0)
+			return workers;
+		return virtualThreads ? 16384 : 256;
+	}
+	public int getQueue() {
+		return queue;
+	}
+	public int getTransfers() {
+		return transfers > 0 ? transfers : Math.max(1, getWorkers() * 3 / 4);
+	}
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+	public int getMuxStreams() {
+		return muxStreams;
+	}
+	public int getCompressLevel() {
+		return compressLevel;
+	}
+	/**
+	 * @return the largest DATA frame agreed on, no more than half a fixed socket buffer
+	 */
+	public int getMaxChunk() {
+		return Math.min(maxChunk, ChunkSizer.offer(socketBuffer));
+	}
+	public boolean isResolvingHosts() {
+		return resolveHosts;
+	}
+
+	public int getSocketBuffer() {
+		return socketBuffer;
+	}
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	/**
+	 * @param executor runs the {@link FileHandler}s, set before serving any connection
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the executor of the handlers, of the connections and of the
+	 * streams of the multiplexed ones
+	 */
+	public synchronized ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return the counters of the server, updated by every handler
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public synchronized Admission getAdmission() {
+		if (null == admission)
+			admission = new Admission(getWorkers() + queue, getTransfers(), getWorkers(), retryAfter);
+		return admission;
+	}
+
+	public synchronized ChecksumCache getChecksumCache() {
+		if (null == checksumCache)
+			checksumCache = new ChecksumCache(localDir, checksums);
+		return checksumCache;
+	}
+
+	/**
+	 * @return the contents of the hot files, null if none are kept
+	 */
+	public synchronized ContentCache getContentCache() {
+		if (null == contentCache && cacheBytes > 0)
+			contentCache = new ContentCache(localDir, cacheBytes, getChecksumCache());
+		return contentCache;
+	}
+
+	public synchronized UploadSessions getUploadSessions() {
+		if (null == uploadSessions)
+			uploadSessions = new UploadSessions(localDir);
+		return uploadSessions;
+	}
+
+	/**
+	 * @return the staging files of the uploads, listed from the first call
+	 */
+	public synchronized UploadStaging getUploadStaging() {
+		if (null == uploadStaging)
+			uploadStaging = new UploadStaging(localDir);
+		return uploadStaging;
+	}
+
+	/**
+	 * @return the listing of the served folder, scanned and watched from the first call
+	 */
+	public synchronized DirectoryIndex getDirectoryIndex() {
+		if (null == directoryIndex) {
+			directoryIndex = new DirectoryIndex(localDir, store, getContentCache(), rescan);
+			directoryIndex.start();
+		}
+		return directoryIndex;
+	}
+
+	/**
+	 * Opens the chunk store, if enabled, before serving any connection.
+	 * @throws IOException if the store can not be opened
+	 */
+	public synchronized void openChunkStore() throws IOException {
+		if (chunkStore && null == store)
+			store = new ChunkStore(localDir);
+	}
+
+	/**
+	 * @return the deduplicating store, null if the uploads are kept as plain files
+	 */
+	public synchronized ChunkStore getChunkStore() {
+		return store;
+	}
+}
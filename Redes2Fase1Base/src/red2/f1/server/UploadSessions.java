@@ -0,0 +1,240 @@
+package red2.f1.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import red2.f1.util.Log;
+import red2.f1.util.Util;
+
+/**
+ * Parallel uploads in progress. A client may send the parts of a file over
+ * several connections, each part is written at its place in a staging file
+ * of the final size. The parts arrive in any order; once the whole file is
+ * covered, the last part hashes it and, if the checksum matches, renames it
+ * to its final name.
+ * <p>
+ * The received ranges are only kept in memory, a parallel upload interrupted
+ * by a restart starts over. The staging file is open only while parts are
+ * being written; an upload no part joined for {@link #IDLE_TIMEOUT} ms is
+ * given up and its staging file deleted.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class UploadSessions {
+	/** Time an upload without parts being written is kept. */
+	public static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+	/** Time between two looks for idle uploads. */
+	private static final long SWEEP_INTERVAL = 60 * 1000;
+
+	/**
+	 * The parts received so far of one file.
+	 */
+	public static class Session {
+		private final String name;
+		private final long size;
+		private final String checksum;
+		private final File staging;
+		/** Open while there are writers, null otherwise. */
+		private RandomAccessFile raf = null;
+		/** Received ranges, start to end, merged when they touch. */
+		private final TreeMap<Long, Long> received = new TreeMap<Long, Long>();
+		/** Parts being written right now. */
+		private int writers = 0;
+		/** The whole file arrived and is being verified. */
+		private boolean finishing = false;
+		/** When the last part joined or left. */
+		private long lastActive = System.currentTimeMillis();
+
+		private Session(File dir, String name, long size, String checksum) throws IOException {
+			this.name = name;
+			this.size = size;
+			this.checksum = checksum;
+			this.staging = UploadStaging.rangesFileFor(dir, name, size);
+			RandomAccessFile f = new RandomAccessFile(staging, "rw");
+			try {
+				//whatever an earlier run left, its ranges are not known anymore
+				f.setLength(0);
+				f.setLength(size);
+			} finally {
+				f.close();
+			}
+		}
+
+		/**
+		 * @return the staging file, shared by the parts, which write at their own position
+		 */
+		public FileChannel getChannel() {
+			return raf.getChannel();
+		}
+
+		private void add(long from, long to) {
+			Map.Entry<Long, Long> before = received.floorEntry(from);
+			if (null != before && before.getValue() >= from) {
+				from = before.getKey();
+				to = Math.max(to, before.getValue());
+			}
+			Map.Entry<Long, Long> next;
+			while (null != (next = received.ceilingEntry(from)) && next.getKey() <= to) {
+				to = Math.max(to, next.getValue());
+				received.remove(next.getKey());
+			}
+			received.put(from, to);
+		}
+
+		private boolean isComplete() {
+			Long end = received.get(0L);
+			return 0 == size || (null != end && end >= size);
+		}
+
+		private void open() throws IOException {
+			if (null == raf)
+				raf = new RandomAccessFile(staging, "rw");
+		}
+
+		private void close() {
+			if (null == raf)
+				return;
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Util.serBashln("Unable to close staging file of " + name);
+				Log.error(e);
+			}
+			raf = null;
+		}
+
+		private void discard() {
+			close();
+			staging.delete();
+		}
+	}
+
+	private final File dir;
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+
+	/**
+	 * @param dir the served folder
+	 */
+	public UploadSessions(File dir) {
+		this.dir = dir;
+		Thread sweeper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(SWEEP_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+					expire(System.currentTimeMillis());
+				}
+			}
+		}, "upload-sweeper");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * Registers the writer of a part, starting the session of the file if
+	 * needed. A session of another version of the file is dropped, unless
+	 * parts of it are still being written.
+	 * @param name
+	 * @param size of the whole file
+	 * @param checksum of the whole file
+	 * @return the session, to be given back with {@link #leave}
+	 * @throws IOException with the message for the client
+	 */
+	public synchronized Session join(String name, long size, String checksum) throws IOException {
+		Session s = sessions.get(name);
+		if (null != s && (s.size != size || ! s.checksum.equals(checksum) || s.finishing)) {
+			if (s.writers > 0 || s.finishing)
+				throw new IOException("Another upload of '" + name + "' is in progress");
+			s.discard();
+			sessions.remove(name);
+			s = null;
+		}
+		try {
+			if (null == s) {
+				s = new Session(dir, name, size, checksum);
+				sessions.put(name, s);
+			}
+			s.open();
+		} catch (IOException e) {
+			throw new IOException("Error opening out stream on '" + name + "'");
+		}
+		s.writers++;
+		s.lastActive = System.currentTimeMillis();
+		return s;
+	}
+
+	/**
+	 * Unregisters the writer of a part.
+	 * @param s
+	 * @param offset
+	 * @param length
+	 * @param received true if the whole part has been written
+	 * @return true if the file is now complete, the caller must then {@link #finish} it
+	 */
+	public synchronized boolean leave(Session s, long offset, long length, boolean received) {
+		s.writers--;
+		s.lastActive = System.currentTimeMillis();
+		if (received && length > 0)
+			s.add(offset, offset + length);
+		if (0 == s.writers)
+			s.close(); //not held open while the client is away
+		if (s.writers > 0 || s.finishing || ! s.isComplete())
+			return false;
+		s.finishing = true;
+		return true;
+	}
+
+	/**
+	 * Verifies a complete file and moves it to its final name. The session
+	 * ends either way.
+	 * @param s
+	 * @param target
+	 * @param cache told the checksum of the saved file
+	 * @return null if the file has been saved, the error message otherwise
+	 */
+	public String finish(Session s, File target, ChecksumCache cache) {
+		String error = null;
+		String resultChecksum = Util.calcMD5(s.staging, Util.MAX_DATA * Util.MAX_DATA);
+		if (! s.checksum.contentEquals(resultChecksum)) {
+			error = "Checksum failure: " + s.checksum + " (source) vs " + resultChecksum + " (received)";
+			Util.serBashln("File '" + s.name + "' will not be saved.");
+			s.staging.delete();
+		} else if (target.exists()) { //created since the first part arrived, renaming would replace it
+			error = "File '" + s.name + "' already exists";
+			Util.serBashln("File '" + s.name + "' will not be saved.");
+			s.staging.delete();
+		} else if (! s.staging.renameTo(target)) {
+			error = "Error saving file '" + s.name + "'";
+			s.staging.delete();
+		} else
+			cache.put(target, resultChecksum);
+		synchronized (this) {
+			sessions.remove(s.name);
+		}
+		return error;
+	}
+
+	/**
+	 * Gives up the uploads no part joined for {@link #IDLE_TIMEOUT} ms.
+	 * @param now
+	 */
+	private synchronized void expire(long now) {
+		for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+			Session s = it.next();
+			if (0 == s.writers && ! s.finishing && now - s.lastActive >= IDLE_TIMEOUT) {
+				Util.serBashln("Giving up the idle upload of '" + s.name + "'");
+				s.discard();
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package red2.f1.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uploads are written into a staging file of the served folder and only
+ * renamed to their final name once the checksum has been verified. A staging
+ * file left by an interrupted upload is resumed by the next upload of the
+ * same name and size, so the client only sends what is missing.
+ * The parts of a parallel upload are assembled in a staging file of their
+ * own, see {@link UploadSessions}, and so are the files rebuilt from a delta.
+ * <p>
+ * Staging files are hidden from the clients. The resumable ones are listed
+ * once, when the first upload arrives, then tracked in memory together with
+ * the uploads writing them: a name is uploaded by one connection at a time.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class UploadStaging {
+	/** Start of the staging file names, followed by the size and the final name. */
+	public static final String PREFIX = ".red2-part-";
+
+	private final File dir;
+	//guarded by this
+	/** Size of the resumable staging file of every name that has one. */
+	private final Map<String, Long> resumable = new HashMap<String, Long>();
+	/** Names being uploaded right now. */
+	private final Set<String> active = new HashSet<String>();
+
+	/**
+	 * @param dir the served folder
+	 */
+	public UploadStaging(File dir) {
+		this.dir = dir;
+		scan();
+	}
+
+	/**
+	 * Registers an upload and deletes the staging file of an earlier upload
+	 * of the same name with another size, it can not be resumed anymore.
+	 * @param name final name of the upload
+	 * @param size announced size of the upload
+	 * @return the staging file, which may not exist yet; to be given back with {@link #end}
+	 * @throws IOException with the message for the client, if the name is
+	 * being uploaded already
+	 */
+	public synchronized File begin(String name, long size) throws IOException {
+		if (! active.add(name))
+			throw new IOException("Another upload of '" + name + "' is in progress");
+		Long old = resumable.put(name, size);
+		if (null != old && old.longValue() != size)
+			fileFor(dir, name, old).delete();
+		return fileFor(dir, name, size);
+	}
+
+	/**
+	 * Unregisters an upload, whether its staging file was kept to be resumed,
+	 * deleted or renamed.
+	 * @param name
+	 */
+	public synchronized void end(String name) {
+		active.remove(name);
+		Long size = resumable.get(name);
+		if (null != size && ! fileFor(dir, name, size).exists())
+			resumable.remove(name);
+	}
+
+	/**
+	 * @param dir the served folder
+	 * @param name final name of the upload
+	 * @param size announced size of the upload
+	 * @return the staging file, which may not exist yet
+	 */
+	public static File fileFor(File dir, String name, long size) {
+		return new File(dir, PREFIX + size + "-" + name);
+	}
+
+	/**
+	 * @param dir the served folder
+	 * @param name final name of the upload
+	 * @param size announced size of the upload
+	 * @return the file the parts of a parallel upload are assembled in,
+	 * which may not exist yet
+	 */
+	public static File rangesFileFor(File dir, String name, long size) {
+		return new File(dir, PREFIX + "ranges-" + size + "-" + name);
+	}
+
+	/**
+	 * @param dir the served folder
+	 * @return a new staging file for the version of a file rebuilt from a delta
+	 * @throws IOException
+	 */
+	public static File newRebuildFile(File dir) throws IOException {
+		return File.createTempFile(PREFIX + "delta-", "", dir);
+	}
+
+	/**
+	 * @param dir the served folder
+	 * @return a new staging file for a file of a batch, which may belong to a
+	 * subfolder and never resumes
+	 * @throws IOException
+	 */
+	public static File newBatchFile(File dir) throws IOException {
+		return File.createTempFile(PREFIX + "batch-", "", dir);
+	}
+
+	/**
+	 * @param name a file name as sent by the clients
+	 * @return true for staging files
+	 */
+	public static boolean isStaging(String name) {
+		return null != name && name.startsWith(PREFIX);
+	}
+
+	/**
+	 * Lists the staging files left by interrupted uploads. Of several sizes
+	 * of the same name, only the newest is kept.
+	 */
+	private void scan() {
+		String[] names = dir.list();
+		if (null == names)
+			return;
+		for (String fileName : names) {
+			int dash = fileName.indexOf('-', PREFIX.length());
+			if (! fileName.startsWith(PREFIX) || dash < 0
+					|| ! fileName.substring(PREFIX.length(), dash).matches("[0-9]+"))
+				continue;
+			String name = fileName.substring(dash + 1);
+			long size;
+			try {
+				size = Long.parseLong(fileName.substring(PREFIX.length(), dash));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Long other = resumable.get(name);
+			if (null != other) {
+				File kept = fileFor(dir, name, other);
+				File found = new File(dir, fileName);
+				if (found.lastModified() <= kept.lastModified()) {
+					found.delete();
+					continue;
+				}
+				kept.delete();
+			}
+			resumable.put(name, size);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package red2.f1.util;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffers for the transfer loops, handed back when done with rather than
+ * left to the garbage collector, so that a transfer going on allocates none
+ * per chunk.
+ * <p>
+ * Buffers come in classes of a power of two bytes, from 4 KB to 4 MB, plus
+ * {@link #SLACK} bytes so that a frame header fits in front of a chunk of
+ * the class size. Every platform thread keeps one buffer of each of the
+ * smaller classes at hand; the others wait in a shared stack, at most
+ * {@link #CLASS_BYTES} bytes of each class, and whatever does not fit is
+ * dropped. Larger requests are simply allocated. Virtual threads keep
+ * none, they come and go with the connections and would take their
+ * buffers with them.
+ * <p>
+ * A buffer must be handed back once and not used afterwards: the next
+ * caller gets it as it was left.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public enum BufferPool {
+	INSTANCE;
+
+	public static final int SLACK = 64;
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 22;
+	/** Largest class kept by every thread. */
+	private static final int LOCAL_SHIFT = 18;
+	private static final long CLASS_BYTES = 16 * 1024 * 1024;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	private static final Stack[] heap = new Stack[CLASSES];
+	private static final Stack[] direct = new Stack[CLASSES];
+	static {
+		for (int c = 0; c < CLASSES; c++) {
+			int depth = (int) Math.max(2, CLASS_BYTES >> (MIN_SHIFT + c));
+			heap[c] = new Stack(depth);
+			direct[c] = new Stack(depth);
+		}
+	}
+	/** Slots of the threads that keep none. */
+	private static final Object[] NO_SLOTS = new Object[0];
+	/** Thread.isVirtual(), null before Java 21. */
+	private static final Method IS_VIRTUAL = isVirtualMethod();
+	/** Heap buffers first, then direct ones, one slot per class. */
+	private static final ThreadLocal<Object[]> local = new ThreadLocal<Object[]>() {
+		@Override
+		protected Object[] initialValue() {
+			return isVirtual(Thread.currentThread()) ? NO_SLOTS : new Object[2 * CLASSES];
+		}
+	};
+
+	/**
+	 * An array rather than a queue, that would allocate a node for every
+	 * buffer handed back.
+	 */
+	private static final class Stack {
+		private final Object[] items;
+		private int top = 0;
+
+		Stack(int depth) {
+			items = new Object[depth];
+		}
+
+		synchronized Object pop() {
+			if (0 == top)
+				return null;
+			Object o = items[--top];
+			items[top] = null;
+			return o;
+		}
+
+		synchronized void push(Object o) {
+			if (top < items.length)
+				items[top++] = o;
+		}
+	}
+
+	/**
+	 * @param size
+	 * @return an array of at least <code>size</code> bytes, not zeroed
+	 */
+	public static byte[] heap(int size) {
+		int c = classOf(size);
+		if (c < 0)
+			return new byte[size];
+		Object b = take(c, heap, 0);
+		return null != b ? (byte[]) b : new byte[capacity(c)];
+	}
+
+	/**
+	 * @param b from {@link #heap}, or any array, that is kept only if it has
+	 * the length of a class; null is ignored
+	 */
+	public static void release(byte[] b) {
+		if (null != b)
+			give(b, classOfCapacity(b.length), heap, 0);
+	}
+
+	/**
+	 * @param size
+	 * @return a direct buffer of at least <code>size</code> bytes, cleared:
+	 * its limit is its capacity, not <code>size</code>
+	 */
+	public static ByteBuffer direct(int size) {
+		int c = classOf(size);
+		if (c < 0)
+			return ByteBuffer.allocateDirect(size);
+		Object b = take(c, direct, CLASSES);
+		if (null == b)
+			return ByteBuffer.allocateDirect(capacity(c));
+		ByteBuffer bb = (ByteBuffer) b;
+		bb.clear();
+		return bb;
+	}
+
+	/**
+	 * @param bb from {@link #direct}; heap buffers and null are ignored
+	 */
+	public static void release(ByteBuffer bb) {
+		if (null != bb && bb.isDirect())
+			give(bb, classOfCapacity(bb.capacity()), direct, CLASSES);
+	}
+
+	/**
+	 * Hands a buffer back to the shared stack rather than to the thread, for
+	 * threads about to end, whose own buffers would be lost.
+	 * @param bb from {@link #direct}
+	 */
+	public static void share(ByteBuffer bb) {
+		if (null == bb || ! bb.isDirect())
+			return;
+		int c = classOfCapacity(bb.capacity());
+		if (c >= 0)
+			direct[c].push(bb);
+	}
+
+	private static Object take(int c, Stack[] shared, int offset) {
+		Object[] slots;
+		if (c <= LOCAL_SHIFT - MIN_SHIFT && NO_SLOTS != (slots = local.get())) {
+			Object b = slots[offset + c];
+			if (null != b) {
+				slots[offset + c] = null;
+				return b;
+			}
+		}
+		return shared[c].pop();
+	}
+
+	private static void give(Object b, int c, Stack[] shared, int offset) {
+		if (c < 0)
+			return;
+		Object[] slots;
+		if (c <= LOCAL_SHIFT - MIN_SHIFT && NO_SLOTS != (slots = local.get())) {
+			if (null == slots[offset + c]) {
+				slots[offset + c] = b;
+				return;
+			}
+		}
+		shared[c].push(b);
+	}
+
+	private static Method isVirtualMethod() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param t
+	 * @return true for a virtual thread, which is looked up by reflection so
+	 * the pool still builds and runs on older JVMs
+	 */
+	private static boolean isVirtual(Thread t) {
+		if (null == IS_VIRTUAL)
+			return false;
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(t);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the smallest class that holds <code>size</code> bytes, -1 if
+	 * none does
+	 */
+	private static int classOf(int size) {
+		if (size <= (1 << MIN_SHIFT) + SLACK)
+			return 0;
+		int shift = 32 - Integer.numberOfLeadingZeros(size - SLACK - 1);
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	/**
+	 * @return the class of a buffer handed back, -1 if it was not made here
+	 */
+	private static int classOfCapacity(int capacity) {
+		int base = capacity - SLACK;
+		if (base < (1 << MIN_SHIFT) || 1 != Integer.bitCount(base))
+			return -1;
+		int shift = Integer.numberOfTrailingZeros(base);
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	private static int capacity(int c) {
+		return (1 << (MIN_SHIFT + c)) + SLACK;
+	}
+}
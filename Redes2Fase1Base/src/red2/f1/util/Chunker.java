@@ -0,0 +1,93 @@
+package red2.f1.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream in content defined chunks: a cut falls where a rolling
+ * hash of the last 64 bytes matches a pattern, so inserting or removing
+ * bytes only changes the chunks around the edit and the rest of the file
+ * still cuts into the same chunks as before.
+ * <p>
+ * The hash is a gear hash, <code>h = (h &lt;&lt; 1) + GEAR[byte]</code>, tested
+ * on its high bits. Chunks are between {@link #MIN_CHUNK} and {@link #MAX_CHUNK}
+ * bytes, {@link #AVG_CHUNK} on average.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Chunker {
+	public static final int MIN_CHUNK = 16 * 1024;
+	public static final int AVG_CHUNK = 64 * 1024;
+	public static final int MAX_CHUNK = 256 * 1024;
+	/** Digest naming the chunks. */
+	public static final String HASH = "SHA-256";
+	public static final int HASH_LEN = 32;
+	/** A chunk in a list of chunks: its hash, then its length in 4 bytes. */
+	public static final int ENTRY_LEN = HASH_LEN + 4;
+	/** 16 high bits, one cut every {@link #AVG_CHUNK} bytes past the minimum. */
+	private static final long MASK = 0xffffL << 48;
+	/** Fixed seed: both sides of a connection, and every run, must cut alike. */
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x52324350L);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	private final InputStream in;
+	private final byte[] buf = new byte[2 * MAX_CHUNK];
+	private int start = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	/**
+	 * @param in read up to its end, not closed
+	 */
+	public Chunker(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next chunk.
+	 * @param chunk at least {@link #MAX_CHUNK} bytes
+	 * @return the length of the chunk, -1 at the end of the stream
+	 * @throws IOException
+	 */
+	public int next(byte[] chunk) throws IOException {
+		if (limit - start < MAX_CHUNK && ! eof) {
+			System.arraycopy(buf, start, buf, 0, limit - start);
+			limit -= start;
+			start = 0;
+			while (limit < buf.length) {
+				int n = in.read(buf, limit, buf.length - limit);
+				if (n < 0) {
+					eof = true;
+					break;
+				}
+				limit += n;
+			}
+		}
+		if (limit == start)
+			return -1;
+		int len = cut(buf, start, limit - start);
+		System.arraycopy(buf, start, chunk, 0, len);
+		start += len;
+		return len;
+	}
+
+	/**
+	 * @return the length of the chunk starting at <code>off</code>
+	 */
+	private static int cut(byte[] b, int off, int available) {
+		if (available <= MIN_CHUNK)
+			return available;
+		int end = Math.min(available, MAX_CHUNK);
+		long h = 0;
+		for (int i = MIN_CHUNK - 64; i < end; i++) {
+			h = (h << 1) + GEAR[b[off + i] & 0xff];
+			if (i >= MIN_CHUNK && 0 == (h & MASK))
+				return i + 1;
+		}
+		return end;
+	}
+}
@@ -0,0 +1,365 @@
+package red2.f1.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Delta encoding of a new version of a file against an older copy, the way
+ * rsync does it. The holder of the old copy describes each of its blocks by
+ * a weak rolling checksum and an MD5. The holder of the new version slides
+ * a window over it, looks the weak checksum up at every byte and, when the
+ * MD5 agrees too, refers to the old block instead of sending its bytes.
+ * <p>
+ * Signatures: for every full block of the old copy, the weak checksum
+ * (4 bytes) and the MD5 (16 bytes). A short last block is not described,
+ * its bytes travel as literals.
+ * <p>
+ * Delta: a sequence of instructions, {@link #COPY} followed by the first
+ * block and the number of blocks (4 bytes each), {@link #LITERAL} followed
+ * by a 4 bytes length and the bytes, and a final {@link #END}.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public enum Delta {
+	/** Only instance of this class. */
+	INSTANCE;
+
+	public static final int MIN_BLOCK = 2 * 1024;
+	public static final int MAX_BLOCK = 128 * 1024;
+	/** Weak checksum and MD5 of a block. */
+	private static final int SIGNATURE_LEN = 20;
+	private static final int STRONG_LEN = 16;
+	/** Largest literal instruction, so the sender never holds more unmatched bytes. */
+	private static final int MAX_LITERAL = 64 * 1024;
+	private static final int STREAM_BUFFER = 64 * 1024;
+
+	private static final byte END = 0;
+	private static final byte COPY = 1;
+	private static final byte LITERAL = 2;
+
+	/**
+	 * The signatures of an old copy, sorted by weak checksum.
+	 */
+	public static class Signatures {
+		private final int blockSize;
+		/** Weak checksum in the high half, block index in the low half. */
+		private final long[] entries;
+		private final byte[] strong;
+		/** Quick rejection of the weak checksums no block has, by their 16 bits hash. */
+		private final boolean[] tags = new boolean[1 << 16];
+
+		private Signatures(int blockSize, int blocks) {
+			this.blockSize = blockSize;
+			this.entries = new long[blocks];
+			this.strong = new byte[blocks * STRONG_LEN];
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * @param weak
+		 * @param buf
+		 * @param off start of a window of {@link #blockSize} bytes
+		 * @param md reset and used for the window's MD5, only if needed
+		 * @return the index of an old block with the same contents, -1 if none
+		 */
+		private int find(int weak, byte[] buf, int off, MessageDigest md) {
+			if (! tags[tag(weak)])
+				return -1;
+			int i = Arrays.binarySearch(entries, (long) weak << 32);
+			if (i < 0)
+				i = -i - 1;
+			byte[] digest = null;
+			for (; i < entries.length && (int) (entries[i] >> 32) == weak; i++) {
+				if (null == digest) {
+					md.reset();
+					md.update(buf, off, blockSize);
+					digest = md.digest();
+				}
+				int block = (int) entries[i];
+				if (equals(digest, strong, block * STRONG_LEN))
+					return block;
+			}
+			return -1;
+		}
+
+		private static boolean equals(byte[] digest, byte[] all, int off) {
+			for (int i = 0; i < STRONG_LEN; i++)
+				if (digest[i] != all[off + i])
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * @param size of the old copy
+	 * @return a block size growing with the square root of the file, so the
+	 * signatures stay small for big files and precise for small ones
+	 */
+	public static int blockSize(long size) {
+		long block = ((long) Math.sqrt(size) + 1023) / 1024 * 1024;
+		return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, block));
+	}
+
+	/**
+	 * @param size of the old copy
+	 * @param blockSize
+	 * @return the number of bytes of its signatures
+	 */
+	public static long signaturesLength(long size, int blockSize) {
+		return size / blockSize * SIGNATURE_LEN;
+	}
+
+	/**
+	 * Writes the signatures of the full blocks of a file.
+	 * @param file
+	 * @param size bytes of the file to describe
+	 * @param blockSize
+	 * @param os not closed
+	 * @throws IOException
+	 */
+	public static void writeSignatures(FileChannel file, long size, int blockSize, OutputStream os)
+			throws IOException {
+		MessageDigest md = md5();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, STREAM_BUFFER));
+		byte[] block = new byte[blockSize];
+		ByteBuffer bb = ByteBuffer.wrap(block);
+		for (long pos = 0; pos + blockSize <= size; pos += blockSize) {
+			bb.clear();
+			while (bb.hasRemaining())
+				if (file.read(bb, pos + bb.position()) < 0)
+					throw new EOFException("File shrank while computing its signatures");
+			out.writeInt(weakSum(block, 0, blockSize));
+			md.update(block);
+			out.write(md.digest());
+		}
+		out.flush();
+	}
+
+	/**
+	 * @param is signatures as written by {@link #writeSignatures}
+	 * @param length their number of bytes
+	 * @param blockSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static Signatures readSignatures(InputStream is, long length, int blockSize) throws IOException {
+		if (length % SIGNATURE_LEN != 0 || length / SIGNATURE_LEN > Integer.MAX_VALUE / STRONG_LEN)
+			throw new ProtocolException("Invalid signatures length " + length);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is, STREAM_BUFFER));
+		int blocks = (int) (length / SIGNATURE_LEN);
+		Signatures sig = new Signatures(blockSize, blocks);
+		for (int i = 0; i < blocks; i++) {
+			int weak = in.readInt();
+			sig.entries[i] = (long) weak << 32 | i;
+			sig.tags[tag(weak)] = true;
+			in.readFully(sig.strong, i * STRONG_LEN, STRONG_LEN);
+		}
+		Arrays.sort(sig.entries);
+		return sig;
+	}
+
+	/**
+	 * Writes the delta turning the old copy described by <code>sig</code>
+	 * into the contents of <code>src</code>.
+	 * @param src the new version, read once up to its end
+	 * @param sig
+	 * @param os not closed
+	 * @param whole updated with every byte of <code>src</code>
+	 * @return the number of bytes sent as literals
+	 * @throws IOException
+	 */
+	public static long writeDelta(InputStream src, Signatures sig, OutputStream os, MessageDigest whole)
+			throws IOException {
+		int block = sig.blockSize;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, STREAM_BUFFER));
+		MessageDigest md = md5();
+		byte[] buf = new byte[Math.max(4 * block, 1024 * 1024) + MAX_LITERAL];
+		int limit = 0; //end of the bytes read
+		int pos = 0; //start of the window
+		int lit = 0; //start of the bytes not sent yet
+		boolean eof = false;
+		boolean rolled = false; //a and b hold the sums of the window
+		int a = 0;
+		int b = 0;
+		long literals = 0;
+		int copyFirst = 0;
+		int copyCount = 0;
+		while (true) {
+			if (limit - pos < block && ! eof) {
+				//keep the bytes not sent yet, the window is among them
+				System.arraycopy(buf, lit, buf, 0, limit - lit);
+				pos -= lit;
+				limit -= lit;
+				lit = 0;
+				while (limit < buf.length) {
+					int n = src.read(buf, limit, buf.length - limit);
+					if (n < 0) {
+						eof = true;
+						break;
+					}
+					whole.update(buf, limit, n);
+					limit += n;
+				}
+			}
+			if (limit - pos < block)
+				break;
+			if (! rolled) {
+				int sum = weakSum(buf, pos, block);
+				a = sum & 0xffff;
+				b = sum >>> 16;
+				rolled = true;
+			}
+			int match = sig.entries.length > 0 ? sig.find(a | b << 16, buf, pos, md) : -1;
+			if (match >= 0) {
+				if (pos > lit) {
+					writeCopy(out, copyFirst, copyCount);
+					copyCount = 0;
+					writeLiteral(out, buf, lit, pos - lit);
+					literals += pos - lit;
+				}
+				if (copyCount > 0 && copyFirst + copyCount == match)
+					copyCount++;
+				else {
+					writeCopy(out, copyFirst, copyCount);
+					copyFirst = match;
+					copyCount = 1;
+				}
+				pos += block;
+				lit = pos;
+				rolled = false;
+				continue;
+			}
+			if (pos - lit >= MAX_LITERAL) {
+				writeCopy(out, copyFirst, copyCount);
+				copyCount = 0;
+				writeLiteral(out, buf, lit, pos - lit);
+				literals += pos - lit;
+				lit = pos;
+			}
+			if (pos + block < limit) {
+				int leaving = buf[pos] & 0xff;
+				int entering = buf[pos + block] & 0xff;
+				a = (a - leaving + entering) & 0xffff;
+				b = (b - block * leaving + a) & 0xffff;
+			} else
+				rolled = false;
+			pos++;
+		}
+		writeCopy(out, copyFirst, copyCount);
+		for (int off = lit; off < limit; off += MAX_LITERAL) {
+			int len = Math.min(MAX_LITERAL, limit - off);
+			writeLiteral(out, buf, off, len);
+			literals += len;
+		}
+		out.writeByte(END);
+		out.flush();
+		return literals;
+	}
+
+	/**
+	 * Rebuilds the new version of a file from its old copy and a delta.
+	 * @param delta as written by {@link #writeDelta}
+	 * @param basis the old copy
+	 * @param basisSize its size when the signatures were computed
+	 * @param blockSize
+	 * @param os receives the new version, not closed
+	 * @param md updated with every byte written
+	 * @return the number of bytes written
+	 * @throws IOException, a {@link ProtocolException} if the delta is invalid
+	 */
+	public static long apply(InputStream delta, FileChannel basis, long basisSize, int blockSize,
+			OutputStream os, MessageDigest md) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(delta, STREAM_BUFFER));
+		OutputStream out = new BufferedOutputStream(os, STREAM_BUFFER);
+		byte[] buf = new byte[Math.max(blockSize, MAX_LITERAL)];
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		long blocks = basisSize / blockSize;
+		long written = 0;
+		while (true) {
+			byte op = in.readByte();
+			if (END == op)
+				break;
+			if (COPY == op) {
+				long first = in.readInt();
+				long count = in.readInt();
+				if (first < 0 || count <= 0 || first + count > blocks)
+					throw new ProtocolException("Invalid reference to " + count + " block(s) from " + first);
+				for (long block = first; block < first + count; block++) {
+					bb.clear();
+					bb.limit(blockSize);
+					while (bb.hasRemaining())
+						if (basis.read(bb, block * blockSize + bb.position()) < 0)
+							throw new EOFException("Old copy shrank while rebuilding the file");
+					md.update(buf, 0, blockSize);
+					out.write(buf, 0, blockSize);
+					written += blockSize;
+				}
+			} else if (LITERAL == op) {
+				int len = in.readInt();
+				if (len <= 0 || len > MAX_LITERAL)
+					throw new ProtocolException("Invalid literal of " + len + " bytes");
+				in.readFully(buf, 0, len);
+				md.update(buf, 0, len);
+				out.write(buf, 0, len);
+				written += len;
+			} else
+				throw new ProtocolException("Unknown delta instruction " + op);
+		}
+		out.flush();
+		return written;
+	}
+
+	private static void writeCopy(DataOutputStream out, int first, int count) throws IOException {
+		if (0 == count)
+			return;
+		out.writeByte(COPY);
+		out.writeInt(first);
+		out.writeInt(count);
+	}
+
+	private static void writeLiteral(DataOutputStream out, byte[] buf, int off, int len) throws IOException {
+		out.writeByte(LITERAL);
+		out.writeInt(len);
+		out.write(buf, off, len);
+	}
+
+	/**
+	 * rsync's weak checksum: the sum of the bytes in the low 16 bits, the
+	 * sum of the partial sums in the high 16 bits.
+	 */
+	private static int weakSum(byte[] buf, int off, int len) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < len; i++) {
+			a += buf[off + i] & 0xff;
+			b += (len - i) * (buf[off + i] & 0xff);
+		}
+		return (a & 0xffff) | (b & 0xffff) << 16;
+	}
+
+	private static int tag(int weak) {
+		return (weak ^ weak >>> 16) & 0xffff;
+	}
+
+	private static MessageDigest md5() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Error creating MessageDigest with MD5 algorithm: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package red2.f1.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Folder trees as they travel in the batch requests: every file by its path
+ * relative to the shared (or local) folder, segments always separated by
+ * {@link #SEPARATOR} whatever the platform.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public enum FileTree {
+	INSTANCE;
+
+	public static final char SEPARATOR = '/';
+
+	/**
+	 * Finds the file a relative path names, refusing any path that would
+	 * leave <code>root</code>, through ".." or through a symbolic link.
+	 * @param root
+	 * @param path relative, {@link #SEPARATOR} separated
+	 * @return the file, which may not exist yet, or null if the path is empty,
+	 * absolute, has empty, "." or ".." segments or ends up outside root
+	 */
+	public static File resolve(File root, String path) {
+		if (null == path || path.isEmpty() || SEPARATOR == path.charAt(0)
+				|| path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0)
+			return null;
+		for (String segment : path.split(String.valueOf(SEPARATOR), -1)) {
+			if (segment.isEmpty() || ".".equals(segment) || "..".equals(segment))
+				return null;
+		}
+		File file = new File(root, path.replace(SEPARATOR, File.separatorChar));
+		try {
+			String base = root.getCanonicalPath() + File.separator;
+			if (! file.getCanonicalPath().startsWith(base))
+				return null;
+		} catch (IOException e) {
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * @param root
+	 * @param file
+	 * @return the path of the file relative to root, as the clients send it;
+	 * its bare name if it is not inside root
+	 */
+	public static String pathOf(File root, File file) {
+		String base = root.getAbsolutePath() + File.separator;
+		String path = file.getAbsolutePath();
+		if (! path.startsWith(base))
+			return file.getName();
+		return path.substring(base.length()).replace(File.separatorChar, SEPARATOR);
+	}
+
+	/**
+	 * Lists the files of a folder and of all its subfolders. Links to
+	 * folders are not followed.
+	 * @param root
+	 * @param dir relative path of the folder, see {@link #resolve}
+	 * @param skip names of the files and folders to leave out, null for none
+	 * @return the paths of the files relative to root, sorted; empty if
+	 * <code>dir</code> is not a folder
+	 */
+	public static List<String> walk(File root, String dir, FilenameFilter skip) {
+		List<String> paths = new ArrayList<String>();
+		File top = resolve(root, dir);
+		if (null != top && top.isDirectory())
+			walk(top, dir, skip, paths);
+		Collections.sort(paths);
+		return paths;
+	}
+
+	private static void walk(File folder, String path, FilenameFilter skip, List<String> paths) {
+		String[] names = folder.list();
+		if (null == names)
+			return;
+		for (String name : names) {
+			if (null != skip && skip.accept(folder, name))
+				continue;
+			File f = new File(folder, name);
+			String p = path + SEPARATOR + name;
+			if (f.isFile())
+				paths.add(p);
+			else if (f.isDirectory() && ! isLink(f))
+				walk(f, p, skip, paths);
+		}
+	}
+
+	/**
+	 * Java 6 can not tell a link from a folder: a link is a folder whose
+	 * canonical path is not where it was listed.
+	 */
+	private static boolean isLink(File f) {
+		try {
+			File listed = new File(f.getParentFile().getCanonicalFile(), f.getName());
+			return ! f.getCanonicalFile().equals(listed);
+		} catch (IOException e) {
+			return true;
+		}
+	}
+}
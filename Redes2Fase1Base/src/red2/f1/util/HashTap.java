@@ -0,0 +1,148 @@
+package red2.f1.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashes a file while another thread is still writing it. The writer
+ * publishes how far the file is complete with {@link #advance(long)},
+ * the tap follows behind reading the fresh pages from the OS cache.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class HashTap implements Runnable {
+	private static final int BUFFER = 256 * 1024;
+
+	private final FileChannel file;
+	private final MessageDigest md;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition moved = lock.newCondition();
+	/** Next position to hash. */
+	private long hashed;
+	/** Everything before this position has been written. */
+	private long available;
+	private boolean closed = false;
+	private boolean cancelled = false;
+	private IOException error = null;
+
+	/**
+	 * @param file a channel opened for reading
+	 * @param start first position to hash
+	 * @param md updated with the bytes from <code>start</code> onwards
+	 */
+	public HashTap(FileChannel file, long start, MessageDigest md) {
+		this.file = file;
+		this.md = md;
+		this.hashed = start;
+		this.available = start;
+	}
+
+	public void start() {
+		Thread t = new Thread(this, "hash-tap");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Announces that the file is complete up to <code>end</code>.
+	 * @param end
+	 */
+	public void advance(long end) {
+		lock.lock();
+		try {
+			available = end;
+			moved.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every announced byte has been hashed.
+	 * @throws IOException if the tap failed reading the file
+	 */
+	public void finish() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			moved.signalAll();
+			while (hashed < available && null == error)
+				moved.awaitUninterruptibly();
+			if (null != error)
+				throw error;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the tap without waiting, the digest is then incomplete.
+	 */
+	public void cancel() {
+		lock.lock();
+		try {
+			cancelled = true;
+			moved.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer bb = BufferPool.direct(BUFFER);
+		try {
+			hash(bb);
+		} finally {
+			BufferPool.share(bb);
+		}
+	}
+
+	private void hash(ByteBuffer bb) {
+		while (true) {
+			long from, to;
+			lock.lock();
+			try {
+				while (hashed >= available && ! closed && ! cancelled)
+					moved.awaitUninterruptibly();
+				if (cancelled || hashed >= available)
+					return;
+				from = hashed;
+				to = available;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				while (from < to) {
+					bb.clear();
+					bb.limit((int) Math.min(bb.capacity(), to - from));
+					int n = file.read(bb, from);
+					if (n <= 0)
+						throw new IOException("File shorter than announced while hashing");
+					bb.flip();
+					md.update(bb);
+					from += n;
+				}
+			} catch (IOException e) {
+				lock.lock();
+				try {
+					error = e;
+					moved.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+			lock.lock();
+			try {
+				hashed = from;
+				moved.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package red2.f1.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non negative values, e.g. latencies in microseconds,
+ * recorded without taking any lock from as many threads as there are.
+ * <p>
+ * The buckets are laid out as in HdrHistogram: every power of two is split
+ * into {@link #SUB_BUCKETS} buckets of the same width, so the values below
+ * <code>2 * SUB_BUCKETS</code> are kept exactly and the others within
+ * about 6%, whatever their magnitude. Values above {@link #MAX_VALUE} count
+ * as {@link #MAX_VALUE}; the largest value recorded is kept exactly.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Histogram {
+	private static final int SUB_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** About 12 days in microseconds. */
+	public static final long MAX_VALUE = (1L << 40) - 1;
+	private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value negative values count as 0
+	 */
+	public void record(long value) {
+		value = Math.min(Math.max(0, value), MAX_VALUE);
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && ! max.compareAndSet(m, value))
+			;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the total of the values recorded
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return 0 if nothing was recorded
+	 */
+	public long getMean() {
+		long n = count.get();
+		return 0 == n ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * @param percent e.g. 99.9
+	 * @return the largest value of the bucket holding the given percentile,
+	 * never above the largest value recorded; 0 if nothing was recorded
+	 */
+	public long percentile(double percent) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (0 == total)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percent) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestOf(i), max.get());
+		}
+		return max.get(); //recorded meanwhile
+	}
+
+	private static int indexOf(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long highestOf(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long top = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
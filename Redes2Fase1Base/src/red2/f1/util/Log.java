@@ -0,0 +1,218 @@
+package red2.f1.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's console output, written by a single thread so that the
+ * handlers never wait for the console nor for each other. A line is put in
+ * a ring of {@link #CAPACITY} slots without taking any lock, and formatted
+ * by the writer: the <code>{}</code> of its pattern are replaced with its
+ * arguments only then, and only if its level is shown at all.
+ * <p>
+ * When the ring is full the loggers wait for room, no line is lost. The lines
+ * still in the ring are written before the JVM exits.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public enum Log {
+	INSTANCE;
+
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	public static final int CAPACITY = 8192;
+	private static final String PREFIX = "Ser# ";
+	/** How long the writer sleeps when there is nothing to write. */
+	private static final long IDLE_NANOS = 10 * 1000 * 1000;
+
+	private static class Line {
+		final Level level;
+		final String pattern;
+		final Object[] args;
+		final Throwable error;
+		final boolean newLine;
+
+		Line(Level level, String pattern, Object[] args, Throwable error, boolean newLine) {
+			this.level = level;
+			this.pattern = pattern;
+			this.args = args;
+			this.error = error;
+			this.newLine = newLine;
+		}
+	}
+
+	private static volatile Level threshold = Level.INFO;
+	private static final AtomicReferenceArray<Line> ring = new AtomicReferenceArray<Line>(CAPACITY);
+	/** Next slot to claim. */
+	private static final AtomicLong tail = new AtomicLong();
+	/** Next slot to write, only moved by the writer. */
+	private static volatile long head = 0;
+	private static volatile boolean idle = false;
+	private static final PrintStream out = System.out;
+	private static final Thread writer = new Thread(new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	}, "log-writer");
+	static {
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "log-flush"));
+	}
+
+	public static void setLevel(Level level) {
+		threshold = level;
+	}
+
+	/**
+	 * @param level
+	 * @return true if lines of this level are written, to skip building the
+	 * arguments of those that are not
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.ordinal() <= threshold.ordinal();
+	}
+
+	public static void error(String pattern, Object... args) {
+		log(Level.ERROR, pattern, args, null, true);
+	}
+
+	public static void warn(String pattern, Object... args) {
+		log(Level.WARN, pattern, args, null, true);
+	}
+
+	public static void info(String pattern, Object... args) {
+		log(Level.INFO, pattern, args, null, true);
+	}
+
+	public static void debug(String pattern, Object... args) {
+		log(Level.DEBUG, pattern, args, null, true);
+	}
+
+	/**
+	 * Logs an exception: its class and message as an error, its stack trace
+	 * only at {@link Level#DEBUG}.
+	 * @param e
+	 */
+	public static void error(Throwable e) {
+		log(Level.ERROR, null, null, e, true);
+	}
+
+	/**
+	 * Logs a line as it is, without looking for <code>{}</code> in it.
+	 * @param level
+	 * @param s
+	 * @param newLine false to leave the console at the end of the line
+	 */
+	public static void line(Level level, String s, boolean newLine) {
+		log(level, s, null, null, newLine);
+	}
+
+	/**
+	 * Waits until every line logged so far has been written.
+	 */
+	public static void flush() {
+		long end = tail.get();
+		while (head < end && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+		if (! writer.isAlive()) //e.g. during a shutdown, write what is left here
+			drain(end);
+		out.flush();
+	}
+
+	private static void log(Level level, String pattern, Object[] args, Throwable error, boolean newLine) {
+		if (! isEnabled(level))
+			return;
+		Line line = new Line(level, pattern, args, error, newLine);
+		long seq = tail.getAndIncrement();
+		while (seq - head >= CAPACITY) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+		ring.lazySet((int) (seq & (CAPACITY - 1)), line);
+		if (idle)
+			LockSupport.unpark(writer);
+	}
+
+	//----WRITER----------------------------------------------------------//
+	private static void write() {
+		while (true) {
+			int slot = (int) (head & (CAPACITY - 1));
+			Line line = ring.get(slot);
+			if (null == line) {
+				out.flush();
+				idle = true;
+				if (null == ring.get(slot))
+					LockSupport.parkNanos(IDLE_NANOS);
+				idle = false;
+				continue;
+			}
+			ring.lazySet(slot, null);
+			print(line);
+			head++;
+		}
+	}
+
+	/**
+	 * Writes the lines up to <code>end</code> from the calling thread, once
+	 * the writer is gone.
+	 */
+	private static synchronized void drain(long end) {
+		while (head < end) {
+			int slot = (int) (head & (CAPACITY - 1));
+			Line line = ring.get(slot);
+			if (null == line) {
+				Thread.yield(); //claimed but not published yet
+				continue;
+			}
+			ring.lazySet(slot, null);
+			print(line);
+			head++;
+		}
+	}
+
+	private static void print(Line line) {
+		try {
+			if (null != line.error) {
+				out.println(PREFIX + line.error.getClass().getSimpleName() + ": " + line.error.getMessage());
+				if (isEnabled(Level.DEBUG))
+					line.error.printStackTrace(out);
+				return;
+			}
+			String s = PREFIX + format(line.pattern, line.args);
+			if (line.newLine)
+				out.println(s);
+			else
+				out.print(s);
+		} catch (RuntimeException e) {
+			//a broken toString() must not stop the writer
+			out.println(PREFIX + "Unable to log '" + line.pattern + "': " + e);
+		}
+	}
+
+	private static String format(String pattern, Object[] args) {
+		if (null == args || 0 == args.length)
+			return pattern;
+		StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+		int from = 0;
+		for (Object arg : args) {
+			int at = pattern.indexOf("{}", from);
+			if (at < 0)
+				break;
+			sb.append(pattern, from, at).append(arg);
+			from = at + 2;
+		}
+		return sb.append(pattern, from, pattern.length()).toString();
+	}
+}
@@ -0,0 +1,151 @@
+package red2.f1.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A file held in memory, read through the {@link FileChannel} methods so
+ * that the code sending files does not care where the bytes come from.
+ * Read only: writing throws {@link NonWritableChannelException}, mapping and
+ * locking are not supported. The positional reads may come from several
+ * threads, as they do from a {@link HashTap}.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class MemoryFileChannel extends FileChannel {
+	private final ByteBuffer content;
+	private volatile long position = 0;
+
+	/**
+	 * @param content the whole file, from 0 to its capacity; never modified
+	 */
+	public MemoryFileChannel(ByteBuffer content) {
+		this.content = content;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (! isOpen())
+			throw new ClosedChannelException();
+		if (position >= content.capacity())
+			return -1;
+		int n = (int) Math.min(dst.remaining(), content.capacity() - position);
+		dst.put(view(position, n));
+		return n;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int n = read(dst, position);
+		if (n > 0)
+			position += n;
+		return n;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int n = read(dsts[i]);
+			if (n < 0)
+				return 0 == total ? -1 : total;
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		if (! isOpen())
+			throw new ClosedChannelException();
+		if (position >= content.capacity())
+			return 0;
+		return target.write(view(position, (int) Math.min(count, content.capacity() - position)));
+	}
+
+	@Override
+	public long size() throws IOException {
+		return content.capacity();
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		position = newPosition;
+		return this;
+	}
+
+	/**
+	 * A buffer of our own over part of the content, the content itself is
+	 * shared with the other readers.
+	 */
+	private ByteBuffer view(long position, int length) {
+		ByteBuffer view = content.duplicate();
+		view.position((int) position);
+		view.limit((int) position + length);
+		return view;
+	}
+
+	//----NOT SUPPORTED---------------------------------------------------//
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		//nothing to write back
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		throw new UnsupportedOperationException("A file in memory can not be mapped");
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		throw new UnsupportedOperationException("A file in memory can not be locked");
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new UnsupportedOperationException("A file in memory can not be locked");
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		//the content belongs to whoever created the channel
+	}
+}
@@ -0,0 +1,76 @@
+package red2.f1.util;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The other end of a connection as the logs show it: its address at first,
+ * its host name once a lookup on a background thread found it. The reverse
+ * DNS lookup can take seconds, and a handler has better things to do than
+ * wait for it just to name the client in its logs.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class Peer {
+	/** Lookups waiting, those beyond are not made. */
+	private static final int QUEUE = 256;
+
+	private static final ThreadPoolExecutor resolver = new ThreadPoolExecutor(1, 1,
+			0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "host-resolver");
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.DiscardPolicy());
+
+	private final InetAddress address;
+	/** Port, and stream id if any. */
+	private final String suffix;
+	/** The peer the name is looked up for, this one unless it is a stream of it. */
+	private final Peer host;
+	private volatile String name = null;
+
+	/**
+	 * @param address
+	 * @param port
+	 * @param resolve false to always show the address
+	 */
+	public Peer(InetAddress address, int port, boolean resolve) {
+		this.address = address;
+		this.suffix = ":" + port;
+		this.host = this;
+		if (resolve) {
+			resolver.execute(new Runnable() {
+				@Override
+				public void run() {
+					name = Peer.this.address.getHostName();
+				}
+			});
+		}
+	}
+
+	private Peer(Peer host, String suffix) {
+		this.address = host.address;
+		this.suffix = suffix;
+		this.host = host;
+	}
+
+	/**
+	 * @param id
+	 * @return the same peer, tagged with the id of one of its streams
+	 */
+	public Peer stream(int id) {
+		return new Peer(host, suffix + "#" + id);
+	}
+
+	@Override
+	public String toString() {
+		String n = host.name;
+		return (null != n ? n : address.getHostAddress()) + suffix;
+	}
+}
@@ -0,0 +1,125 @@
+package red2.f1.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Reads the next files of a batch on a few threads while the current one is
+ * being sent, so that the sender finds them in the OS cache rather than
+ * waiting for the disk, one small file after another. The readers stay at
+ * most {@link #WINDOW} bytes ahead of the sender, so that what they read is
+ * not evicted before it is sent.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class ReadAhead implements Runnable {
+	public static final int THREADS = 4;
+	public static final long WINDOW = 32 * 1024 * 1024;
+	private static final int BUFFER = 64 * 1024;
+
+	private final List<File> files;
+	private final long[] sizes;
+	//guarded by this
+	/** Next file to read ahead. */
+	private int next = 1;
+	/** File being sent. */
+	private int current = 0;
+	/** Bytes read ahead of the file being sent. */
+	private long ahead = 0;
+	private boolean stopped = false;
+	/** Readers waiting for the sender to catch up. */
+	private int waiting = 0;
+
+	/**
+	 * @param files in the order they are sent, null for those that are not
+	 * plain files
+	 */
+	public ReadAhead(List<File> files) {
+		this.files = files;
+		this.sizes = new long[files.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			File f = files.get(i);
+			sizes[i] = null == f ? 0 : f.length();
+		}
+	}
+
+	public void start() {
+		int threads = Math.min(THREADS, Runtime.getRuntime().availableProcessors() * 2);
+		for (int i = 0; i < threads && i + 1 < sizes.length; i++) {
+			Thread t = new Thread(this, "read-ahead-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Announces that the sender moved on to file <code>index</code>.
+	 * @param index
+	 */
+	public synchronized void reached(int index) {
+		for (; current < index; current++) {
+			if (current + 1 < next)
+				ahead -= sizes[current + 1];
+		}
+		if (next <= current) {
+			//the readers fell behind, no point in reading what is being sent
+			next = current + 1;
+			ahead = 0;
+		}
+		if (waiting > 0)
+			notifyAll();
+	}
+
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		byte[] buf = new byte[BUFFER];
+		while (true) {
+			File f;
+			synchronized (this) {
+				try {
+					while (! stopped && next < sizes.length
+							&& ahead > 0 && ahead + sizes[next] > WINDOW) {
+						waiting++;
+						wait();
+						waiting--;
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (stopped || next >= sizes.length)
+					return;
+				f = files.get(next);
+				ahead += sizes[next];
+				next++;
+			}
+			if (null != f)
+				read(f, buf);
+		}
+	}
+
+	private void read(File f, byte[] buf) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			while (in.read(buf) >= 0 && ! stopped)
+				;
+		} catch (IOException e) {
+			//the sender will find out by itself
+		} finally {
+			if (null != in) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					//nothing was written
+				}
+			}
+		}
+	}
+}
@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -20,16 +22,26 @@ public enum Util {
 	/** Only instance of this class. */
 	INSTANCE;
 	
-	/** Max length in bytes */
+	/**
+	 * Max length in bytes of a data packet of the object streams, and of a
+	 * DATA frame unless a larger one is agreed on with
+	 * {@link red2.f1.proto.Frame#OPT_CHUNK}
+	 */
 	public static final int MAX_DATA = 1024;
 	public final static Charset SHARED_CHARSET = Charset.forName("UTF-8");
 	
-	
 	public static String calculateFileSize(File file) {
+		return calculateFileSize(file.length());
+	}
+
+	/**
+	 * @param size in bytes
+	 * @return the size in B, KB, MB or GB, as {@link #calculateFileSize(File)}
+	 */
+	public static String calculateFileSize(long size) {
 		DecimalFormat df = new DecimalFormat();
 		df.setRoundingMode(RoundingMode.HALF_DOWN);
 		String scale = "B";
-		long size = file.length();
 		float rounded = size;
 		if (size > 1024.0) {
 			scale = "KB";
@@ -48,59 +60,152 @@ public enum Util {
 	}
 	
 	/**
-	 * Modified {@link PrintStream#print(String)} from the {@link System#out} stream. 
+	 * Modified {@link PrintStream#print(String)} from the {@link System#out} stream,
+	 * written asynchronously by the {@link Log}.
 	 * @param s
 	 */
-	public static synchronized void serBash(String s) {
-		System.out.print("Ser# " + s);
+	public static void serBash(String s) {
+		Log.line(Log.Level.INFO, s, false);
 	}
 	
 	/**
-	 * Modified {@link PrintStream#println(String)} from the {@link System#out} stream. 
+	 * Modified {@link PrintStream#println(String)} from the {@link System#out} stream,
+	 * written asynchronously by the {@link Log}.
 	 * @param s
 	 */
-	public static synchronized void serBashln(String s) {
-		System.out.println("Ser# " + s);
+	public static void serBashln(String s) {
+		Log.line(Log.Level.INFO, s, true);
 	}
 	
 	/**
 	 * Reads a file (using big chunks of data) and calculates its MD5 checksum.
+	 * Errors are reported through the server {@link Log}, the client uses
+	 * {@link #md5Of} and reports them on its own console.
 	 * @param file a file with read access
 	 * @return the checksum or null in case of error
 	 */
 	public static String calcMD5(File file, int chunkSize) {
-		FileInputStream fis = null;
-		byte[] buf = null;
-		String result = null;
 		try {
-			fis = new FileInputStream(file);
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			md.reset();
+			return md5Of(file, chunkSize);
+		} catch (FileNotFoundException e) {
+			Util.serBashln("Error opening file '" + file.getName() + "' for reading");
+			Log.error(e);
+		} catch (IOException e) {
+			Util.serBashln("Error reading from file '" + file.getName() + "'");
+			Log.error(e);
+		}
+		return null;
+	}
+	/**
+	 * Reads a file (using big chunks of data) and calculates its MD5 checksum.
+	 * @param file a file with read access
+	 * @param chunkSize
+	 * @return the checksum
+	 * @throws FileNotFoundException if the file can not be opened
+	 * @throws IOException if it can not be read, or MD5 is not available
+	 */
+	public static String md5Of(File file, int chunkSize) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Error creating MessageDigest with MD5 algorithm", e);
+		}
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[chunkSize];
 			int readBytes;
-			buf = new byte[chunkSize];
 			do {
 				readBytes = fis.read(buf);
 				if (readBytes > 0) {
 					md.update(buf, 0, readBytes);
 				}
 			} while (readBytes == chunkSize);
+		} finally {
 			fis.close();
-			result = calcMD5(md.digest());
-		} catch (FileNotFoundException e) {
-			//TODO should be able to choose between consoles
-			Util.serBashln("Error opening file '" + file.getName() + "' for reading");
-			System.out.println("FileOutputStream: " + e.getMessage());
-			e.printStackTrace();
-		} catch (NoSuchAlgorithmException e) {
-			Util.serBashln("Error creating MessageDigest with MD5 algorithm");
-			System.out.println("NoSuchAlgorithmException: " + e.getMessage());
-			e.printStackTrace();
-		} catch (IOException e) {
-			Util.serBashln("Error reading from file '" + file.getName() + "'");
-			System.out.println("IOException: " + e.getMessage());
-			e.printStackTrace();
 		}
-		return result;
+		return calcMD5(md.digest());
+	}
+	/**
+	 * Feeds a part of a file to a digest, e.g. the bytes kept from an
+	 * interrupted transfer before it is resumed.
+	 * @param file
+	 * @param position
+	 * @param count
+	 * @param md
+	 * @throws IOException if the file is shorter than <code>position + count</code>
+	 */
+	public static void updateDigest(FileChannel file, long position, long count,
+			MessageDigest md) throws IOException {
+		ByteBuffer bb = BufferPool.direct((int) Math.min(256 * 1024, count));
+		try {
+			for (long end = position + count; position < end; ) {
+				bb.clear();
+				bb.limit((int) Math.min(bb.capacity(), end - position));
+				int n = file.read(bb, position);
+				if (n < 0)
+					throw new IOException("File ended before byte " + end);
+				bb.flip();
+				md.update(bb);
+				position += n;
+			}
+		} finally {
+			BufferPool.release(bb);
+		}
+	}
+	/**
+	 * @param bytes
+	 * @return two lowercase hex digits per byte, leading zeros included
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+	/**
+	 * Matches a name against a pattern where <code>*</code> stands for any
+	 * characters and <code>?</code> for exactly one.
+	 * @param glob null or empty matches every name
+	 * @param name
+	 * @return
+	 */
+	public static boolean matches(String glob, String name) {
+		if (null == glob || glob.length() == 0)
+			return true;
+		int g = 0, n = 0;
+		//where the last star was seen, and the name position it is matching up to
+		int star = -1, mark = 0;
+		while (n < name.length()) {
+			if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == name.charAt(n))) {
+				g++;
+				n++;
+			} else if (g < glob.length() && glob.charAt(g) == '*') {
+				star = g++;
+				mark = n;
+			} else if (star >= 0) {
+				g = star + 1;
+				n = ++mark;
+			} else
+				return false;
+		}
+		while (g < glob.length() && glob.charAt(g) == '*')
+			g++;
+		return g == glob.length();
+	}
+	/**
+	 * @param glob see {@link #matches}, maybe null
+	 * @return what every matching name starts with
+	 */
+	public static String globPrefix(String glob) {
+		if (null == glob)
+			return "";
+		int i = 0;
+		while (i < glob.length() && glob.charAt(i) != '*' && glob.charAt(i) != '?')
+			i++;
+		return glob.substring(0, i);
 	}
 	/**
 	 * Calculates a HEX string from a message digest, calculated using the MD5 algorithm.
@@ -0,0 +1,54 @@
+package red2.f1.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finishes the files of a batch on a few threads, closing them, moving
+ * them to their place and whatever bookkeeping follows, while the receiving
+ * thread already takes the next body off the connection. When the queue is
+ * full the receiving thread finishes the file itself.
+ * @author <a href="mailto:radutom.vlad@gmail.com">Radu Tom Vlad</a>
+ */
+public class WriteBehind {
+	public static final int THREADS = 4;
+	private static final int QUEUE = 16;
+
+	private final ThreadPoolExecutor pool;
+
+	public WriteBehind() {
+		pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadFactory() {
+					private int count = 0;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "write-behind-" + count++);
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * @param task must not throw
+	 */
+	public void submit(Runnable task) {
+		pool.execute(task);
+	}
+
+	/**
+	 * Waits for every task submitted and stops the threads.
+	 */
+	public void finish() {
+		pool.shutdown();
+		try {
+			while (! pool.awaitTermination(1, TimeUnit.MINUTES))
+				;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}